@@ -0,0 +1,6 @@
+#! /bin/bash
+# Builds and runs the JMH suite of bench/bench/DBprojectBenchmark.java
+# Example: ./bench.sh -p scale=1,10 -Dbench.db=dbproject_bench
+# Results: target/jmh-results.json (throughput, average, p50..p99.99 and gc.alloc.rate)
+mvn -B -q -Pbench package -DskipTests || exit 1
+java -jar target/benchmarks.jar -bm thrpt,avgt,sample -prof gc -rf json -rff target/jmh-results.json "$@"
@@ -0,0 +1,308 @@
+package bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH suite over the eight menu operations and the execute* helpers of
+ * DBproject, against a local Postgres filled with synthetic data at the
+ * given scale (scale 1 is about the size of code/data, times 20 for
+ * Appointment).  The database must already have the schema of create.sql;
+ * its ten tables are emptied and refilled unless -Dbench.load=false.
+ *
+ * The eight menu operations run through Operations, as the menu does,
+ * rendering into a table that is thrown away.  Make an Appointment books a
+ * fresh AV slot on every call, from a stock of -Dbench.slots (50000) slots
+ * of the busiest doctor, one per day so they never overlap, topped up
+ * before every iteration.
+ *
+ * JMH cannot run benchmarks in the default package, and named packages
+ * cannot see it, so DBproject is reached through method handles bound once
+ * in setup.  Run it with bench.sh, which asks for throughput, average time,
+ * sampled percentiles and the gc profiler and writes JSON results.
+ *
+ * Connection settings: -Dbench.db (dbproject_bench), -Dbench.port (5432),
+ * -Dbench.user ($USER).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class DBprojectBenchmark {
+	private static final int SLOTS = Integer.getInteger("bench.slots", 50000);
+
+	@Param({ "1" })
+	public int scale;
+
+	private Object esql;
+	private Class<?> app;
+	private MethodHandle executeUpdate;
+	private MethodHandle executeQueryAndPrintResult;
+	private MethodHandle executeQueryAndReturnResult;
+	private MethodHandle executeQueryAndReturnColumns;
+	private MethodHandle cleanup;
+	//Operations and the eight methods the menu calls
+	private Object ops;
+	private MethodHandle addDoctor, addPatient, addAppointment, makeAppointment;
+	private MethodHandle listAppointmentsOfDoctor, listAvailableAppointmentsOfDepartment, listStatusNumberOfAppointmentsPerDoctor, findPatientsCountWithStatus;
+	private Constructor<?> patient;
+	private Constructor<?> renderer;
+	private Object tableFormat;
+
+	private String appointmentsOfDoctorSql;
+
+	//parameters picked from the data
+	private int doctor, dept_ID, firstNewId, pageSize;
+	private String dept;
+	private Date from, to, day;
+	//the AV slots of the doctor left for makeAppointment, IDs nextSlot up to slotEnd (excluded)
+	private final AtomicInteger nextSlot = new AtomicInteger();
+	private volatile int slotEnd;
+	//first page of report 5 over the whole date range
+	private Object[] pageParams;
+	private final AtomicInteger nextId = new AtomicInteger();
+	private PrintStream stdout;
+
+	@Setup(Level.Trial)
+	public void setup() throws Throwable {
+		this.app = Class.forName("DBproject");
+		Class.forName("org.postgresql.Driver");
+		//the print helpers would flood the JMH output
+		this.stdout = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+		this.esql = this.app.getConstructor(String.class, String.class, String.class, String.class).newInstance(
+			System.getProperty("bench.db", "dbproject_bench"), System.getProperty("bench.port", "5432"),
+			System.getProperty("bench.user", System.getProperty("user.name")), System.getProperty("bench.password", ""));
+
+		this.executeUpdate = handle(this.app, "executeUpdate", String.class, Object[].class);
+		this.executeQueryAndPrintResult = handle(this.app, "executeQueryAndPrintResult", String.class, Object[].class);
+		this.executeQueryAndReturnResult = handle(this.app, "executeQueryAndReturnResult", String.class, Object[].class);
+		this.executeQueryAndReturnColumns = handle(this.app, "executeQueryAndReturnColumns", String.class, Object[].class);
+		this.cleanup = handle(this.app, "cleanup");
+		this.ops = handle(this.app, "operations").invoke(this.esql);
+		Class<?> operations = Class.forName("Operations");
+		Class<?> patientClass = Class.forName("BookingEngine$Patient");
+		Class<?> rendererClass = Class.forName("ResultRenderer");
+		Class<?> formatClass = Class.forName("ResultRenderer$Format");
+		this.addDoctor = handle(operations, "addDoctor", int.class, String.class, String.class, int.class);
+		this.addPatient = handle(operations, "addPatient", int.class, String.class, String.class, int.class, String.class, int.class);
+		this.addAppointment = handle(operations, "addAppointment", int.class, Date.class, String.class, String.class);
+		this.makeAppointment = handle(operations, "makeAppointment", int.class, Integer.class, patientClass);
+		this.listAppointmentsOfDoctor = handle(operations, "listAppointmentsOfDoctor", int.class, LocalDate.class, LocalDate.class,
+			Class.forName("Operations$PageToken"), int.class, rendererClass);
+		this.listAvailableAppointmentsOfDepartment = handle(operations, "listAvailableAppointmentsOfDepartment", String.class, Date.class, rendererClass);
+		this.listStatusNumberOfAppointmentsPerDoctor = handle(operations, "listStatusNumberOfAppointmentsPerDoctor", rendererClass);
+		this.findPatientsCountWithStatus = handle(operations, "findPatientsCountWithStatus", String.class, rendererClass);
+		this.patient = patientClass.getConstructor(int.class, String.class, String.class, int.class, String.class);
+		this.renderer = rendererClass.getConstructor(formatClass, Writer.class);
+		this.tableFormat = formatClass.getField("TABLE").get(null);
+
+		this.appointmentsOfDoctorSql = sql("APPOINTMENTS_OF_DOCTOR_SQL");
+
+		if (Boolean.parseBoolean(System.getProperty("bench.load", "true"))) load();
+
+		this.doctor = Integer.parseInt(value("select doctor_id from has_appointment group by doctor_id order by count(*) desc limit 1"));
+		this.dept_ID = Integer.parseInt(value("select min(dept_ID) from Department"));
+		this.from = Date.valueOf(value("select min(adate) from Appointment"));
+		this.to = Date.valueOf(value("select max(adate) from Appointment"));
+		this.pageSize = constant(Integer.class, "PAGE_SIZE");
+		this.pageParams = new Object[] { this.doctor, this.doctor, this.from, Integer.MIN_VALUE, this.from,
+			Date.valueOf(this.to.toLocalDate().plusDays(1)), this.pageSize + 1 };
+		List<List<String>> busiest = query("select R.dept_name, A.adate from Appointment A, has_appointment H, request_maintenance R "
+			+ "where A.status = 'AV' and H.appt_id = A.appnt_ID and R.did = H.doctor_id group by 1, 2 order by count(*) desc limit 1");
+		this.dept = busiest.get(0).get(0);
+		this.day = Date.valueOf(busiest.get(0).get(1));
+
+		//rows added by the insert benchmarks get IDs above everything loaded, and are removed in tearDown
+		this.firstNewId = Integer.parseInt(value("select greatest(max(appnt_ID), (select max(doctor_ID) from Doctor), (select max(patient_ID) from Patient)) + 1 from Appointment"));
+		this.nextId.set(this.firstNewId);
+	}
+
+	/**
+	 * Tops the stock of AV slots for makeAppointment up before every
+	 * iteration, outside the measurement.
+	 */
+	@Setup(Level.Iteration)
+	public void topUpSlots() throws Throwable {
+		if (this.slotEnd - this.nextSlot.get() < SLOTS / 2) addSlots();
+	}
+
+	//one slot per day from tomorrow on, dated by ID so no two slots of the doctor ever overlap
+	private synchronized void addSlots() throws Throwable {
+		int first = this.nextId.getAndAdd(SLOTS);
+		update("insert into Appointment (appnt_ID, adate, time_slot, status) select g, current_date + 1 + (g - ?), '8:00-10:00', 'AV' "
+			+ "from generate_series(?::int, ?::int) g", this.firstNewId, first, first + SLOTS - 1);
+		update("insert into has_appointment (appt_id, doctor_id) select g, ? from generate_series(?::int, ?::int) g", this.doctor, first, first + SLOTS - 1);
+		this.nextSlot.set(first);
+		this.slotEnd = first + SLOTS;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Throwable {
+		update("delete from searches where pid >= ? or aid >= ?", this.firstNewId, this.firstNewId);
+		update("delete from has_appointment where appt_id >= ?", this.firstNewId);
+		update("delete from Doctor where doctor_ID >= ?", this.firstNewId);
+		update("delete from Patient where patient_ID >= ?", this.firstNewId);
+		update("delete from Appointment where appnt_ID >= ?", this.firstNewId);
+		this.cleanup.invoke(this.esql);
+		System.setOut(this.stdout);
+	}
+
+	// ---- the eight menu operations ----
+
+	@Benchmark
+	public Object addDoctor() throws Throwable {
+		return this.addDoctor.invoke(this.ops, this.nextId.getAndIncrement(), "Bench Doctor", "Allergist", this.dept_ID);
+	}
+
+	@Benchmark
+	public Object addPatient() throws Throwable {
+		return this.addPatient.invoke(this.ops, this.nextId.getAndIncrement(), "Bench Patient", "F", 40, "bench", 0);
+	}
+
+	@Benchmark
+	public Object addAppointment() throws Throwable {
+		return this.addAppointment.invoke(this.ops, this.nextId.getAndIncrement(), this.to, "8:00-10:00", "AV");
+	}
+
+	//every call moves a fresh slot from AV to AC
+	@Benchmark
+	public Object makeAppointment() throws Throwable {
+		int slot = this.nextSlot.getAndIncrement();
+		//the stock ran out within an iteration, the top up is measured
+		while (slot >= this.slotEnd) {
+			synchronized (this) {
+				if (this.nextSlot.get() >= this.slotEnd) addSlots();
+			}
+			slot = this.nextSlot.getAndIncrement();
+		}
+		Object p = this.patient.newInstance(this.nextId.getAndIncrement(), "Bench Patient", "M", 40, "bench");
+		return this.makeAppointment.invoke(this.ops, this.doctor, Integer.valueOf(slot), p);
+	}
+
+	@Benchmark
+	public Object listAppointmentsOfDoctor() throws Throwable {
+		return this.listAppointmentsOfDoctor.invoke(this.ops, this.doctor, this.from.toLocalDate(), this.to.toLocalDate().plusDays(1), null,
+			this.pageSize, renderer());
+	}
+
+	@Benchmark
+	public Object listAvailableAppointmentsOfDepartment() throws Throwable {
+		return this.listAvailableAppointmentsOfDepartment.invoke(this.ops, this.dept, this.day, renderer());
+	}
+
+	@Benchmark
+	public Object listStatusNumberOfAppointmentsPerDoctor() throws Throwable {
+		return this.listStatusNumberOfAppointmentsPerDoctor.invoke(this.ops, renderer());
+	}
+
+	@Benchmark
+	public Object findPatientsCountWithStatus() throws Throwable {
+		return this.findPatientsCountWithStatus.invoke(this.ops, "AV", renderer());
+	}
+
+	// ---- the execute* helpers, on report 5 ----
+
+	@Benchmark
+	public Object executeQueryAndPrintResult() throws Throwable {
+		return this.executeQueryAndPrintResult.invoke(this.esql, this.appointmentsOfDoctorSql, this.pageParams);
+	}
+
+	@Benchmark
+	public Object executeQueryAndReturnResult() throws Throwable {
+		return this.executeQueryAndReturnResult.invoke(this.esql, this.appointmentsOfDoctorSql, this.pageParams);
+	}
+
+	//compare with executeQueryAndReturnResult under -prof gc for the allocation per row
+	@Benchmark
+	public Object executeQueryAndReturnColumns() throws Throwable {
+		return this.executeQueryAndReturnColumns.invoke(this.esql, this.appointmentsOfDoctorSql, this.pageParams);
+	}
+
+	@Benchmark
+	public Object executeUpdate() throws Throwable {
+		return this.executeUpdate.invoke(this.esql, "update Patient set age = age where patient_ID = ?", new Object[] { 0 });
+	}
+
+	/**
+	 * Refills the ten tables with generate_series, sized by scale.
+	 */
+	private void load() throws Throwable {
+		int s = this.scale;
+		update("truncate Hospital, Patient, Appointment, Department, Staff, Doctor, request_maintenance, searches, schedules, has_appointment, doctor_appointment cascade");
+		update("insert into Hospital select g, 'Hospital ' || g from generate_series(0, ?) g", 4 * s - 1);
+		update("insert into Department select g, (array['Cardiology','Dermatology','Pediatric','Oncology','Urology','Neurology','Radiology','Psychiatry'])[1 + g % 8], g % ? "
+			+ "from generate_series(0, ?) g", 4 * s, 125 * s - 1);
+		update("insert into Staff select g, 'Staff ' || g, g % ? from generate_series(0, ?) g", 4 * s, 250 * s - 1);
+		update("insert into Doctor select g, 'Doctor ' || g, 'Specialist', g % ? from generate_series(0, ?) g", 125 * s, 250 * s - 1);
+		update("insert into Patient select g, 'Patient ' || g, case when g % 2 = 0 then 'F' else 'M' end, 20 + g % 60, 'Address ' || g, 0 "
+			+ "from generate_series(0, ?) g", 250 * s - 1);
+		update("insert into Appointment select g, date '2020-01-01' + g % 730, '8:00-10:00', (array['PA','PA','AC','AV','WL'])[1 + g % 5] "
+			+ "from generate_series(0, ?) g", 10000 * s - 1);
+		update("insert into has_appointment select g, g % ? from generate_series(0, ?) g", 250 * s, 10000 * s - 1);
+		update("insert into request_maintenance select 1 + D.doctor_ID % 3, Dp.name, '8:00-17:00', D.doctor_ID, D.doctor_ID from Doctor D, Department Dp where Dp.dept_ID = D.did");
+		update("analyze");
+	}
+
+	//the table the menu prints, written nowhere
+	private Object renderer() throws Exception {
+		return this.renderer.newInstance(this.tableFormat, Writer.nullWriter());
+	}
+
+	private static MethodHandle handle(Class<?> cls, String name, Class<?>... types) throws Exception {
+		Method m = cls.getDeclaredMethod(name, types);
+		m.setAccessible(true);
+		return MethodHandles.lookup().unreflect(m);
+	}
+
+	private String sql(String name) throws Exception {
+		return constant(String.class, name);
+	}
+
+	private <T> T constant(Class<T> type, String name) throws Exception {
+		Field f = this.app.getDeclaredField(name);
+		f.setAccessible(true);
+		return type.cast(f.get(null));
+	}
+
+	private void update(String sql, Object... params) throws Throwable {
+		this.executeUpdate.invoke(this.esql, sql, params);
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<List<String>> query(String sql, Object... params) throws Throwable {
+		return (List<List<String>>) this.executeQueryAndReturnResult.invoke(this.esql, sql, params);
+	}
+
+	private String value(String sql, Object... params) throws Throwable {
+		return query(sql, params).get(0).get(0);
+	}
+}
@@ -0,0 +1,472 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This class defines the HTTP/JSON front end of the eight operations, the
+ * network counterpart of the main menu.  It runs on the JDK built in HTTP
+ * server and hands every request to its own virtual thread, so thousands of
+ * clients can wait on the shared connection pool at the cost of a few KB
+ * each; size the pool with -Ddbproject.pool.size.  On a JVM without virtual
+ * threads (before Java 21) a fixed pool of -Ddbproject.server.threads (200)
+ * platform threads is used instead.
+ *
+ * Parameters come from the query string, a form body or a flat JSON object
+ * body.  Dates are yyyy-mm-dd or month/day/year.
+ *
+ *   POST /doctors          id, name, specialty, dept_id
+ *   POST /patients         id, name, gender, age, address, appointments (0)
+ *   POST /appointments     id, date, time_slot, status, doctor_id and staff_id (optional)
+ *   POST /bookings         doctor_id, appointment_id (next available if absent),
+ *                          patient_id, name, gender, age, address
+ *   GET  /doctors/appointments           doctor_id, from, to (excluded),
+ *                                        after (page token), limit (page size)
+ *   GET  /departments/available          dept, date
+ *   GET  /departments/capacity           from (today), to (excluded, from + 30 days), limit (50)
+ *   GET  /reports/status-per-doctor
+ *   GET  /reports/patients-with-status   status
+ *   GET  /dashboard                      from (today), doctors (5)
+ *   GET  /patients/search                q, limit (50)
+ *   GET  /patients/suggest               prefix, limit (10)
+ *   GET  /metrics
+ *
+ * Reports stream one JSON object per row (application/x-ndjson).  Pages of
+ * the appointments of a doctor carry the token of the next page in the
+ * X-Next-Page header, absent on the last page.  The dashboard runs all of
+ * its queries at once and answers one JSON object with a titled array of
+ * rows per query.  Errors are
+ * answered with {"error": message} and 400 for bad input, 409 for integrity
+ * violations and 500 otherwise.
+ *
+ */
+
+public class ApiServer {
+	/**
+	 * One endpoint, called with the merged request parameters.
+	 */
+	interface Endpoint {
+		void serve(Map<String, String> params, HttpExchange exchange) throws Exception;
+	}
+
+	//largest page of the paged endpoints
+	static final int MAX_PAGE_SIZE = 1000;
+
+	private final DBproject _esql;
+	private final Operations _ops;
+	private final int _port;
+	private final int _backlog;
+	private final CountDownLatch _stopped = new CountDownLatch(1);
+
+	/**
+	 * @param esql the connected database
+	 * @param port the TCP port to listen on
+	 * @param backlog the connections queued by the OS before they are accepted
+	 */
+	public ApiServer(DBproject esql, int port, int backlog) {
+		this._esql = esql;
+		this._ops = esql.operations();
+		this._port = port;
+		this._backlog = backlog;
+	}
+
+	/**
+	 * Serves requests until the JVM is asked to shut down.
+	 *
+	 * @throws java.io.IOException when the port cannot be bound
+	 */
+	public void run() throws IOException, InterruptedException {
+		final HttpServer server = HttpServer.create(new InetSocketAddress(this._port), this._backlog);
+		final ExecutorService executor = newRequestExecutor();
+		server.setExecutor(executor);
+
+		endpoint(server, "POST", "/doctors", "AddDoctor", (p, ex) -> {
+			int rows = this._ops.addDoctor(intParam(p, "id"), param(p, "name"), param(p, "specialty"), intParam(p, "dept_id"));
+			sendJson(ex, 201, "{\"inserted\":" + rows + "}");
+		});
+		endpoint(server, "POST", "/patients", "AddPatient", (p, ex) -> {
+			int rows = this._ops.addPatient(intParam(p, "id"), param(p, "name"), param(p, "gender"), intParam(p, "age"),
+				param(p, "address"), p.containsKey("appointments") ? intParam(p, "appointments") : 0);
+			sendJson(ex, 201, "{\"inserted\":" + rows + "}");
+		});
+		endpoint(server, "POST", "/appointments", "AddAppointment", (p, ex) -> {
+			int rows = this._ops.addAppointment(intParam(p, "id"), dateParam(p, "date"), param(p, "time_slot"), param(p, "status"),
+				p.containsKey("doctor_id") ? Integer.valueOf(intParam(p, "doctor_id")) : null,
+				p.containsKey("staff_id") ? Integer.valueOf(intParam(p, "staff_id")) : null);
+			sendJson(ex, 201, "{\"inserted\":" + rows + "}");
+		});
+		endpoint(server, "POST", "/bookings", "MakeAppointment", (p, ex) -> {
+			BookingEngine.Patient patient = new BookingEngine.Patient(intParam(p, "patient_id"), param(p, "name"), param(p, "gender"),
+				intParam(p, "age"), param(p, "address"));
+			BookingEngine.Booking booking = this._ops.makeAppointment(intParam(p, "doctor_id"),
+				p.containsKey("appointment_id") ? Integer.valueOf(intParam(p, "appointment_id")) : null, patient);
+			StringWriter body = new StringWriter();
+			body.write("{\"outcome\":\"" + booking.outcome + "\",\"appointment_id\":" + booking.appointmentId + ",\"message\":");
+			ResultRenderer.writeJsonString(body, booking.toString());
+			body.write('}');
+			int status;
+			switch (booking.outcome) {
+				case NOT_FOUND: status = 404; break;
+				case PAST: case CONFLICT: case FULL: status = 409; break;
+				default: status = 201; break;
+			}
+			sendJson(ex, status, body.toString());
+		});
+		endpoint(server, "GET", "/doctors/appointments", "ListAppointmentsOfDoctor", (p, ex) -> {
+			int doctor = intParam(p, "doctor_id");
+			Date from = dateParam(p, "from");
+			Date to = dateParam(p, "to");
+			Operations.PageToken after = p.containsKey("after") ? Operations.PageToken.parse(p.get("after")) : null;
+			int limit = p.containsKey("limit") ? intParam(p, "limit") : DBproject.PAGE_SIZE;
+			if (limit > MAX_PAGE_SIZE) throw new IllegalArgumentException("limit is at most " + MAX_PAGE_SIZE);
+			//a page is small, so it is rendered first and the next page token can go in a header
+			StringWriter body = new StringWriter();
+			Operations.PageToken next = this._ops.listAppointmentsOfDoctor(doctor, from.toLocalDate(), to.toLocalDate(), after, limit,
+				new ResultRenderer(ResultRenderer.Format.JSON, body));
+			if (next != null) ex.getResponseHeaders().set("X-Next-Page", next.toString());
+			send(ex, 200, "application/x-ndjson", body.toString());
+		});
+		endpoint(server, "GET", "/departments/available", "ListAvailableAppointmentsOfDepartment", (p, ex) -> {
+			String dept = param(p, "dept");
+			Date date = dateParam(p, "date");
+			try (StreamingResponse out = new StreamingResponse(ex)) {
+				this._ops.listAvailableAppointmentsOfDepartment(dept, date, new ResultRenderer(ResultRenderer.Format.JSON, out));
+			}
+		});
+		endpoint(server, "GET", "/departments/capacity", "DepartmentCapacity", (p, ex) -> {
+			LocalDate from = p.containsKey("from") ? dateParam(p, "from").toLocalDate() : LocalDate.now();
+			LocalDate to = p.containsKey("to") ? dateParam(p, "to").toLocalDate() : from.plusDays(30);
+			int limit = p.containsKey("limit") ? intParam(p, "limit") : DBproject.PAGE_SIZE;
+			if (limit > MAX_PAGE_SIZE) throw new IllegalArgumentException("limit is at most " + MAX_PAGE_SIZE);
+			try (StreamingResponse out = new StreamingResponse(ex)) {
+				this._ops.departmentCapacity(from, to, limit, new ResultRenderer(ResultRenderer.Format.JSON, out));
+			}
+		});
+		endpoint(server, "GET", "/reports/status-per-doctor", "ListStatusNumberOfAppointmentsPerDoctor", (p, ex) -> {
+			try (StreamingResponse out = new StreamingResponse(ex)) {
+				this._ops.listStatusNumberOfAppointmentsPerDoctor(new ResultRenderer(ResultRenderer.Format.JSON, out));
+			}
+		});
+		endpoint(server, "GET", "/reports/patients-with-status", "FindPatientsCountWithStatus", (p, ex) -> {
+			String status = param(p, "status");
+			try (StreamingResponse out = new StreamingResponse(ex)) {
+				this._ops.findPatientsCountWithStatus(status, new ResultRenderer(ResultRenderer.Format.JSON, out));
+			}
+		});
+		endpoint(server, "GET", "/patients/search", "SearchPatients", (p, ex) -> {
+			String text = param(p, "q");
+			int limit = p.containsKey("limit") ? intParam(p, "limit") : DBproject.PAGE_SIZE;
+			if (limit > MAX_PAGE_SIZE) throw new IllegalArgumentException("limit is at most " + MAX_PAGE_SIZE);
+			try (StreamingResponse out = new StreamingResponse(ex)) {
+				this._ops.searchPatients(text, limit, new ResultRenderer(ResultRenderer.Format.JSON, out));
+			}
+		});
+		endpoint(server, "GET", "/patients/suggest", "SuggestPatients", (p, ex) -> {
+			String prefix = param(p, "prefix");
+			int limit = p.containsKey("limit") ? intParam(p, "limit") : 10;
+			if (limit > MAX_PAGE_SIZE) throw new IllegalArgumentException("limit is at most " + MAX_PAGE_SIZE);
+			try (StreamingResponse out = new StreamingResponse(ex)) {
+				this._ops.suggestPatients(prefix, limit, new ResultRenderer(ResultRenderer.Format.JSON, out));
+			}
+		});
+		endpoint(server, "GET", "/dashboard", "Dashboard", (p, ex) -> {
+			LocalDate from = p.containsKey("from") ? dateParam(p, "from").toLocalDate() : LocalDate.now();
+			int doctors = p.containsKey("doctors") ? intParam(p, "doctors") : 5;
+			if (doctors > MAX_PAGE_SIZE) throw new IllegalArgumentException("doctors is at most " + MAX_PAGE_SIZE);
+			Dashboard dashboard = new Dashboard(this._esql, doctors, Long.getLong("dbproject.dashboard.timeout.ms", 10000L));
+			StringWriter body = new StringWriter();
+			body.write("{\"sections\":[");
+			boolean first = true;
+			for (Dashboard.Section section : dashboard.load(from)) {
+				if (!first) body.write(',');
+				first = false;
+				body.write("{\"title\":");
+				ResultRenderer.writeJsonString(body, section.title);
+				body.write(",\"rows\":[");
+				//the renderer writes one object per line, the lines become array elements
+				StringWriter rows = new StringWriter();
+				section.result.render(new ResultRenderer(ResultRenderer.Format.JSON, rows));
+				body.write(rows.toString().trim().replace("\n", ","));
+				body.write("]}");
+			}
+			body.write("]}");
+			sendJson(ex, 200, body.toString());
+		});
+		endpoint(server, "GET", "/metrics", null, (p, ex) -> {
+			send(ex, 200, "text/plain; charset=utf-8", Metrics.report() + this._esql.cache().stats() + this._esql.router().status()
+				+ this._esql.sweeper().status() + this._esql.patients().stats() + this._esql.capacity().stats());
+		});
+
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			server.stop(1);
+			executor.shutdown();
+			this._stopped.countDown();
+		}, "api-server-shutdown"));
+		server.start();
+		System.out.println("Serving on port " + this._port + (isVirtual(executor) ? " (virtual threads)" : " (platform threads)"));
+		this._stopped.await();
+	}
+
+	/**
+	 * @return an executor starting one virtual thread per request, or a
+	 * bounded platform thread pool when the JVM has no virtual threads
+	 */
+	static ExecutorService newRequestExecutor() {
+		try {
+			//looked up by reflection so the sources still build for Java 17
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}catch (ReflectiveOperationException e) {
+			return Executors.newFixedThreadPool(Integer.getInteger("dbproject.server.threads", 200));
+		}
+	}
+
+	private static boolean isVirtual(ExecutorService executor) {
+		return executor.getClass().getName().contains("ThreadPerTask");
+	}
+
+	/**
+	 * Registers an endpoint that only answers path exactly and the given method,
+	 * and records its statements in the metrics under operation.
+	 */
+	private static void endpoint(HttpServer server, final String method, final String path, final String operation, final Endpoint endpoint) {
+		server.createContext(path, exchange -> {
+			try {
+				if (!exchange.getRequestURI().getPath().equals(path)) {
+					sendError(exchange, 404, "No such endpoint: " + exchange.getRequestURI().getPath());
+					return;
+				}
+				if (!exchange.getRequestMethod().equals(method)) {
+					exchange.getResponseHeaders().set("Allow", method);
+					sendError(exchange, 405, "Use " + method + " for " + path);
+					return;
+				}
+				Metrics.setOperation(operation);
+				endpoint.serve(params(exchange), exchange);
+			}catch (IllegalArgumentException | DateTimeException e) {
+				sendError(exchange, 400, e.getMessage());
+			}catch (SQLException e) {
+				System.err.println(e.getMessage());
+				//class 23 is integrity constraint violation (duplicate key, foreign key, ...)
+				boolean conflict = e.getSQLState() != null && e.getSQLState().startsWith("23");
+				sendError(exchange, conflict ? 409 : 500, e.getMessage());
+			}catch (Exception e) {
+				System.err.println(e.getMessage());
+				sendError(exchange, 500, String.valueOf(e.getMessage()));
+			}finally{
+				Metrics.setOperation(null);
+				exchange.close();
+			}
+		});
+	}
+
+	/**
+	 * Merges the query string and the body (form or flat JSON object) parameters.
+	 */
+	static Map<String, String> params(HttpExchange exchange) throws IOException {
+		Map<String, String> params = new HashMap<String, String>();
+		String query = exchange.getRequestURI().getRawQuery();
+		if (query != null) parseForm(query, params);
+
+		String body = readBody(exchange.getRequestBody());
+		if (!body.isBlank()) {
+			if (body.trim().startsWith("{")) parseJson(body, params);
+			else parseForm(body.trim(), params);
+		}
+		return params;
+	}
+
+	private static String readBody(InputStream in) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int n;
+		while ((n = in.read(buffer)) > 0)
+			body.write(buffer, 0, n);
+		return new String(body.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	static void parseForm(String form, Map<String, String> params) {
+		for (String pair : form.split("&")) {
+			if (pair.isEmpty()) continue;
+			int eq = pair.indexOf('=');
+			String name = eq < 0 ? pair : pair.substring(0, eq);
+			String value = eq < 0 ? "" : pair.substring(eq + 1);
+			params.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * Parses an object of string, number, boolean or null members; nested
+	 * objects and arrays are rejected.  JSON null leaves the member out.
+	 */
+	static void parseJson(String json, Map<String, String> params) {
+		int[] pos = { 0 };
+		expect(json, pos, '{');
+		if (peek(json, pos) == '}') return;
+		do {
+			skipSpace(json, pos);
+			String name = jsonString(json, pos);
+			expect(json, pos, ':');
+			skipSpace(json, pos);
+			char c = peek(json, pos);
+			if (c == '"') {
+				params.put(name, jsonString(json, pos));
+			}else{
+				int start = pos[0];
+				while (pos[0] < json.length() && ",} \t\r\n".indexOf(json.charAt(pos[0])) < 0)
+					pos[0]++;
+				String literal = json.substring(start, pos[0]);
+				if (literal.isEmpty() || c == '{' || c == '[') throw new IllegalArgumentException("Unsupported JSON value for " + name);
+				if (!literal.equals("null")) params.put(name, literal);
+			}
+		}while (next(json, pos) == ',');
+		if (json.charAt(pos[0] - 1) != '}') throw new IllegalArgumentException("Malformed JSON body");
+	}
+
+	private static String jsonString(String json, int[] pos) {
+		expect(json, pos, '"');
+		StringBuilder value = new StringBuilder();
+		while (true) {
+			if (pos[0] >= json.length()) throw new IllegalArgumentException("Unterminated JSON string");
+			char c = json.charAt(pos[0]++);
+			if (c == '"') return value.toString();
+			if (c != '\\') {
+				value.append(c);
+				continue;
+			}
+			if (pos[0] >= json.length()) throw new IllegalArgumentException("Unterminated JSON string");
+			char e = json.charAt(pos[0]++);
+			switch (e) {
+				case 'n': value.append('\n'); break;
+				case 't': value.append('\t'); break;
+				case 'r': value.append('\r'); break;
+				case 'b': value.append('\b'); break;
+				case 'f': value.append('\f'); break;
+				case 'u':
+					if (pos[0] + 4 > json.length()) throw new IllegalArgumentException("Malformed JSON escape");
+					value.append((char) Integer.parseInt(json.substring(pos[0], pos[0] + 4), 16));
+					pos[0] += 4;
+					break;
+				default: value.append(e); break;
+			}
+		}
+	}
+
+	private static void skipSpace(String json, int[] pos) {
+		while (pos[0] < json.length() && Character.isWhitespace(json.charAt(pos[0])))
+			pos[0]++;
+	}
+
+	private static char peek(String json, int[] pos) {
+		skipSpace(json, pos);
+		if (pos[0] >= json.length()) throw new IllegalArgumentException("Malformed JSON body");
+		return json.charAt(pos[0]);
+	}
+
+	private static char next(String json, int[] pos) {
+		char c = peek(json, pos);
+		pos[0]++;
+		return c;
+	}
+
+	private static void expect(String json, int[] pos, char c) {
+		if (next(json, pos) != c) throw new IllegalArgumentException("Malformed JSON body, expected '" + c + "'");
+	}
+
+	static String param(Map<String, String> params, String name) {
+		String value = params.get(name);
+		if (value == null) throw new IllegalArgumentException("Missing parameter: " + name);
+		return value;
+	}
+
+	static int intParam(Map<String, String> params, String name) {
+		try {
+			return Integer.parseInt(param(params, name).trim());
+		}catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Parameter " + name + " is not an integer: " + params.get(name));
+		}
+	}
+
+	static Date dateParam(Map<String, String> params, String name) {
+		String value = param(params, name).trim();
+		return value.contains("/") ? DBproject.parseDate(value) : Date.valueOf(value);
+	}
+
+	private static void sendJson(HttpExchange exchange, int status, String json) throws IOException {
+		send(exchange, status, "application/json", json);
+	}
+
+	private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+		StringWriter body = new StringWriter();
+		body.write("{\"error\":");
+		ResultRenderer.writeJsonString(body, message == null ? "" : message);
+		body.write('}');
+		sendJson(exchange, status, body.toString());
+	}
+
+	private static void send(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	/**
+	 * The body of a streamed report.  The 200 status and headers are only
+	 * sent with the first flush, which the renderer does after its first
+	 * batch, so a query that fails before then still gets an error response.
+	 */
+	static final class StreamingResponse extends Writer {
+		private final HttpExchange _exchange;
+		private Writer _out = null;
+
+		StreamingResponse(HttpExchange exchange) {
+			this._exchange = exchange;
+		}
+
+		private Writer out() throws IOException {
+			if (this._out == null) {
+				this._exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+				//0 selects chunked encoding, the length is not known up front
+				this._exchange.sendResponseHeaders(200, 0);
+				this._out = new OutputStreamWriter(this._exchange.getResponseBody(), StandardCharsets.UTF_8);
+			}
+			return this._out;
+		}
+
+		public void write(char[] buffer, int offset, int length) throws IOException {
+			out().write(buffer, offset, length);
+		}
+
+		public void flush() throws IOException {
+			out().flush();
+		}
+
+		/**
+		 * Ends the response if it was started; otherwise leaves the exchange
+		 * to the error handler.
+		 */
+		public void close() throws IOException {
+			if (this._out != null) this._out.close();
+		}
+	}
+}
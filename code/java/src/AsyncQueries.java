@@ -0,0 +1,233 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * This class defines the asynchronous query API of DBproject.  Statements
+ * are queued to a small executor and run on pooled connections, queries on
+ * a replica when the ReplicaRouter has a healthy one.  The caller gets a
+ * CompletableFuture at once and can start more queries, compose them and
+ * wait for all of them, so independent queries overlap instead of adding up.
+ *
+ * At most maxInFlight statements run at a time, at most queueSize more
+ * wait, and submissions beyond that fail at once with a
+ * RejectedExecutionException rather than piling up.  Cancelling a future,
+ * or letting its timeout expire, removes a waiting statement from the queue
+ * and sends a cancel request to the server for a running one.
+ *
+ */
+
+public class AsyncQueries implements AutoCloseable {
+	/**
+	 * The rows of a query with their column labels, fully read.
+	 */
+	public static final class Result {
+		public final String[] columns;
+		public final boolean[] numeric;
+		public final List<String[]> rows;
+
+		Result(String[] columns, boolean[] numeric, List<String[]> rows) {
+			this.columns = columns;
+			this.numeric = numeric;
+			this.rows = rows;
+		}
+
+		/**
+		 * Writes the rows to the renderer and finishes it.
+		 *
+		 * @return the number of rows written
+		 */
+		public int render(ResultRenderer out) {
+			out.begin(this.columns, this.numeric);
+			for (String[] row : this.rows)
+				out.row(row);
+			return out.finish();
+		}
+	}
+
+	/**
+	 * Reads what a statement produced into the value of its future.
+	 */
+	interface Reader<T> {
+		T read(PreparedStatement stmt) throws SQLException;
+	}
+
+	/**
+	 * The future of one statement.  It knows the statement while it runs so
+	 * cancel() and timeouts reach the server.
+	 */
+	static final class Task<T> extends CompletableFuture<T> {
+		private PreparedStatement _running = null;
+
+		synchronized boolean start(PreparedStatement stmt) {
+			if (isDone()) return false;
+			this._running = stmt;
+			return true;
+		}
+
+		synchronized void stop() {
+			this._running = null;
+		}
+
+		/**
+		 * Called on every exceptional completion, including cancel and timeout.
+		 */
+		synchronized void abort() {
+			if (this._running == null) return;
+			try {
+				this._running.cancel();
+			}catch (SQLException e) {
+				System.err.println(e.getMessage());
+			}
+		}
+	}
+
+	private final ReplicaRouter _router;
+	private final ThreadPoolExecutor _executor;
+
+	/**
+	 * @param router queries run on a replica when one is healthy, updates on the primary
+	 * @param maxInFlight the most statements running at a time, at most the pool size is useful
+	 * @param queueSize the most statements waiting to run
+	 */
+	public AsyncQueries(ReplicaRouter router, int maxInFlight, int queueSize) {
+		this._router = router;
+		this._executor = new ThreadPoolExecutor(maxInFlight, maxInFlight, 60L, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<Runnable>(queueSize), r -> {
+				Thread t = new Thread(r, "async-query");
+				t.setDaemon(true);
+				return t;
+			});
+		this._executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Starts a query.
+	 *
+	 * @param timeoutMillis how long the query may take from now, 0 for no limit
+	 * @param query the input query string, with ? placeholders for the parameters
+	 * @param params the values bound to the placeholders
+	 * @return the future rows, failing with a TimeoutException when the timeout expires
+	 */
+	public CompletableFuture<Result> query(long timeoutMillis, String query, Object... params) {
+		return submit(timeoutMillis, true, query, params, stmt -> {
+			try (ResultSet rs = stmt.executeQuery()) {
+				ResultSetMetaData rsmd = rs.getMetaData();
+				int numCol = rsmd.getColumnCount();
+				String[] columns = new String[numCol];
+				boolean[] numeric = new boolean[numCol];
+				for (int i = 0; i < numCol; ++i) {
+					columns[i] = rsmd.getColumnName(i + 1);
+					numeric[i] = ResultRenderer.isNumeric(rsmd.getColumnType(i + 1));
+				}
+				List<String[]> rows = new ArrayList<String[]>();
+				long bytes = 0;
+				while (rs.next()) {
+					String[] row = new String[numCol];
+					for (int i = 0; i < numCol; ++i) {
+						row[i] = rs.getString(i + 1);
+						if (row[i] != null) bytes += row[i].length();
+					}
+					rows.add(row);
+				}
+				Metrics.addBytes(bytes);
+				return new Result(columns, numeric, rows);
+			}
+		});
+	}
+
+	/**
+	 * Starts an update.
+	 *
+	 * @return the future number of rows affected
+	 */
+	public CompletableFuture<Integer> update(long timeoutMillis, String sql, Object... params) {
+		return submit(timeoutMillis, false, sql, params, stmt -> stmt.executeUpdate());
+	}
+
+	<T> CompletableFuture<T> submit(long timeoutMillis, final boolean readOnly, final String sql, final Object[] params, final Reader<T> reader) {
+		final Task<T> task = new Task<T>();
+		//the statements count towards the operation that started them
+		final String operation = Metrics.operation();
+		if (timeoutMillis > 0) task.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+		task.whenComplete((value, error) -> {
+			if (error != null) task.abort();
+		});
+
+		final Runnable run = () -> {
+			if (task.isDone()) return;
+			Metrics.setOperation(operation);
+			long start = System.nanoTime();
+			int rowCount = 0;
+			boolean failed = true;
+			Metrics.startBytes();
+			try (ConnectionPool.PooledConnection conn = readOnly ? this._router.acquireRead() : this._router.primary().acquire()) {
+				PreparedStatement stmt = conn.prepare(sql);
+				DBproject.bind(stmt, params);
+				if (!task.start(stmt)) return;
+				T value;
+				try {
+					value = reader.read(stmt);
+				}finally{
+					task.stop();
+				}
+				rowCount = value instanceof Result ? ((Result) value).rows.size() : value instanceof Integer ? (Integer) value : 0;
+				failed = false;
+				task.complete(value);
+			}catch (Throwable e) {
+				task.completeExceptionally(e);
+			}finally{
+				Metrics.record(sql, params, System.nanoTime() - start, rowCount, Metrics.bytes(), failed);
+				Metrics.setOperation(null);
+			}
+		};
+		try {
+			this._executor.execute(run);
+		}catch (RejectedExecutionException e) {
+			task.completeExceptionally(new RejectedExecutionException("Too many queries in flight (" + this._executor.getMaximumPoolSize()
+				+ " running, " + this._executor.getQueue().size() + " waiting)"));
+			return task;
+		}
+		//a statement cancelled while it waits gives its queue slot back
+		task.whenComplete((value, error) -> {
+			if (task.isCancelled() || error instanceof TimeoutException) this._executor.remove(run);
+		});
+		return task;
+	}
+
+	/**
+	 * Waits for the future and unwraps its failure.
+	 *
+	 * @return the value of the future
+	 * @throws java.sql.SQLException when the statement failed, timed out or was cancelled
+	 */
+	public static <T> T await(CompletableFuture<T> future) throws SQLException {
+		try {
+			return future.join();
+		}catch (CompletionException e) {
+			if (e.getCause() instanceof SQLException) throw (SQLException) e.getCause();
+			if (e.getCause() instanceof TimeoutException) throw new SQLException("Query timed out", e.getCause());
+			throw new SQLException(String.valueOf(e.getCause().getMessage()), e.getCause());
+		}catch (CancellationException e) {
+			throw new SQLException("Query cancelled", e);
+		}
+	}
+
+	/**
+	 * Stops taking statements; running ones complete.
+	 */
+	public void close() {
+		this._executor.shutdown();
+	}
+}
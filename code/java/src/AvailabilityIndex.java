@@ -0,0 +1,260 @@
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * This class defines an in memory index from (department name, date) to the
+ * IDs of the available appointments, the answer of List all available
+ * appointments of a given department.  It is warmed with one query and kept
+ * correct by the triggers in create.sql, which NOTIFY appointment_change
+ * with the ID of every appointment whose status, date or doctor changed
+ * (or 'reload' when request_maintenance changed).  A listener thread
+ * re-reads just those appointments, so lookups never touch the database.
+ *
+ * The index is only as fresh as the last poll of the listener, by default
+ * 250ms.  Until it is warm, and after the listener loses its connection,
+ * ready() is false and callers should use the SQL query instead.
+ *
+ */
+
+public class AvailabilityIndex implements AutoCloseable {
+	static final String CHANNEL = "appointment_change";
+	static final String WARM_SQL = "select distinct R.dept_name, A.adate, A.appnt_ID from Appointment A, has_appointment H, request_maintenance R "
+		+ "where A.status = 'AV' and H.appt_id = A.appnt_ID and R.did = H.doctor_id";
+	static final String REFRESH_SQL = "select distinct R.dept_name, A.adate, A.appnt_ID from Appointment A, has_appointment H, request_maintenance R "
+		+ "where A.appnt_ID = any(?) and A.status = 'AV' and H.appt_id = A.appnt_ID and R.did = H.doctor_id";
+	static final String TRIGGERS_SQL = "select count(*) from pg_trigger where tgname in "
+		+ "('appointment_notify_change', 'has_appointment_notify_change', 'request_maintenance_notify_change')";
+	static final int[] EMPTY = new int[0];
+
+	/**
+	 * A (department name, date) pair.
+	 */
+	static final class Key {
+		final String dept;
+		final LocalDate date;
+
+		Key(String dept, LocalDate date) {
+			this.dept = dept;
+			this.date = date;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			return this.dept.equals(k.dept) && this.date.equals(k.date);
+		}
+
+		public int hashCode() {
+			return this.dept.hashCode() * 31 + this.date.hashCode();
+		}
+	}
+
+	private final ConnectionPool _pool;
+	private final long _pollMillis;
+
+	//sorted appointment IDs per key, each array is replaced rather than modified so readers need no lock
+	private volatile Map<Key, int[]> _slots = new ConcurrentHashMap<Key, int[]>();
+	//the keys each indexed appointment is listed under, used to remove it again
+	private Map<Integer, Set<Key>> _keysOf = new HashMap<Integer, Set<Key>>();
+	private volatile boolean _ready = false;
+	private volatile boolean _closed = false;
+	private Thread _listener = null;
+
+	/**
+	 * @param pool the pool the listener connection is opened from
+	 * @param pollMillis how often the listener checks for notifications
+	 */
+	public AvailabilityIndex(ConnectionPool pool, long pollMillis) {
+		this._pool = pool;
+		this._pollMillis = pollMillis;
+	}
+
+	/**
+	 * Checks the change triggers are installed, then starts the listener,
+	 * which warms the index before it handles any notification.
+	 *
+	 * @return false when the triggers are missing and the index cannot be kept correct
+	 * @throws java.sql.SQLException when the catalog cannot be read
+	 */
+	public boolean start() throws SQLException {
+		try (ConnectionPool.PooledConnection conn = this._pool.acquire();
+			 ResultSet rs = conn.prepare(TRIGGERS_SQL).executeQuery()) {
+			if (!rs.next() || rs.getInt(1) < 3) return false;
+		}
+		this._listener = new Thread(this::listen, "availability-index");
+		this._listener.setDaemon(true);
+		this._listener.start();
+		return true;
+	}
+
+	/**
+	 * @return true when lookups reflect the database
+	 */
+	public boolean ready() {
+		return this._ready;
+	}
+
+	/**
+	 * @param dept the department name
+	 * @param date the appointment date
+	 * @return the sorted IDs of the available appointments, do not modify
+	 */
+	public int[] lookup(String dept, LocalDate date) {
+		int[] ids = this._slots.get(new Key(dept, date));
+		return ids == null ? EMPTY : ids;
+	}
+
+	/**
+	 * Stops the listener thread.
+	 */
+	public void close() {
+		this._closed = true;
+		this._ready = false;
+		if (this._listener != null) this._listener.interrupt();
+	}
+
+	private void listen() {
+		while (!this._closed) {
+			try (Connection conn = this._pool.openDedicated()) {
+				try (Statement stmt = conn.createStatement()) {
+					//listen before warming so no change between the two is lost
+					stmt.execute("LISTEN " + CHANNEL);
+					warm(conn);
+					this._ready = true;
+					PGConnection pg = conn.unwrap(PGConnection.class);
+					while (!this._closed) {
+						//the driver only reads notifications when a query goes to the server
+						stmt.execute("select 1");
+						PGNotification[] notes = pg.getNotifications();
+						if (notes != null && notes.length > 0) apply(conn, notes);
+						Thread.sleep(this._pollMillis);
+					}
+				}
+			}catch (InterruptedException e) {
+				return;
+			}catch (SQLException e) {
+				this._ready = false;
+				System.err.println("availability index: " + e.getMessage() + ", reconnecting");
+				try {
+					Thread.sleep(Math.max(1000L, this._pollMillis));
+				}catch (InterruptedException ie) {
+					return;
+				}
+			}
+		}
+	}
+
+	private void warm(Connection conn) throws SQLException {
+		Map<Key, Set<Integer>> building = new HashMap<Key, Set<Integer>>();
+		Map<Integer, Set<Key>> keysOf = new HashMap<Integer, Set<Key>>();
+		conn.setAutoCommit(false);
+		try (Statement stmt = conn.createStatement()) {
+			stmt.setFetchSize(DBproject.FETCH_SIZE);
+			try (ResultSet rs = stmt.executeQuery(WARM_SQL)) {
+				while (rs.next()) {
+					Key key = new Key(rs.getString(1), rs.getDate(2).toLocalDate());
+					int id = rs.getInt(3);
+					building.computeIfAbsent(key, k -> new HashSet<Integer>()).add(id);
+					keysOf.computeIfAbsent(id, k -> new HashSet<Key>()).add(key);
+				}
+			}
+		}finally{
+			conn.commit();
+			conn.setAutoCommit(true);
+		}
+		Map<Key, int[]> slots = new ConcurrentHashMap<Key, int[]>();
+		for (Map.Entry<Key, Set<Integer>> e : building.entrySet())
+			slots.put(e.getKey(), toSortedArray(e.getValue()));
+		synchronized (this) {
+			this._keysOf = keysOf;
+			this._slots = slots;
+		}
+	}
+
+	/**
+	 * Re-reads the appointments named in the notifications and moves them to
+	 * the keys they belong to now.
+	 */
+	private void apply(Connection conn, PGNotification[] notes) throws SQLException {
+		Set<Integer> changed = new HashSet<Integer>();
+		for (PGNotification note : notes) {
+			if ("reload".equals(note.getParameter())) {
+				warm(conn);
+				return;
+			}
+			try {
+				changed.add(Integer.valueOf(note.getParameter()));
+			}catch (NumberFormatException e) {
+				// not one of ours, ignored.
+			}
+		}
+
+		if (changed.isEmpty()) return;
+		Map<Key, Set<Integer>> added = new HashMap<Key, Set<Integer>>();
+		try (PreparedStatement stmt = conn.prepareStatement(REFRESH_SQL)) {
+			Array ids = conn.createArrayOf("integer", changed.toArray());
+			stmt.setArray(1, ids);
+			try (ResultSet rs = stmt.executeQuery()) {
+				while (rs.next())
+					added.computeIfAbsent(new Key(rs.getString(1), rs.getDate(2).toLocalDate()), k -> new HashSet<Integer>()).add(rs.getInt(3));
+			}
+		}
+
+		synchronized (this) {
+			Map<Key, int[]> slots = this._slots;
+			//take the changed appointments out of every key they were under
+			Map<Key, Set<Integer>> removed = new HashMap<Key, Set<Integer>>();
+			for (Integer id : changed) {
+				Set<Key> keys = this._keysOf.remove(id);
+				if (keys == null) continue;
+				for (Key key : keys)
+					removed.computeIfAbsent(key, k -> new HashSet<Integer>()).add(id);
+			}
+			for (Map.Entry<Key, Set<Integer>> e : removed.entrySet()) {
+				Set<Integer> left = toSet(slots.get(e.getKey()));
+				left.removeAll(e.getValue());
+				if (left.isEmpty()) slots.remove(e.getKey());
+				else slots.put(e.getKey(), toSortedArray(left));
+			}
+			//and add them back under the keys they have now
+			for (Map.Entry<Key, Set<Integer>> e : added.entrySet()) {
+				Set<Integer> ids = toSet(slots.get(e.getKey()));
+				ids.addAll(e.getValue());
+				slots.put(e.getKey(), toSortedArray(ids));
+				for (Integer id : e.getValue())
+					this._keysOf.computeIfAbsent(id, k -> new HashSet<Key>()).add(e.getKey());
+			}
+		}
+	}
+
+	private static Set<Integer> toSet(int[] ids) {
+		Set<Integer> set = new HashSet<Integer>();
+		if (ids != null)
+			for (int id : ids)
+				set.add(id);
+		return set;
+	}
+
+	private static int[] toSortedArray(Set<Integer> ids) {
+		int[] array = new int[ids.size()];
+		int i = 0;
+		for (Integer id : ids)
+			array[i++] = id;
+		Arrays.sort(array);
+		return array;
+	}
+}
@@ -0,0 +1,178 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class defines the non interactive import of Doctors, Patients and
+ * Appointments.  Records are read one per line from a file or a pipe, in
+ * the same comma separated layout as the files in code/data, and sent as
+ * JDBC batches on one connection with a commit every few batches.
+ *
+ * A failing batch is rolled back to a savepoint and replayed row by row,
+ * so a bad record is reported with its line number and the rest of the
+ * batch still goes in.
+ *
+ */
+
+public class BatchImporter {
+	/**
+	 * The kinds of record that can be imported.
+	 */
+	public enum Kind {
+		DOCTOR(DBproject.ADD_DOCTOR_SQL, 4),
+		PATIENT(DBproject.ADD_PATIENT_SQL, 6),
+		APPOINTMENT(DBproject.ADD_APPOINTMENT_SQL, 4);
+
+		final String sql;
+		final int columns;
+
+		Kind(String sql, int columns) {
+			this.sql = sql;
+			this.columns = columns;
+		}
+
+		/**
+		 * Converts the fields of one record into the insert parameters.
+		 */
+		Object[] parse(String[] f) {
+			switch (this) {
+				case DOCTOR:
+					return new Object[] { Integer.valueOf(f[0]), f[1], f[2], Integer.valueOf(f[3]) };
+				case PATIENT:
+					return new Object[] { Integer.valueOf(f[0]), f[1], f[2], Integer.valueOf(f[3]), f[4], Integer.valueOf(f[5]) };
+				default:
+					return new Object[] { Integer.valueOf(f[0]), DBproject.parseDate(f[1]), f[2], f[3] };
+			}
+		}
+	}
+
+	private final ConnectionPool _pool;
+	private final Kind _kind;
+	private final int _batchSize;
+	private final int _commitEvery;
+
+	private long _inserted = 0;
+	private long _failed = 0;
+
+	/**
+	 * @param pool the pool the import connection is borrowed from
+	 * @param kind the kind of record in the input
+	 * @param batchSize the number of rows sent per JDBC batch
+	 * @param commitEvery the number of rows between two commits
+	 */
+	public BatchImporter(ConnectionPool pool, Kind kind, int batchSize, int commitEvery) {
+		this._pool = pool;
+		this._kind = kind;
+		this._batchSize = batchSize;
+		this._commitEvery = commitEvery;
+	}
+
+	/**
+	 * Imports every record of the input and prints a summary.  Errors of
+	 * single records go to standard error and do not stop the import.
+	 *
+	 * @param source a file name, or - for standard input
+	 * @throws java.sql.SQLException when the connection itself fails
+	 * @throws java.io.IOException when the input cannot be read
+	 */
+	public void run(String source) throws SQLException, IOException {
+		long start = System.nanoTime();
+		try (ConnectionPool.PooledConnection conn = this._pool.acquire();
+			 BufferedReader input = "-".equals(source)
+				? new BufferedReader(new InputStreamReader(System.in), 1 << 16)
+				: new BufferedReader(new FileReader(source), 1 << 16)) {
+			conn.connection().setAutoCommit(false);
+			PreparedStatement stmt = conn.prepare(this._kind.sql);
+
+			List<Object[]> rows = new ArrayList<Object[]>(this._batchSize);
+			List<Integer> lines = new ArrayList<Integer>(this._batchSize);
+			long sinceCommit = 0;
+			int lineNo = 0;
+			String line;
+			while ((line = input.readLine()) != null) {
+				++lineNo;
+				line = line.trim();
+				if (line.isEmpty()) continue;
+
+				Object[] params;
+				try {
+					String[] fields = line.split(",", -1);
+					if (fields.length != this._kind.columns)
+						throw new IllegalArgumentException("expected " + this._kind.columns + " fields, got " + fields.length);
+					params = this._kind.parse(fields);
+				}catch (RuntimeException e) {
+					reject(lineNo, e.getMessage());
+					continue;
+				}
+				rows.add(params);
+				lines.add(lineNo);
+				if (rows.size() < this._batchSize) continue;
+
+				sinceCommit += flush(conn.connection(), stmt, rows, lines);
+				if (sinceCommit >= this._commitEvery) {
+					conn.connection().commit();
+					sinceCommit = 0;
+				}
+			}
+			flush(conn.connection(), stmt, rows, lines);
+			conn.connection().commit();
+		}
+		double secs = (System.nanoTime() - start) / 1e9;
+		System.out.printf("imported %d %s row(s), %d rejected, in %.2f s (%.0f rows/s)%n",
+			this._inserted, this._kind.name().toLowerCase(), this._failed, secs, this._inserted / Math.max(secs, 1e-9));
+	}
+
+	/**
+	 * Sends the pending rows as one batch, replaying them one at a time if
+	 * the batch fails.
+	 *
+	 * @return the number of rows inserted
+	 */
+	private long flush(Connection conn, PreparedStatement stmt, List<Object[]> rows, List<Integer> lines) throws SQLException {
+		if (rows.isEmpty()) return 0;
+		long inserted = 0;
+		Savepoint batchStart = conn.setSavepoint();
+		try {
+			for (Object[] params : rows) {
+				DBproject.bind(stmt, params);
+				stmt.addBatch();
+			}
+			stmt.executeBatch();
+			inserted = rows.size();
+			conn.releaseSavepoint(batchStart);
+		}catch (BatchUpdateException e) {
+			stmt.clearBatch();
+			conn.rollback(batchStart);
+			//find the bad rows, keeping the good ones
+			for (int i = 0; i < rows.size(); ++i) {
+				Savepoint row = conn.setSavepoint();
+				try {
+					DBproject.bind(stmt, rows.get(i));
+					stmt.executeUpdate();
+					conn.releaseSavepoint(row);
+					++inserted;
+				}catch (SQLException rowError) {
+					conn.rollback(row);
+					reject(lines.get(i), rowError.getMessage());
+				}
+			}
+		}
+		this._inserted += inserted;
+		rows.clear();
+		lines.clear();
+		return inserted;
+	}
+
+	private void reject(int lineNo, String message) {
+		++this._failed;
+		System.err.println("line " + lineNo + ": " + message);
+	}
+}
@@ -0,0 +1,138 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class defines the contention benchmark of the booking engine.  It
+ * creates a doctor in the department of a given one, so booking the next
+ * available slot can only find the fixture, adds a set of fresh AV slots
+ * to it, lets many clients book them at the same time (half by appointment
+ * ID, half by next available slot), prints the bookings per second and
+ * then checks that no slot was handed out as AC more than once, both from
+ * the outcomes the clients saw and from the final status of each slot in
+ * the database.  The doctor, the slots and the patients it created are
+ * removed afterwards.
+ *
+ */
+
+public class BookingBenchmark {
+	private final DBproject _esql;
+	private final int _doctorId;
+	private final int _slots;
+	private final int _clients;
+	private final int _bookingsPerClient;
+	private final int _connections;
+
+	/**
+	 * @param esql the connected database
+	 * @param doctorId the doctor whose department the doctor of the run joins
+	 * @param slots the number of AV slots created for the run
+	 * @param clients the number of concurrent clients
+	 * @param bookingsPerClient the bookings each client makes
+	 * @param connections the size of the pool the clients share
+	 */
+	public BookingBenchmark(DBproject esql, int doctorId, int slots, int clients, int bookingsPerClient, int connections) {
+		this._esql = esql;
+		this._doctorId = doctorId;
+		this._slots = slots;
+		this._clients = clients;
+		this._bookingsPerClient = bookingsPerClient;
+		this._connections = connections;
+	}
+
+	/**
+	 * Runs the benchmark.
+	 *
+	 * @return true when no slot was double booked
+	 * @throws Exception when the fixture cannot be created or a booking fails
+	 */
+	public boolean run() throws Exception {
+		final int doctorId = this._esql.executeQueryAndReturnColumns("select coalesce(max(doctor_ID), 0) + 1 from Doctor").getInt(0, 0);
+		final int firstSlot = this._esql.executeQueryAndReturnColumns("select coalesce(max(appnt_ID), 0) + 1 from Appointment").getInt(0, 0);
+		final int lastSlot = firstSlot + this._slots - 1;
+		final int firstPatient = this._esql.executeQueryAndReturnColumns("select coalesce(max(patient_ID), 0) + 1 from Patient").getInt(0, 0);
+		if (this._esql.executeUpdate("insert into Doctor (doctor_ID, name, specialty, did) select ?, 'Bench Doctor', specialty, did from Doctor where doctor_ID = ?",
+			doctorId, this._doctorId) == 0) throw new IllegalArgumentException("Unknown doctor: " + this._doctorId);
+		this._esql.executeUpdate("insert into Appointment (appnt_ID, adate, time_slot, status) "
+			+ "select g, current_date + 1 + g % 30, (8 + g / 30 % 8) || ':00-' || (9 + g / 30 % 8) || ':00', 'AV' from generate_series(?::int, ?::int) g", firstSlot, lastSlot);
+		this._esql.executeUpdate("insert into has_appointment (appt_id, doctor_id) select g, ? from generate_series(?::int, ?::int) g",
+			doctorId, firstSlot, lastSlot);
+
+		ConnectionPool pool = this._esql.pool().withSize(this._connections);
+		ExecutorService clients = Executors.newFixedThreadPool(this._clients);
+		try {
+			final BookingEngine engine = new BookingEngine(pool);
+			//number of AC outcomes each slot produced
+			final AtomicIntegerArray active = new AtomicIntegerArray(this._slots);
+			//number of bookings per outcome, by ordinal
+			final AtomicLongArray outcomes = new AtomicLongArray(BookingEngine.Outcome.values().length);
+			//AC outcomes on an appointment that is not part of the fixture
+			final AtomicLong outside = new AtomicLong();
+
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			for (int c = 0; c < this._clients; ++c) {
+				final int client = c;
+				tasks.add(() -> {
+					Random random = new Random(client);
+					BookingEngine.Patient patient = new BookingEngine.Patient(firstPatient + client, "Bench Patient " + client, client % 2 == 0 ? "F" : "M", 30, "bench");
+					for (int i = 0; i < this._bookingsPerClient; ++i) {
+						BookingEngine.Booking booking = random.nextBoolean()
+							? engine.book(doctorId, firstSlot + random.nextInt(this._slots), patient)
+							: engine.bookNextAvailable(doctorId, patient);
+						outcomes.incrementAndGet(booking.outcome.ordinal());
+						if (booking.outcome != BookingEngine.Outcome.ACTIVE) continue;
+						if (booking.appointmentId < firstSlot || booking.appointmentId > lastSlot) outside.incrementAndGet();
+						else active.incrementAndGet(booking.appointmentId - firstSlot);
+					}
+					return null;
+				});
+			}
+
+			long start = System.nanoTime();
+			for (Future<Void> f : clients.invokeAll(tasks))
+				f.get();
+			double secs = (System.nanoTime() - start) / 1e9;
+			long total = (long) this._clients * this._bookingsPerClient;
+
+			int doubleBooked = 0;
+			int booked = 0;
+			for (int i = 0; i < this._slots; ++i) {
+				if (active.get(i) > 1) ++doubleBooked;
+				if (active.get(i) > 0) ++booked;
+			}
+			//every slot that was handed out must be AC or WL, every other one still AV
+			int taken = this._esql.executeQueryAndReturnColumns(
+				"select count(*) from Appointment where appnt_ID between ? and ? and status in ('AC', 'WL')", firstSlot, lastSlot).getInt(0, 0);
+
+			System.out.printf("%d client(s), %d booking(s) in %.2f s: %.0f bookings/s%n", this._clients, total, secs, total / secs);
+			StringBuilder counts = new StringBuilder();
+			for (BookingEngine.Outcome outcome : BookingEngine.Outcome.values())
+				counts.append(counts.length() == 0 ? "" : ", ").append(outcome).append(' ').append(outcomes.get(outcome.ordinal()));
+			System.out.printf("%s; slots booked %d, taken in the database %d of %d%n", counts, booked, taken, this._slots);
+			boolean ok = doubleBooked == 0 && taken == booked && outside.get() == 0;
+			System.out.println(ok ? "OK - no slot was double booked" : "FAILED - " + doubleBooked + " slot(s) double booked, " + taken + " taken vs " + booked + " booked, "
+				+ outside.get() + " booking(s) outside the fixture");
+			return ok;
+		}finally{
+			clients.shutdown();
+			pool.close();
+			cleanup(doctorId, firstSlot, lastSlot, firstPatient);
+		}
+	}
+
+	private void cleanup(int doctorId, int firstSlot, int lastSlot, int firstPatient) throws SQLException {
+		this._esql.executeUpdate("delete from searches where aid between ? and ?", firstSlot, lastSlot);
+		this._esql.executeUpdate("delete from has_appointment where appt_id between ? and ?", firstSlot, lastSlot);
+		this._esql.executeUpdate("delete from Appointment where appnt_ID between ? and ?", firstSlot, lastSlot);
+		this._esql.executeUpdate("delete from Patient where patient_ID >= ? and address = 'bench'", firstPatient);
+		this._esql.executeUpdate("delete from Doctor where doctor_ID = ?", doctorId);
+	}
+}
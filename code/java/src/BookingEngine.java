@@ -0,0 +1,313 @@
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+
+/**
+ * This class defines the booking engine behind Make an Appointment.  A
+ * booking runs as one short transaction on a pooled connection:
+ *
+ *   1. the appointment row of the doctor is locked with FOR UPDATE, or the
+ *      next free slot of the doctor is claimed with FOR UPDATE SKIP LOCKED,
+ *   2. its status moves AV to AC, or AC to WL when it is already taken
+ *      (WL stays WL, PA cannot be booked); AV to AC is refused when the
+ *      slot overlaps another booked appointment of the doctor that day,
+ *      see SlotConflicts,
+ *   3. the patient is added or gets number_of_appts incremented, and the
+ *      patient is linked to the appointment through searches(hid, pid, aid).
+ *
+ * Because the status is read and written under the row lock, two clients
+ * racing for the same slot can never both get it as AC.
+ *
+ * When a CapacityPlanner is current, AV to AC is also refused (FULL) when a
+ * department of the doctor has no room left in the hours of the slot.  A
+ * given appointment is checked before its row is locked, so a full
+ * department costs one read; claimed slots are checked once claimed, and
+ * skipped when full.
+ *
+ */
+
+public class BookingEngine {
+	/**
+	 * The result of a booking request.
+	 */
+	public enum Outcome {
+		ACTIVE, WAITLISTED, PAST, CONFLICT, FULL, NOT_FOUND
+	}
+
+	/**
+	 * The patient asking for the appointment.
+	 */
+	public static final class Patient {
+		final int id;
+		final String name;
+		final String gender;
+		final int age;
+		final String address;
+
+		public Patient(int id, String name, String gender, int age, String address) {
+			this.id = id;
+			this.name = name;
+			this.gender = gender;
+			this.age = age;
+			this.address = address;
+		}
+	}
+
+	/**
+	 * The appointment a booking ended on and the status it got.
+	 */
+	public static final class Booking {
+		public final Outcome outcome;
+		public final int appointmentId;
+		//the booked appointment the slot overlaps, for CONFLICT
+		public final SlotConflicts.Conflict conflict;
+		//true when the booking inserted the patient rather than counting one more appointment
+		public final boolean newPatient;
+
+		Booking(Outcome outcome, int appointmentId) {
+			this(outcome, appointmentId, null, false);
+		}
+
+		Booking(Outcome outcome, int appointmentId, SlotConflicts.Conflict conflict) {
+			this(outcome, appointmentId, conflict, false);
+		}
+
+		Booking(Outcome outcome, int appointmentId, boolean newPatient) {
+			this(outcome, appointmentId, null, newPatient);
+		}
+
+		private Booking(Outcome outcome, int appointmentId, SlotConflicts.Conflict conflict, boolean newPatient) {
+			this.outcome = outcome;
+			this.appointmentId = appointmentId;
+			this.conflict = conflict;
+			this.newPatient = newPatient;
+		}
+
+		public String toString() {
+			switch (this.outcome) {
+				case ACTIVE: return "Appointment " + this.appointmentId + " booked (AC)";
+				case WAITLISTED: return "Appointment " + this.appointmentId + " is taken, added to the waitlist (WL)";
+				case PAST: return "Appointment " + this.appointmentId + " is in the past (PA)";
+				case CONFLICT: return "Appointment " + this.appointmentId + " overlaps a booked appointment: " + this.conflict;
+				case FULL: return this.appointmentId < 0 ? "Every free slot of the doctor is in hours its department has no capacity left in"
+					: "Appointment " + this.appointmentId + " is in hours its department has no capacity left in";
+				default: return "No such appointment for this doctor";
+			}
+		}
+	}
+
+	//locks one appointment of the doctor and finds the hospital the doctor works at
+	static final String LOCK_SLOT_SQL = "select A.status, Dp.hid, A.adate, A.time_slot from Appointment A, has_appointment H, Doctor D, Department Dp "
+		+ "where A.appnt_ID = ? and H.appt_id = A.appnt_ID and H.doctor_id = ? and D.doctor_ID = H.doctor_id and Dp.dept_ID = D.did "
+		+ "for update of A";
+	//reads the appointment of the doctor without locking it, for the capacity check
+	static final String PEEK_SLOT_SQL = "select A.status, A.adate, A.time_slot from Appointment A, has_appointment H "
+		+ "where A.appnt_ID = ? and H.appt_id = A.appnt_ID and H.doctor_id = ?";
+	//claims the earliest available slot of the doctor after (adate, appnt_ID), skipping slots other bookings hold
+	static final String CLAIM_NEXT_SQL = "select A.appnt_ID, Dp.hid, A.adate, A.time_slot from Appointment A, has_appointment H, Doctor D, Department Dp "
+		+ "where H.doctor_id = ? and A.appnt_ID = H.appt_id and A.status = 'AV' and A.adate >= current_date "
+		+ "and (A.adate, A.appnt_ID) > (?, ?) and D.doctor_ID = H.doctor_id and Dp.dept_ID = D.did "
+		+ "order by A.adate, A.appnt_ID limit 1 for update of A skip locked";
+	static final String SET_STATUS_SQL = "update Appointment set status = ? where appnt_ID = ?";
+	static final String UPSERT_PATIENT_SQL = "insert into Patient (patient_ID, name, gtype, age, address, number_of_appts) values (?, ?, ?, ?, ?, 1) "
+		+ "on conflict (patient_ID) do update set number_of_appts = coalesce(Patient.number_of_appts, 0) + 1 "
+		+ "returning (xmax = 0)";
+	static final String LINK_PATIENT_SQL = "insert into searches (hid, pid, aid) values (?, ?, ?) on conflict do nothing";
+
+	private final ConnectionPool _pool;
+	private final CapacityPlanner _capacity;
+
+	/**
+	 * @param pool the pool bookings borrow their connection from
+	 */
+	public BookingEngine(ConnectionPool pool) {
+		this(pool, null);
+	}
+
+	/**
+	 * @param pool the pool bookings borrow their connection from
+	 * @param capacity the department capacity bookings are checked against while it is current, may be null
+	 */
+	public BookingEngine(ConnectionPool pool, CapacityPlanner capacity) {
+		this._pool = pool;
+		this._capacity = capacity;
+	}
+
+	/**
+	 * Books the given appointment of the doctor for the patient.
+	 *
+	 * @param doctorId the doctor the appointment belongs to
+	 * @param appointmentId the appointment asked for
+	 * @param patient the patient booking it
+	 * @return the outcome of the booking
+	 * @throws java.sql.SQLException when the transaction fails
+	 */
+	public Booking book(int doctorId, int appointmentId, Patient patient) throws SQLException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			Booking booking = lockAndBook(doctorId, appointmentId, patient);
+			failed = false;
+			return booking;
+		}finally{
+			Metrics.record(LOCK_SLOT_SQL, new Object[] { appointmentId, doctorId }, System.nanoTime() - start, 1, 0, failed);
+		}
+	}
+
+	private Booking lockAndBook(int doctorId, int appointmentId, Patient patient) throws SQLException {
+		CapacityPlanner.Counted reservation = null;
+		boolean booked = false;
+		try (ConnectionPool.PooledConnection conn = this._pool.acquire()) {
+			if (this._capacity != null && this._capacity.ready()) {
+				PreparedStatement peek = conn.prepare(PEEK_SLOT_SQL);
+				peek.setInt(1, appointmentId);
+				peek.setInt(2, doctorId);
+				try (ResultSet rs = peek.executeQuery()) {
+					if (rs.next() && "AV".equals(rs.getString(1))) {
+						reservation = this._capacity.reserve(appointmentId, doctorId, rs.getDate(2).toLocalDate(), rs.getString(3));
+						if (reservation == null) return new Booking(Outcome.FULL, appointmentId);
+					}
+				}
+			}
+			conn.connection().setAutoCommit(false);
+			PreparedStatement lock = conn.prepare(LOCK_SLOT_SQL);
+			lock.setInt(1, appointmentId);
+			lock.setInt(2, doctorId);
+			String status;
+			int hid;
+			Date adate;
+			String slot;
+			try (ResultSet rs = lock.executeQuery()) {
+				if (!rs.next()) return new Booking(Outcome.NOT_FOUND, appointmentId);
+				status = rs.getString(1);
+				hid = rs.getInt(2);
+				adate = rs.getDate(3);
+				slot = rs.getString(4);
+			}
+
+			Outcome outcome;
+			if ("PA".equals(status)) return new Booking(Outcome.PAST, appointmentId);
+			else if ("AV".equals(status)) outcome = Outcome.ACTIVE;
+			else outcome = Outcome.WAITLISTED;
+			if (outcome == Outcome.ACTIVE) {
+				//the slot was not available when it was read, so it was not checked yet
+				if (reservation == null && this._capacity != null) {
+					reservation = this._capacity.reserve(appointmentId, doctorId, adate.toLocalDate(), slot);
+					if (reservation == null) return new Booking(Outcome.FULL, appointmentId);
+				}
+				SlotConflicts.Conflict conflict = conflict(conn, doctorId, appointmentId, adate, slot);
+				if (conflict != null) return new Booking(Outcome.CONFLICT, appointmentId, conflict);
+			}
+
+			if (!"WL".equals(status)) setStatus(conn, appointmentId, outcome == Outcome.ACTIVE ? "AC" : "WL");
+			boolean newPatient = linkPatient(conn, hid, appointmentId, patient);
+			conn.connection().commit();
+			booked = outcome == Outcome.ACTIVE;
+			return new Booking(outcome, appointmentId, newPatient);
+		}finally{
+			if (!booked && reservation != null) this._capacity.release(appointmentId, reservation);
+		}
+	}
+
+	/**
+	 * Books the earliest available slot of the doctor for the patient.
+	 * Slots locked by concurrent bookings are skipped rather than waited on,
+	 * and so are slots overlapping a booked appointment of the doctor or in
+	 * hours a department of the doctor is full.
+	 *
+	 * @param doctorId the doctor to book
+	 * @param patient the patient booking it
+	 * @return the outcome, NOT_FOUND when the doctor has no free slot, FULL when every free slot is in full hours
+	 * @throws java.sql.SQLException when the transaction fails
+	 */
+	public Booking bookNextAvailable(int doctorId, Patient patient) throws SQLException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			Booking booking = claimAndBook(doctorId, patient);
+			failed = false;
+			return booking;
+		}finally{
+			Metrics.record(CLAIM_NEXT_SQL, new Object[] { doctorId }, System.nanoTime() - start, 1, 0, failed);
+		}
+	}
+
+	private Booking claimAndBook(int doctorId, Patient patient) throws SQLException {
+		CapacityPlanner.Counted reservation = null;
+		int appointmentId = -1;
+		boolean booked = false;
+		//a free slot was skipped for lack of capacity
+		boolean full = false;
+		try (ConnectionPool.PooledConnection conn = this._pool.acquire()) {
+			conn.connection().setAutoCommit(false);
+			PreparedStatement claim = conn.prepare(CLAIM_NEXT_SQL);
+			claim.setInt(1, doctorId);
+			Date afterDate = Date.valueOf(LocalDate.of(1, 1, 1));
+			int afterId = Integer.MIN_VALUE;
+			int hid;
+			while (true) {
+				claim.setDate(2, afterDate);
+				claim.setInt(3, afterId);
+				String slot;
+				try (ResultSet rs = claim.executeQuery()) {
+					if (!rs.next()) return new Booking(full ? Outcome.FULL : Outcome.NOT_FOUND, -1);
+					appointmentId = rs.getInt(1);
+					hid = rs.getInt(2);
+					afterDate = rs.getDate(3);
+					slot = rs.getString(4);
+				}
+				afterId = appointmentId;
+				if (this._capacity != null) {
+					reservation = this._capacity.reserve(appointmentId, doctorId, afterDate.toLocalDate(), slot);
+					if (reservation == null) {
+						full = true;
+						continue;
+					}
+				}
+				//the days are locked in date order, so two claims never wait on each other
+				if (conflict(conn, doctorId, appointmentId, afterDate, slot) == null) break;
+				if (reservation != null) this._capacity.release(appointmentId, reservation);
+				reservation = null;
+			}
+			setStatus(conn, appointmentId, "AC");
+			boolean newPatient = linkPatient(conn, hid, appointmentId, patient);
+			conn.connection().commit();
+			booked = true;
+			return new Booking(Outcome.ACTIVE, appointmentId, newPatient);
+		}finally{
+			if (!booked && reservation != null) this._capacity.release(appointmentId, reservation);
+		}
+	}
+
+	//a slot that cannot be read is not checked, the audit reports it
+	private static SlotConflicts.Conflict conflict(ConnectionPool.PooledConnection conn, int doctorId, int appointmentId, Date adate, String slot) throws SQLException {
+		TimeSlot parsed = TimeSlot.tryParse(slot);
+		return parsed == null ? null : SlotConflicts.checkDoctor(conn, doctorId, adate, parsed, true, appointmentId);
+	}
+
+	private static void setStatus(ConnectionPool.PooledConnection conn, int appointmentId, String status) throws SQLException {
+		PreparedStatement stmt = conn.prepare(SET_STATUS_SQL);
+		stmt.setString(1, status);
+		stmt.setInt(2, appointmentId);
+		stmt.executeUpdate();
+	}
+
+	//returns whether the patient was inserted, xmax is 0 only on a row version the upsert did not update
+	private static boolean linkPatient(ConnectionPool.PooledConnection conn, int hid, int appointmentId, Patient patient) throws SQLException {
+		PreparedStatement upsert = conn.prepare(UPSERT_PATIENT_SQL);
+		DBproject.bind(upsert, new Object[] { patient.id, patient.name, patient.gender, patient.age, patient.address });
+		boolean inserted;
+		try (ResultSet rs = upsert.executeQuery()) {
+			inserted = rs.next() && rs.getBoolean(1);
+		}
+
+		PreparedStatement link = conn.prepare(LINK_PATIENT_SQL);
+		link.setInt(1, hid);
+		link.setInt(2, patient.id);
+		link.setInt(3, appointmentId);
+		link.executeUpdate();
+		return inserted;
+	}
+}
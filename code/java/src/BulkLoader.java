@@ -0,0 +1,297 @@
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+/**
+ * This class defines the client side bulk loader for the files in code/data.
+ * Every file is streamed as is through COPY ... FROM STDIN, so the files do
+ * not have to sit on the database host.  A table starts loading as soon as
+ * the tables it references are done, so independent tables load in parallel
+ * (Hospital, Patient and Appointment first, then Department, Staff and
+ * searches, and so on).
+ *
+ * With deferConstraints the primary keys, foreign keys and indexes of the
+ * ten tables are dropped first, every table loads at once, and they are
+ * recreated when the data is in.  They are recreated even when a table
+ * fails to load, and the statements are saved to a file before anything is
+ * dropped; the file is removed once every statement has run, and otherwise
+ * names what is still missing.
+ *
+ */
+
+public class BulkLoader {
+	/**
+	 * A table of the schema with its data file and the tables it references.
+	 */
+	static final class Table {
+		final String name;
+		final String file;
+		final String columns;
+		final String[] references;
+
+		Table(String name, String file, String columns, String... references) {
+			this.name = name;
+			this.file = file;
+			this.columns = columns;
+			this.references = references;
+		}
+	}
+
+	//the ten tables of create.sql, with the column lists used there
+	static final Table[] TABLES = {
+		new Table("Hospital", "hospital.csv", "hospital_ID, name"),
+		new Table("Patient", "patient.csv", "patient_ID, name, gtype, age, address, number_of_appts"),
+		new Table("Appointment", "appointment.csv", "appnt_ID, adate, time_slot, status"),
+		new Table("Department", "department.csv", "dept_ID, name, hid", "Hospital"),
+		new Table("Staff", "staff.csv", "staff_ID, name, hid", "Hospital"),
+		new Table("Doctor", "doctor.csv", "doctor_ID, name, specialty, did", "Department"),
+		new Table("request_maintenance", "request_maintenance.csv", "patient_per_hour, dept_name, time_slot, did, sid", "Doctor", "Staff"),
+		new Table("searches", "searches.csv", "hid, pid, aid", "Hospital", "Patient", "Appointment"),
+		new Table("schedules", "schedules.csv", "appt_id, staff_id", "Appointment", "Staff"),
+		new Table("has_appointment", "has_appointment.csv", "appt_id, doctor_id", "Appointment", "Doctor")
+	};
+
+	static final int COPY_BUFFER = 1 << 20;
+
+	private final ConnectionPool _pool;
+	private final File _dir;
+	private final int _threads;
+	private final boolean _deferConstraints;
+	private final boolean _truncate;
+
+	/**
+	 * @param pool the pool the load connections are opened from
+	 * @param dir the directory holding the ten csv files
+	 * @param threads the number of tables loaded at the same time
+	 * @param deferConstraints drop keys and indexes during the load and recreate them afterwards
+	 * @param truncate empty the ten tables before loading
+	 */
+	public BulkLoader(ConnectionPool pool, File dir, int threads, boolean deferConstraints, boolean truncate) {
+		this._pool = pool;
+		this._dir = dir;
+		this._threads = threads;
+		this._deferConstraints = deferConstraints;
+		this._truncate = truncate;
+	}
+
+	/**
+	 * Loads every table and prints the rows and time of each.
+	 *
+	 * @throws java.sql.SQLException when a table or constraint fails to load
+	 */
+	public void load() throws SQLException {
+		long start = System.nanoTime();
+		List<String> dropped = new ArrayList<String>();
+		List<String> recreateFirst = new ArrayList<String>();
+		List<String> recreateLast = new ArrayList<String>();
+		File script = null;
+
+		try (Connection conn = this._pool.openDedicated()) {
+			if (this._truncate) {
+				StringBuilder names = new StringBuilder();
+				for (Table t : TABLES)
+					names.append(names.length() == 0 ? "" : ", ").append(t.name);
+				try (Statement stmt = conn.createStatement()) {
+					stmt.executeUpdate("TRUNCATE " + names + " CASCADE");
+				}
+			}
+			if (this._deferConstraints) {
+				captureConstraints(conn, dropped, recreateFirst, recreateLast);
+				script = saveScript(recreateFirst, recreateLast);
+				System.out.println("recreate statements saved to " + script);
+				//all or none are dropped
+				conn.setAutoCommit(false);
+				try (Statement stmt = conn.createStatement()) {
+					for (String sql : dropped)
+						stmt.executeUpdate(sql);
+				}
+				conn.commit();
+				System.out.println("dropped " + dropped.size() + " constraint(s) and index(es)");
+			}
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(this._threads);
+		SQLException failure = null;
+		try {
+			Map<String, CompletableFuture<Void>> done = new HashMap<String, CompletableFuture<Void>>();
+			for (final Table t : TABLES) {
+				//without constraints there is nothing to wait for
+				List<CompletableFuture<Void>> deps = new ArrayList<CompletableFuture<Void>>();
+				if (!this._deferConstraints)
+					for (String ref : t.references)
+						deps.add(done.get(ref));
+				CompletableFuture<Void> task = CompletableFuture.allOf(deps.toArray(new CompletableFuture<?>[0]))
+					.thenRunAsync(() -> loadTable(t), executor);
+				done.put(t.name, task);
+			}
+			CompletableFuture.allOf(done.values().toArray(new CompletableFuture<?>[0])).join();
+		}catch (CompletionException e) {
+			failure = e.getCause() instanceof SQLException ? (SQLException) e.getCause() : new SQLException(e.getCause().getMessage(), e.getCause());
+		}
+
+		try {
+			if (this._deferConstraints) {
+				//keys and plain indexes of different tables build in parallel, foreign keys need the keys
+				List<String> failed = runAll(recreateFirst, executor);
+				failed.addAll(runAll(recreateLast, executor));
+				if (failed.isEmpty()) {
+					System.out.println("recreated " + (recreateFirst.size() + recreateLast.size()) + " constraint(s) and index(es)");
+					script.delete();
+				}else{
+					for (String problem : failed)
+						System.err.println(problem);
+					System.err.println(failed.size() + " constraint(s) and index(es) are missing, the statements are in " + script);
+					if (failure == null) failure = new SQLException(failed.size() + " constraint(s) and index(es) could not be recreated, see " + script);
+				}
+			}
+			if (failure != null) throw failure;
+			try (Connection conn = this._pool.openDedicated(); Statement stmt = conn.createStatement()) {
+				//listeners such as the availability index re-read everything
+				stmt.execute("NOTIFY " + AvailabilityIndex.CHANNEL + ", 'reload'");
+			}
+			StatusCounters.reconcile(this._pool, false);
+			DoctorAppointments.rebuild(this._pool, false);
+		}finally{
+			executor.shutdown();
+		}
+		System.out.printf("loaded %d table(s) in %.1f s%n", TABLES.length, (System.nanoTime() - start) / 1e9);
+	}
+
+	private void loadTable(Table t) {
+		File file = new File(this._dir, t.file);
+		long start = System.nanoTime();
+		try (Connection conn = this._pool.openDedicated();
+			 InputStream data = new BufferedInputStream(new FileInputStream(file), COPY_BUFFER)) {
+			try (Statement stmt = conn.createStatement()) {
+				//the files use month/day/year dates
+				stmt.execute("SET DateStyle = 'ISO, MDY'");
+				//the triggers skip their per row work, one reload and a reconcile follow the load
+				stmt.execute("SET dbproject.bulk_load = 'on'");
+			}
+			CopyManager copy = conn.unwrap(PGConnection.class).getCopyAPI();
+			long rows = copy.copyIn("COPY " + t.name + " (" + t.columns + ") FROM STDIN WITH DELIMITER ','", data, COPY_BUFFER);
+			double secs = (System.nanoTime() - start) / 1e9;
+			System.out.printf("%-20s %10d row(s) %8.2f s %12.0f rows/s%n", t.name, rows, secs, rows / Math.max(secs, 1e-9));
+		}catch (Exception e) {
+			throw new CompletionException(new SQLException("Loading " + file + " failed: " + e.getMessage(), e));
+		}
+	}
+
+	/**
+	 * Runs the statements in parallel, each on its own, so one that fails
+	 * does not keep the others from running.
+	 *
+	 * @return the statements that failed, each with its error
+	 */
+	private List<String> runAll(List<String> statements, ExecutorService executor) {
+		final List<String> failed = Collections.synchronizedList(new ArrayList<String>());
+		List<CompletableFuture<Void>> tasks = new ArrayList<CompletableFuture<Void>>();
+		for (final String sql : statements) {
+			tasks.add(CompletableFuture.runAsync(() -> {
+				try (Connection conn = this._pool.openDedicated(); Statement stmt = conn.createStatement()) {
+					stmt.executeUpdate(sql);
+				}catch (SQLException e) {
+					failed.add(sql + ": " + e.getMessage());
+				}
+			}, executor));
+		}
+		CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).join();
+		return new ArrayList<String>(failed);
+	}
+
+	/**
+	 * Writes the statements that recreate the keys and indexes to a file,
+	 * keys and indexes before foreign keys, so they can be run by hand.
+	 */
+	private static File saveScript(List<String> recreateFirst, List<String> recreateLast) throws SQLException {
+		try {
+			File script = File.createTempFile("dbproject-recreate-", ".sql");
+			try (PrintWriter out = new PrintWriter(new FileWriter(script))) {
+				for (String sql : recreateFirst)
+					out.println(sql + ";");
+				for (String sql : recreateLast)
+					out.println(sql + ";");
+			}
+			return script;
+		}catch (IOException e) {
+			//nothing is dropped without a way back
+			throw new SQLException("Cannot save the recreate statements: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Reads the keys and indexes of the ten tables from the catalog and builds
+	 * the statements that drop them and the ones that recreate them.
+	 */
+	private static void captureConstraints(Connection conn, List<String> dropped, List<String> recreateFirst, List<String> recreateLast) throws SQLException {
+		List<String> dropKeys = new ArrayList<String>();
+		List<String> dropIndexes = new ArrayList<String>();
+		//foreign keys of other tables pointing at these ones have to go as well
+		String constraintSql = "select conrelid::regclass::text, conname, pg_get_constraintdef(oid), contype from pg_constraint "
+			+ "where (conrelid = ?::regclass and contype in ('p', 'u', 'f')) or (confrelid = ?::regclass and contype = 'f')";
+		Set<String> seen = new HashSet<String>();
+		String indexSql = "select c.relname, pg_get_indexdef(i.indexrelid) from pg_index i, pg_class c "
+			+ "where c.oid = i.indexrelid and i.indrelid = ?::regclass "
+			+ "and not exists (select * from pg_constraint k where k.conindid = i.indexrelid)";
+		try (PreparedStatement constraints = conn.prepareStatement(constraintSql);
+			 PreparedStatement indexes = conn.prepareStatement(indexSql)) {
+			for (Table t : TABLES) {
+				constraints.setString(1, t.name);
+				constraints.setString(2, t.name);
+				try (ResultSet rs = constraints.executeQuery()) {
+					while (rs.next()) {
+						String table = rs.getString(1);
+						String name = quote(rs.getString(2));
+						if (!seen.add(table + "." + name)) continue;
+						String add = "ALTER TABLE " + table + " ADD CONSTRAINT " + name + " " + rs.getString(3);
+						String drop = "ALTER TABLE " + table + " DROP CONSTRAINT " + name;
+						if ("f".equals(rs.getString(4))) {
+							//foreign keys go first, they depend on the referenced keys
+							dropped.add(drop);
+							recreateLast.add(add);
+						}else{
+							dropKeys.add(drop);
+							recreateFirst.add(add);
+						}
+					}
+				}
+				indexes.setString(1, t.name);
+				try (ResultSet rs = indexes.executeQuery()) {
+					while (rs.next()) {
+						dropIndexes.add("DROP INDEX " + quote(rs.getString(1)));
+						recreateFirst.add(rs.getString(2));
+					}
+				}
+			}
+		}
+		dropped.addAll(dropKeys);
+		dropped.addAll(dropIndexes);
+	}
+
+	private static String quote(String identifier) {
+		return "\"" + identifier.replace("\"", "\"\"") + "\"";
+	}
+}
@@ -0,0 +1,513 @@
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * This class defines the hourly capacity of the departments and the load
+ * booked against it.  Each request_maintenance row gives a department
+ * patient_per_hour patients an hour during its time_slot; the capacity of
+ * a department in an hour is the sum of its rows, the same every day.  An
+ * AC appointment is one patient spread evenly over its time slot, and
+ * counts in every department its doctors have a request_maintenance row
+ * in.  Load and capacity are kept in thousandths of a patient, so a
+ * 8:00-10:30 appointment puts 400 in the 8:00 and 9:00 hours and 200 in
+ * the 10:00 hour.  Doctors without a request_maintenance row have no limit.
+ *
+ * The counters are warmed with one query and kept current like the
+ * availability index, by re-reading the appointments named on the
+ * appointment_change channel.  Bookings and waitlist promotions made
+ * through this process go further: reserve() checks the hours of the
+ * appointment have room and counts it at once, under one monitor, so two
+ * bookings cannot both take the last place; release() takes the count
+ * back when the booking does not go through.  A reservation lasts until
+ * the change it makes is read back from the database.
+ *
+ * The report of the most overloaded departments works on one department
+ * per fork/join task.
+ *
+ */
+
+public class CapacityPlanner implements AutoCloseable {
+	static final String CAPACITY_SQL = "select dept_name, time_slot, patient_per_hour, did from request_maintenance";
+	static final String BOOKED_SQL = "select A.appnt_ID, A.adate, A.time_slot, H.doctor_id from Appointment A, has_appointment H "
+		+ "where A.status = 'AC' and H.appt_id = A.appnt_ID";
+	static final String REFRESH_SQL = "select A.appnt_ID, A.adate, A.time_slot, H.doctor_id from Appointment A, has_appointment H "
+		+ "where A.appnt_ID = any(?) and A.status = 'AC' and H.appt_id = A.appnt_ID";
+	//a patient, in the units of the counters
+	static final int UNIT = 1000;
+	//what reserve() returns when it lets a booking through without counting it
+	static final Counted NOT_COUNTED = new Counted(new int[0], 0, new TimeSlot(0, 1));
+
+	/**
+	 * One appointment counted against the departments.
+	 */
+	static final class Counted {
+		final int[] depts;
+		final int day;
+		final int firstHour;
+		//the share of the patient in each hour from firstHour on
+		final int[] units;
+
+		Counted(int[] depts, int day, TimeSlot slot) {
+			this.depts = depts;
+			this.day = day;
+			this.firstHour = slot.start / 60;
+			this.units = spread(slot);
+		}
+	}
+
+	private final ConnectionPool _pool;
+	private final long _pollMillis;
+
+	//department names, each department is an index into the arrays below
+	private String[] _depts = new String[0];
+	private int[][] _capacity = new int[0][];
+	//the departments of each doctor with a request_maintenance row
+	private Map<Integer, int[]> _deptsOf = new HashMap<Integer, int[]>();
+	//per department, the booked units of each hour of each day (epoch day)
+	private List<ConcurrentHashMap<Integer, AtomicIntegerArray>> _booked = new ArrayList<ConcurrentHashMap<Integer, AtomicIntegerArray>>();
+	private Map<Integer, Counted> _counted = new HashMap<Integer, Counted>();
+	//loaded at least once, and kept current by the listener
+	private volatile boolean _warm = false;
+	private volatile boolean _ready = false;
+	private volatile boolean _closed = false;
+	private Thread _listener = null;
+	private final AtomicLong _reserved = new AtomicLong();
+	private final AtomicLong _refused = new AtomicLong();
+
+	/**
+	 * @param pool the pool the listener connection is opened from
+	 * @param pollMillis how often the listener checks for notifications
+	 */
+	public CapacityPlanner(ConnectionPool pool, long pollMillis) {
+		this._pool = pool;
+		this._pollMillis = pollMillis;
+	}
+
+	/**
+	 * Checks the change triggers are installed, then starts the listener,
+	 * which warms the counters before it handles any notification.
+	 *
+	 * @return false when the triggers are missing and the counters cannot be kept current
+	 * @throws java.sql.SQLException when the catalog cannot be read
+	 */
+	public boolean start() throws SQLException {
+		try (ConnectionPool.PooledConnection conn = this._pool.acquire();
+			 ResultSet rs = conn.prepare(AvailabilityIndex.TRIGGERS_SQL).executeQuery()) {
+			if (!rs.next() || rs.getInt(1) < 3) return false;
+		}
+		this._listener = new Thread(this::listen, "capacity-planner");
+		this._listener.setDaemon(true);
+		this._listener.start();
+		return true;
+	}
+
+	/**
+	 * Loads the counters once, for reports when the listener is not running.
+	 * The counters are not kept current, so bookings are not checked.
+	 */
+	public void load() throws SQLException {
+		long start = System.nanoTime();
+		try (ConnectionPool.PooledConnection conn = this._pool.acquire()) {
+			warm(conn.connection());
+		}finally{
+			Metrics.record(BOOKED_SQL, new Object[0], System.nanoTime() - start, this._counted.size(), 0, !this._warm);
+		}
+	}
+
+	/**
+	 * @return true when the counters reflect the database and bookings are checked
+	 */
+	public boolean ready() {
+		return this._ready;
+	}
+
+	/**
+	 * @return true when the counters have been loaded at least once
+	 */
+	public boolean warm() {
+		return this._warm;
+	}
+
+	/**
+	 * Counts the appointment against the departments of the doctor when
+	 * every hour of its slot has room, before it is booked.  An appointment
+	 * already counted, a slot that cannot be read or counters that are not
+	 * current let the booking go ahead without counting it.
+	 *
+	 * @return the reservation to hand to release(), null when a department
+	 *         of the doctor is full in an hour of the slot
+	 */
+	public synchronized Counted reserve(int appointmentId, int doctorId, LocalDate date, String slot) {
+		if (!this._ready || this._counted.containsKey(appointmentId)) return NOT_COUNTED;
+		int[] depts = this._deptsOf.get(doctorId);
+		TimeSlot parsed = TimeSlot.tryParse(slot);
+		if (depts == null || parsed == null) return NOT_COUNTED;
+		Counted counted = new Counted(depts, (int) date.toEpochDay(), parsed);
+		if (!fits(counted)) {
+			this._refused.incrementAndGet();
+			return null;
+		}
+		add(appointmentId, counted);
+		this._reserved.incrementAndGet();
+		return counted;
+	}
+
+	/**
+	 * Takes back the reservation of an appointment that was not booked,
+	 * unless the appointment has been read back from the database since.
+	 */
+	public synchronized void release(int appointmentId, Counted reservation) {
+		if (reservation != NOT_COUNTED && this._counted.get(appointmentId) == reservation) remove(appointmentId);
+	}
+
+	/**
+	 * Writes the departments with the most overloaded hours from from
+	 * (included) to to (excluded), then by their busiest hour: the capacity
+	 * of a day and the patients booked in patients, the share of the
+	 * capacity booked and the busiest hour, as a percentage of its capacity.
+	 *
+	 * @param limit the most departments written
+	 * @return the number of rows written to out, which is left to finish
+	 */
+	public int overloaded(LocalDate from, LocalDate to, int limit, ResultRenderer out) {
+		long start = System.nanoTime();
+		final int fromDay = (int) from.toEpochDay();
+		final int toDay = (int) to.toEpochDay();
+		final String[] depts;
+		final int[][] capacity;
+		final List<ConcurrentHashMap<Integer, AtomicIntegerArray>> booked;
+		synchronized (this) {
+			depts = this._depts;
+			capacity = this._capacity;
+			booked = this._booked;
+		}
+		//per department: overloaded hours, busiest hour per mille of its capacity, booked units, busiest day and hour
+		final long[][] rows = new long[depts.length][];
+		ForkJoinPool.commonPool().invoke(new SnapshotEngine.ForRange((lo, hi) -> {
+			for (int d = lo; d < hi; ++d)
+				rows[d] = departmentLoad(capacity[d], booked.get(d), fromDay, toDay);
+		}, 0, depts.length, 1));
+
+		Integer[] order = new Integer[depts.length];
+		for (int d = 0; d < order.length; ++d)
+			order[d] = d;
+		Arrays.sort(order, (a, b) -> rows[a][0] != rows[b][0] ? Long.compare(rows[b][0], rows[a][0])
+			: rows[a][1] != rows[b][1] ? Long.compare(rows[b][1], rows[a][1]) : depts[a].compareTo(depts[b]));
+
+		out.begin(new String[] { "dept_name", "capacity_per_day", "booked", "booked_pct", "peak_pct", "peak_date", "peak_hour", "overloaded_hours" },
+			new boolean[] { false, true, true, true, true, false, true, true });
+		String[] row = new String[8];
+		int days = Math.max(0, toDay - fromDay);
+		for (int i = 0; i < Math.min(limit, order.length); ++i) {
+			long[] r = rows[order[i]];
+			long perDay = 0;
+			for (int units : capacity[order[i]])
+				perDay += units;
+			row[0] = depts[order[i]];
+			row[1] = patients(perDay);
+			row[2] = patients(r[2]);
+			row[3] = perDay * days > 0 ? String.format("%.1f", 100.0 * r[2] / (perDay * days)) : null;
+			//an hour without capacity has no percentage
+			row[4] = r[1] < 0 || r[1] == Long.MAX_VALUE ? null : String.format("%.1f", r[1] / 10.0);
+			row[5] = r[3] < 0 ? null : LocalDate.ofEpochDay(r[3]).toString();
+			row[6] = r[3] < 0 ? null : Long.toString(r[4]);
+			row[7] = Long.toString(r[0]);
+			out.row(row);
+		}
+		int rowCount = Math.min(limit, order.length);
+		Metrics.record("capacity report", new Object[] { from, to, limit }, System.nanoTime() - start, rowCount, 0, false);
+		return rowCount;
+	}
+
+	/**
+	 * @return the size of the counters and how many bookings they let through or refused
+	 */
+	public String stats() {
+		int depts;
+		int counted;
+		synchronized (this) {
+			depts = this._depts.length;
+			counted = this._counted.size();
+		}
+		return String.format("capacity planner: %s, %d department(s), %d appointment(s) counted, %d reserved, %d refused%n",
+			this._ready ? "current" : this._warm ? "loaded" : "not loaded", depts, counted, this._reserved.get(), this._refused.get());
+	}
+
+	/**
+	 * Stops the listener thread.
+	 */
+	public void close() {
+		this._closed = true;
+		this._ready = false;
+		if (this._listener != null) this._listener.interrupt();
+	}
+
+	/**
+	 * The overloaded hours of one department over [fromDay, toDay): an hour
+	 * is overloaded when more is booked than its capacity, which includes
+	 * any booking in an hour without capacity.
+	 */
+	private static long[] departmentLoad(int[] capacity, Map<Integer, AtomicIntegerArray> booked, int fromDay, int toDay) {
+		long overloaded = 0;
+		long peak = -1;
+		long total = 0;
+		long peakDay = -1;
+		long peakHour = -1;
+		for (Map.Entry<Integer, AtomicIntegerArray> e : booked.entrySet()) {
+			int day = e.getKey();
+			if (day < fromDay || day >= toDay) continue;
+			AtomicIntegerArray hours = e.getValue();
+			for (int h = 0; h < 24; ++h) {
+				int units = hours.get(h);
+				if (units <= 0) continue;
+				total += units;
+				if (units > capacity[h]) ++overloaded;
+				//per mille of the capacity, an hour without capacity is past any other
+				long use = capacity[h] > 0 ? 1000L * units / capacity[h] : Long.MAX_VALUE;
+				if (use > peak || (use == peak && (day < peakDay || (day == peakDay && h < peakHour)))) {
+					peak = use;
+					peakDay = day;
+					peakHour = h;
+				}
+			}
+		}
+		return new long[] { overloaded, peak, total, peakDay, peakHour };
+	}
+
+	private boolean fits(Counted counted) {
+		for (int dept : counted.depts) {
+			AtomicIntegerArray hours = this._booked.get(dept).get(counted.day);
+			for (int i = 0; i < counted.units.length; ++i) {
+				int h = counted.firstHour + i;
+				if ((hours == null ? 0 : hours.get(h)) + counted.units[i] > this._capacity[dept][h]) return false;
+			}
+		}
+		return true;
+	}
+
+	private void add(int appointmentId, Counted counted) {
+		this._counted.put(appointmentId, counted);
+		for (int dept : counted.depts) {
+			AtomicIntegerArray hours = this._booked.get(dept).computeIfAbsent(counted.day, k -> new AtomicIntegerArray(24));
+			for (int i = 0; i < counted.units.length; ++i)
+				hours.addAndGet(counted.firstHour + i, counted.units[i]);
+		}
+	}
+
+	private void remove(int appointmentId) {
+		Counted counted = this._counted.remove(appointmentId);
+		if (counted == null) return;
+		for (int dept : counted.depts) {
+			AtomicIntegerArray hours = this._booked.get(dept).get(counted.day);
+			if (hours == null) continue;
+			for (int i = 0; i < counted.units.length; ++i)
+				hours.addAndGet(counted.firstHour + i, -counted.units[i]);
+		}
+	}
+
+	private void listen() {
+		while (!this._closed) {
+			try (Connection conn = this._pool.openDedicated()) {
+				try (Statement stmt = conn.createStatement()) {
+					//listen before warming so no change between the two is lost
+					stmt.execute("LISTEN " + AvailabilityIndex.CHANNEL);
+					warm(conn);
+					this._ready = true;
+					PGConnection pg = conn.unwrap(PGConnection.class);
+					while (!this._closed) {
+						//the driver only reads notifications when a query goes to the server
+						stmt.execute("select 1");
+						PGNotification[] notes = pg.getNotifications();
+						if (notes != null && notes.length > 0) apply(conn, notes);
+						Thread.sleep(this._pollMillis);
+					}
+				}
+			}catch (InterruptedException e) {
+				return;
+			}catch (SQLException e) {
+				this._ready = false;
+				System.err.println("capacity planner: " + e.getMessage() + ", reconnecting");
+				try {
+					Thread.sleep(Math.max(1000L, this._pollMillis));
+				}catch (InterruptedException ie) {
+					return;
+				}
+			}
+		}
+	}
+
+	private void warm(Connection conn) throws SQLException {
+		Map<String, Integer> index = new HashMap<String, Integer>();
+		List<String> depts = new ArrayList<String>();
+		List<int[]> capacity = new ArrayList<int[]>();
+		Map<Integer, Set<Integer>> deptsOf = new HashMap<Integer, Set<Integer>>();
+		Map<Integer, Counted> counted = new HashMap<Integer, Counted>();
+		conn.setAutoCommit(false);
+		try (Statement stmt = conn.createStatement()) {
+			stmt.setFetchSize(DBproject.FETCH_SIZE);
+			try (ResultSet rs = stmt.executeQuery(CAPACITY_SQL)) {
+				while (rs.next()) {
+					String dept = rs.getString(1);
+					Integer d = index.get(dept);
+					if (d == null) {
+						d = depts.size();
+						index.put(dept, d);
+						depts.add(dept);
+						capacity.add(new int[24]);
+					}
+					deptsOf.computeIfAbsent(rs.getInt(4), k -> new HashSet<Integer>()).add(d);
+					//a slot that cannot be read adds no capacity, the slot audit reports it
+					TimeSlot slot = TimeSlot.tryParse(rs.getString(2));
+					if (slot == null) continue;
+					int perHour = rs.getInt(3);
+					for (int h = slot.start / 60; h * 60 < slot.end; ++h)
+						capacity.get(d)[h] += perHour * UNIT * (Math.min(slot.end, h * 60 + 60) - Math.max(slot.start, h * 60)) / 60;
+				}
+			}
+			Map<Integer, int[]> deptArrays = toArrays(deptsOf);
+			try (ResultSet rs = stmt.executeQuery(BOOKED_SQL)) {
+				read(rs, deptArrays, counted);
+			}
+			List<ConcurrentHashMap<Integer, AtomicIntegerArray>> booked = new ArrayList<ConcurrentHashMap<Integer, AtomicIntegerArray>>();
+			for (int d = 0; d < depts.size(); ++d)
+				booked.add(new ConcurrentHashMap<Integer, AtomicIntegerArray>());
+			synchronized (this) {
+				this._depts = depts.toArray(new String[0]);
+				this._capacity = capacity.toArray(new int[0][]);
+				this._deptsOf = deptArrays;
+				this._booked = booked;
+				this._counted = new HashMap<Integer, Counted>();
+				for (Map.Entry<Integer, Counted> e : counted.entrySet())
+					add(e.getKey(), e.getValue());
+				this._warm = true;
+			}
+		}finally{
+			conn.commit();
+			conn.setAutoCommit(true);
+		}
+	}
+
+	/**
+	 * Re-reads the appointments named in the notifications and counts the
+	 * ones booked now in place of what was counted for them.
+	 */
+	private void apply(Connection conn, PGNotification[] notes) throws SQLException {
+		Set<Integer> changed = new HashSet<Integer>();
+		for (PGNotification note : notes) {
+			if ("reload".equals(note.getParameter())) {
+				warm(conn);
+				return;
+			}
+			try {
+				changed.add(Integer.valueOf(note.getParameter()));
+			}catch (NumberFormatException e) {
+				// not one of ours, ignored.
+			}
+		}
+
+		if (changed.isEmpty()) return;
+		Map<Integer, Counted> counted = new HashMap<Integer, Counted>();
+		Map<Integer, int[]> deptsOf;
+		synchronized (this) {
+			deptsOf = this._deptsOf;
+		}
+		try (PreparedStatement stmt = conn.prepareStatement(REFRESH_SQL)) {
+			Array ids = conn.createArrayOf("integer", changed.toArray());
+			stmt.setArray(1, ids);
+			try (ResultSet rs = stmt.executeQuery()) {
+				read(rs, deptsOf, counted);
+			}
+		}
+
+		synchronized (this) {
+			//a reload in between would have read these already
+			if (deptsOf != this._deptsOf) return;
+			for (Integer id : changed) {
+				remove(id);
+				Counted now = counted.get(id);
+				if (now != null) add(id, now);
+			}
+		}
+	}
+
+	/**
+	 * Reads (appnt_ID, adate, time_slot, doctor_id) rows into the counted
+	 * appointments, an appointment of several doctors in all their
+	 * departments.
+	 */
+	private static void read(ResultSet rs, Map<Integer, int[]> deptsOf, Map<Integer, Counted> counted) throws SQLException {
+		while (rs.next()) {
+			int[] depts = deptsOf.get(rs.getInt(4));
+			TimeSlot slot = TimeSlot.tryParse(rs.getString(3));
+			if (depts == null || slot == null) continue;
+			int id = rs.getInt(1);
+			Counted before = counted.get(id);
+			if (before != null) depts = union(before.depts, depts);
+			counted.put(id, new Counted(depts, (int) rs.getDate(2).toLocalDate().toEpochDay(), slot));
+		}
+	}
+
+	/**
+	 * The share of one patient in each hour of the slot, in units that add
+	 * up to exactly UNIT.
+	 */
+	static int[] spread(TimeSlot slot) {
+		int firstHour = slot.start / 60;
+		int[] units = new int[(slot.end - 1) / 60 - firstHour + 1];
+		int length = slot.end - slot.start;
+		for (int i = 0; i < units.length; ++i) {
+			int from = Math.max(slot.start, (firstHour + i) * 60) - slot.start;
+			int to = Math.min(slot.end, (firstHour + i + 1) * 60) - slot.start;
+			units[i] = (int) ((long) UNIT * to / length - (long) UNIT * from / length);
+		}
+		return units;
+	}
+
+	private static int[] union(int[] a, int[] b) {
+		Set<Integer> all = new HashSet<Integer>();
+		for (int x : a)
+			all.add(x);
+		for (int x : b)
+			all.add(x);
+		int[] union = new int[all.size()];
+		int i = 0;
+		for (Integer x : all)
+			union[i++] = x;
+		return union;
+	}
+
+	private static Map<Integer, int[]> toArrays(Map<Integer, Set<Integer>> sets) {
+		Map<Integer, int[]> arrays = new HashMap<Integer, int[]>();
+		for (Map.Entry<Integer, Set<Integer>> e : sets.entrySet()) {
+			int[] array = new int[e.getValue().size()];
+			int i = 0;
+			for (Integer x : e.getValue())
+				array[i++] = x;
+			arrays.put(e.getKey(), array);
+		}
+		return arrays;
+	}
+
+	private static String patients(long units) {
+		return String.format("%.1f", units / (double) UNIT);
+	}
+}
@@ -0,0 +1,437 @@
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class defines a query result stored column by column in typed
+ * arrays, the compact counterpart of executeQueryAndReturnResult.  Integer
+ * columns (the IDs, counts and ages of create.sql) are int[], bigint
+ * columns long[], dates epoch days in an int[].  Text columns start out
+ * dictionary encoded, one byte per value, which covers the _STATUS and
+ * _GENDER domains and the department names; a column with more than 255
+ * distinct values switches to an array of strings in which equal values
+ * share one String.  Everything else is kept as text.
+ *
+ * A row costs a few bytes per column instead of a String and a list slot
+ * per value, so large results put far less pressure on the collector.
+ * Values are read with the typed accessors, or through a Row view.  A
+ * result without rows has no columns.
+ *
+ */
+
+public class ColumnarResult implements DBproject.RowHandler {
+	/**
+	 * The storage of one column.
+	 */
+	static abstract class Column {
+		final String name;
+		final BitSet nulls = new BitSet();
+
+		Column(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Stores the value of the column in the current row of rs.
+		 *
+		 * @return the column to use from now on, this or a wider replacement
+		 */
+		abstract Column read(ResultSet rs, int col, int row) throws SQLException;
+
+		//bytes a value takes in the arrays, for the metrics
+		abstract int width();
+
+		abstract void grow(int capacity);
+
+		abstract String getString(int row);
+
+		abstract void trim(int rows);
+	}
+
+	static final class IntColumn extends Column {
+		int[] values = new int[16];
+
+		IntColumn(String name) {
+			super(name);
+		}
+
+		Column read(ResultSet rs, int col, int row) throws SQLException {
+			this.values[row] = rs.getInt(col);
+			if (rs.wasNull()) this.nulls.set(row);
+			return this;
+		}
+
+		int width() {
+			return 4;
+		}
+
+		void grow(int capacity) {
+			this.values = Arrays.copyOf(this.values, capacity);
+		}
+
+		String getString(int row) {
+			return this.nulls.get(row) ? null : Integer.toString(this.values[row]);
+		}
+
+		void trim(int rows) {
+			this.values = Arrays.copyOf(this.values, rows);
+		}
+	}
+
+	static final class LongColumn extends Column {
+		long[] values = new long[16];
+
+		LongColumn(String name) {
+			super(name);
+		}
+
+		Column read(ResultSet rs, int col, int row) throws SQLException {
+			this.values[row] = rs.getLong(col);
+			if (rs.wasNull()) this.nulls.set(row);
+			return this;
+		}
+
+		int width() {
+			return 8;
+		}
+
+		void grow(int capacity) {
+			this.values = Arrays.copyOf(this.values, capacity);
+		}
+
+		String getString(int row) {
+			return this.nulls.get(row) ? null : Long.toString(this.values[row]);
+		}
+
+		void trim(int rows) {
+			this.values = Arrays.copyOf(this.values, rows);
+		}
+	}
+
+	static final class DateColumn extends Column {
+		//days since 1970-01-01
+		int[] days = new int[16];
+
+		DateColumn(String name) {
+			super(name);
+		}
+
+		Column read(ResultSet rs, int col, int row) throws SQLException {
+			java.sql.Date d = rs.getDate(col);
+			if (d == null) this.nulls.set(row);
+			else this.days[row] = (int) d.toLocalDate().toEpochDay();
+			return this;
+		}
+
+		int width() {
+			return 4;
+		}
+
+		void grow(int capacity) {
+			this.days = Arrays.copyOf(this.days, capacity);
+		}
+
+		String getString(int row) {
+			return this.nulls.get(row) ? null : LocalDate.ofEpochDay(this.days[row]).toString();
+		}
+
+		void trim(int rows) {
+			this.days = Arrays.copyOf(this.days, rows);
+		}
+	}
+
+	/**
+	 * Text as one byte code per row into a dictionary of at most 255 values.
+	 */
+	static final class DictionaryColumn extends Column {
+		byte[] codes = new byte[16];
+		String[] dictionary = new String[8];
+		int size = 0;
+		final Map<String, Integer> index = new HashMap<String, Integer>();
+
+		DictionaryColumn(String name) {
+			super(name);
+		}
+
+		Column read(ResultSet rs, int col, int row) throws SQLException {
+			String value = rs.getString(col);
+			if (value == null) {
+				this.nulls.set(row);
+				return this;
+			}
+			Integer code = this.index.get(value);
+			if (code == null) {
+				if (this.size == 255) {
+					//too many distinct values to be worth a dictionary
+					StringColumn strings = new StringColumn(this.name, this.codes.length, true);
+					for (int i = 0; i < row; ++i)
+						strings.add(getString(i), i);
+					strings.add(value, row);
+					return strings;
+				}
+				if (this.size == this.dictionary.length) this.dictionary = Arrays.copyOf(this.dictionary, this.size * 2);
+				code = this.size;
+				this.dictionary[this.size++] = value;
+				this.index.put(value, code);
+			}
+			this.codes[row] = (byte) (int) code;
+			return this;
+		}
+
+		int width() {
+			return 1;
+		}
+
+		void grow(int capacity) {
+			this.codes = Arrays.copyOf(this.codes, capacity);
+		}
+
+		String getString(int row) {
+			return this.nulls.get(row) ? null : this.dictionary[this.codes[row] & 0xff];
+		}
+
+		void trim(int rows) {
+			this.codes = Arrays.copyOf(this.codes, rows);
+			this.dictionary = Arrays.copyOf(this.dictionary, this.size);
+		}
+	}
+
+	/**
+	 * Text as strings, equal values sharing one instance while the result is read.
+	 */
+	static final class StringColumn extends Column {
+		String[] values;
+		Map<String, String> shared = new HashMap<String, String>();
+		final boolean dedup;
+
+		StringColumn(String name, int capacity, boolean dedup) {
+			super(name);
+			this.values = new String[capacity];
+			this.dedup = dedup;
+		}
+
+		Column read(ResultSet rs, int col, int row) throws SQLException {
+			add(rs.getString(col), row);
+			return this;
+		}
+
+		int width() {
+			//the reference, the strings themselves are shared or counted once
+			return 8;
+		}
+
+		void add(String value, int row) {
+			if (value == null) {
+				this.nulls.set(row);
+				return;
+			}
+			if (this.dedup) {
+				String prior = this.shared.putIfAbsent(value, value);
+				if (prior != null) value = prior;
+			}
+			this.values[row] = value;
+		}
+
+		void grow(int capacity) {
+			this.values = Arrays.copyOf(this.values, capacity);
+		}
+
+		String getString(int row) {
+			return this.values[row];
+		}
+
+		void trim(int rows) {
+			this.values = Arrays.copyOf(this.values, rows);
+			this.shared = null;
+		}
+	}
+
+	/**
+	 * One row of the result, read through the typed accessors of the result.
+	 */
+	public final class Row {
+		private final int _row;
+
+		private Row(int row) {
+			this._row = row;
+		}
+
+		public int index() {
+			return this._row;
+		}
+
+		public boolean isNull(int col) {
+			return ColumnarResult.this.isNull(this._row, col);
+		}
+
+		public int getInt(int col) {
+			return ColumnarResult.this.getInt(this._row, col);
+		}
+
+		public long getLong(int col) {
+			return ColumnarResult.this.getLong(this._row, col);
+		}
+
+		public LocalDate getDate(int col) {
+			return ColumnarResult.this.getDate(this._row, col);
+		}
+
+		public String getString(int col) {
+			return ColumnarResult.this.getString(this._row, col);
+		}
+
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			for (int col = 0; col < columnCount(); ++col) {
+				if (col > 0) sb.append('\t');
+				sb.append(getString(col));
+			}
+			return sb.toString();
+		}
+	}
+
+	private Column[] _columns = new Column[0];
+	private int _rowCount = 0;
+	private int _capacity = 16;
+
+	/**
+	 * Adds the current row of the result set, reading the column types on
+	 * the first row.
+	 */
+	public void handle(ResultSet rs) throws SQLException {
+		if (this._rowCount == 0 && this._columns.length == 0) start(rs.getMetaData());
+		if (this._rowCount == this._capacity) {
+			this._capacity *= 2;
+			for (Column c : this._columns)
+				c.grow(this._capacity);
+		}
+		long bytes = 0;
+		for (int i = 0; i < this._columns.length; ++i) {
+			this._columns[i] = this._columns[i].read(rs, i + 1, this._rowCount);
+			bytes += this._columns[i].width();
+		}
+		Metrics.addBytes(bytes);
+		++this._rowCount;
+	}
+
+	/**
+	 * Releases the spare capacity once every row is in.
+	 *
+	 * @return this result
+	 */
+	ColumnarResult finish() {
+		for (Column c : this._columns)
+			c.trim(this._rowCount);
+		this._capacity = this._rowCount;
+		return this;
+	}
+
+	public int rowCount() {
+		return this._rowCount;
+	}
+
+	public int columnCount() {
+		return this._columns.length;
+	}
+
+	public String columnName(int col) {
+		return this._columns[col].name;
+	}
+
+	/**
+	 * @return the index of the column with the label, case insensitive, -1 when there is none
+	 */
+	public int findColumn(String name) {
+		for (int i = 0; i < this._columns.length; ++i)
+			if (this._columns[i].name.equalsIgnoreCase(name)) return i;
+		return -1;
+	}
+
+	public Row row(int row) {
+		checkRow(row);
+		return new Row(row);
+	}
+
+	public boolean isNull(int row, int col) {
+		checkRow(row);
+		return this._columns[col].nulls.get(row);
+	}
+
+	/**
+	 * @return the value, 0 for NULL
+	 * @throws java.lang.IllegalArgumentException when the column is not an integer column
+	 */
+	public int getInt(int row, int col) {
+		checkRow(row);
+		Column c = this._columns[col];
+		if (c instanceof IntColumn) return ((IntColumn) c).values[row];
+		if (c instanceof LongColumn) return Math.toIntExact(((LongColumn) c).values[row]);
+		throw new IllegalArgumentException("Column " + c.name + " is not an integer column");
+	}
+
+	/**
+	 * @return the value, 0 for NULL
+	 * @throws java.lang.IllegalArgumentException when the column is not an integer column
+	 */
+	public long getLong(int row, int col) {
+		checkRow(row);
+		Column c = this._columns[col];
+		if (c instanceof LongColumn) return ((LongColumn) c).values[row];
+		if (c instanceof IntColumn) return ((IntColumn) c).values[row];
+		throw new IllegalArgumentException("Column " + c.name + " is not an integer column");
+	}
+
+	/**
+	 * @return the value, null for NULL
+	 * @throws java.lang.IllegalArgumentException when the column is not a date column
+	 */
+	public LocalDate getDate(int row, int col) {
+		checkRow(row);
+		Column c = this._columns[col];
+		if (!(c instanceof DateColumn)) throw new IllegalArgumentException("Column " + c.name + " is not a date column");
+		return c.nulls.get(row) ? null : LocalDate.ofEpochDay(((DateColumn) c).days[row]);
+	}
+
+	/**
+	 * @return the value of any column as text, as getString of the driver would give it, null for NULL
+	 */
+	public String getString(int row, int col) {
+		checkRow(row);
+		return this._columns[col].getString(row);
+	}
+
+	private void checkRow(int row) {
+		if (row < 0 || row >= this._rowCount) throw new IndexOutOfBoundsException("Row " + row + " of " + this._rowCount);
+	}
+
+	private void start(ResultSetMetaData rsmd) throws SQLException {
+		int numCol = rsmd.getColumnCount();
+		this._columns = new Column[numCol];
+		for (int i = 0; i < numCol; ++i) {
+			String name = rsmd.getColumnName(i + 1);
+			switch (rsmd.getColumnType(i + 1)) {
+				case Types.TINYINT: case Types.SMALLINT: case Types.INTEGER:
+					this._columns[i] = new IntColumn(name);
+					break;
+				case Types.BIGINT:
+					this._columns[i] = new LongColumn(name);
+					break;
+				case Types.DATE:
+					this._columns[i] = new DateColumn(name);
+					break;
+				case Types.CHAR: case Types.VARCHAR: case Types.LONGVARCHAR:
+					this._columns[i] = new DictionaryColumn(name);
+					break;
+				default:
+					this._columns[i] = new StringColumn(name, this._capacity, false);
+					break;
+			}
+		}
+	}
+}
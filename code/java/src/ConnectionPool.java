@@ -0,0 +1,291 @@
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class defines a bounded pool of physical connections. Every pooled
+ * connection keeps its own cache of prepared statements keyed by SQL text,
+ * so repeated calls re-use the server side prepared statement instead of
+ * having Postgres parse and plan the query again.
+ *
+ */
+
+public class ConnectionPool implements AutoCloseable {
+	private final String _url;
+	private final Properties _props;
+	private final int _maxSize;
+	private final int _cacheSize;
+	private final long _acquireTimeoutMillis;
+
+	//idle connections older than this are validated before they are handed out
+	static final long VALIDATE_AFTER_MILLIS = Long.getLong("dbproject.pool.validate.ms", 1000L);
+	static final int VALIDATE_TIMEOUT_SECONDS = 5;
+	//stands in the idle queue for a slot freed by a discarded connection, the borrower taking it opens a new one
+	private static final Physical FREE_SLOT = new Physical(null, 0);
+
+	//idle connections, ready to be handed out
+	private final BlockingQueue<Physical> _idle;
+	//every connection this pool opened, used by close()
+	private final List<Physical> _all = new ArrayList<Physical>();
+	//slots in use: open connections, connections being opened and FREE_SLOT entries
+	private int _opened = 0;
+	private volatile boolean _closed = false;
+
+	/**
+	 * Creates an empty pool, connections are opened lazily up to maxSize.
+	 *
+	 * @param url the JDBC connection URL
+	 * @param props the driver properties (user, password, ...)
+	 * @param maxSize the maximum number of physical connections
+	 * @param cacheSize the number of prepared statements cached per connection
+	 * @param acquireTimeoutMillis how long acquire() waits for a free connection
+	 */
+	public ConnectionPool(String url, Properties props, int maxSize, int cacheSize, long acquireTimeoutMillis) {
+		this._url = url;
+		this._props = props;
+		this._maxSize = maxSize;
+		this._cacheSize = cacheSize;
+		this._acquireTimeoutMillis = acquireTimeoutMillis;
+		this._idle = new ArrayBlockingQueue<Physical>(maxSize);
+	}
+
+	/**
+	 * @param maxSize the maximum number of physical connections
+	 * @return a new, empty pool with the same settings and another size
+	 */
+	public ConnectionPool withSize(int maxSize) {
+		return new ConnectionPool(this._url, this._props, maxSize, this._cacheSize, this._acquireTimeoutMillis);
+	}
+
+	/**
+	 * Opens a connection outside the pool with the same URL and properties.
+	 * Used by long running tasks (listeners, loaders) that must not hold a
+	 * pooled connection.
+	 *
+	 * @return a new physical connection, owned by the caller
+	 * @throws java.sql.SQLException when the connection cannot be opened
+	 */
+	public Connection openDedicated() throws SQLException {
+		return DriverManager.getConnection(this._url, this._props);
+	}
+
+	/**
+	 * Borrows a connection, opening a new one if the pool is not full yet.
+	 * A connection idle for longer than -Ddbproject.pool.validate.ms (1000 ms)
+	 * is checked first, and replaced when it is broken.  Close the returned
+	 * object to hand the connection back.
+	 *
+	 * @return a pooled connection
+	 * @throws java.sql.SQLException when no connection is free before the timeout
+	 */
+	public PooledConnection acquire() throws SQLException {
+		if (this._closed) throw new SQLException("Connection pool is closed");
+		long deadline = System.currentTimeMillis() + this._acquireTimeoutMillis;
+		while (true) {
+			Physical conn = this._idle.poll();
+			if (conn == null) {
+				synchronized (this) {
+					if (this._opened < this._maxSize) {
+						this._opened++;
+						conn = FREE_SLOT;
+					}
+				}
+			}
+			if (conn == null) {
+				try {
+					conn = this._idle.poll(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+				}catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new SQLException("Interrupted while waiting for a connection");
+				}
+				if (conn == null) throw new SQLException("Timed out waiting for a connection (pool size " + this._maxSize + ")");
+			}
+			if (conn == FREE_SLOT) return new PooledConnection(open());
+			if (conn.usable()) return new PooledConnection(conn);
+			discard(conn);
+		}
+	}
+
+	/**
+	 * @return the maximum number of physical connections
+	 */
+	public int maxSize() {
+		return this._maxSize;
+	}
+
+	/**
+	 * Closes every connection opened by this pool.
+	 */
+	public void close() {
+		this._closed = true;
+		synchronized (this) {
+			for (Physical conn : this._all)
+				conn.closePhysical();
+			this._all.clear();
+		}
+		this._idle.clear();
+	}
+
+	//opens a physical connection in a slot already counted in _opened
+	private Physical open() throws SQLException {
+		try {
+			Physical conn = new Physical(openDedicated(), this._cacheSize);
+			synchronized (this) {
+				this._all.add(conn);
+			}
+			return conn;
+		}catch (SQLException e) {
+			freeSlot();
+			throw e;
+		}
+	}
+
+	private void release(Physical conn) {
+		try {
+			//never hand out a connection in the middle of a transaction
+			if (!conn._connection.getAutoCommit()) {
+				conn._connection.rollback();
+				conn._connection.setAutoCommit(true);
+			}
+		}catch (SQLException e) {
+			discard(conn);
+			return;
+		}
+		conn._idleSince = System.currentTimeMillis();
+		if (this._closed || !this._idle.offer(conn)) discard(conn);
+	}
+
+	private void discard(Physical conn) {
+		boolean owned;
+		synchronized (this) {
+			owned = this._all.remove(conn);
+		}
+		conn.closePhysical();
+		if (owned) freeSlot();
+	}
+
+	//gives up a slot, and wakes a borrower waiting for an idle connection to open one in it
+	private void freeSlot() {
+		if (!this._closed && this._idle.offer(FREE_SLOT)) return;
+		synchronized (this) {
+			this._opened--;
+		}
+	}
+
+	/**
+	 * A connection borrowed from the pool.  Every acquire() returns a new
+	 * one, so closing it twice hands the physical connection back once.
+	 */
+	public class PooledConnection implements AutoCloseable {
+		private final Physical _physical;
+		private final AtomicBoolean _returned = new AtomicBoolean(false);
+
+		private PooledConnection(Physical physical) {
+			this._physical = physical;
+		}
+
+		/**
+		 * @return the underlying physical connection
+		 */
+		public Connection connection() {
+			return this._physical._connection;
+		}
+
+		/**
+		 * Returns the cached prepared statement for the SQL text, preparing it
+		 * on first use. The caller must not close the returned statement.
+		 *
+		 * @param sql the SQL text with ? placeholders
+		 * @return a prepared statement owned by this connection
+		 * @throws java.sql.SQLException when the statement cannot be prepared
+		 */
+		public PreparedStatement prepare(String sql) throws SQLException {
+			if (this._returned.get()) throw new SQLException("Connection already handed back to the pool");
+			return this._physical.prepare(sql);
+		}
+
+		/**
+		 * Hands the connection back to the pool, the first time only.
+		 */
+		public void close() {
+			if (this._returned.compareAndSet(false, true)) release(this._physical);
+		}
+	}
+
+	/**
+	 * A physical connection together with its statement cache.
+	 */
+	private static final class Physical {
+		private final Connection _connection;
+		private final Map<String, PreparedStatement> _statements;
+		private volatile long _idleSince = System.currentTimeMillis();
+
+		private Physical(Connection connection, final int cacheSize) {
+			this._connection = connection;
+			//access ordered map, the eldest entry is the least recently used statement
+			this._statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+					if (size() <= cacheSize) return false;
+					try {
+						eldest.getValue().close();
+					}catch (SQLException e) {
+						// ignored.
+					}
+					return true;
+				}
+			};
+		}
+
+		private PreparedStatement prepare(String sql) throws SQLException {
+			PreparedStatement stmt = this._statements.get(sql);
+			if (stmt == null || stmt.isClosed()) {
+				stmt = this._connection.prepareStatement(sql);
+				this._statements.put(sql, stmt);
+			}else{
+				stmt.clearParameters();
+			}
+			return stmt;
+		}
+
+		//a connection closed by the driver after an I/O error is dropped at once, a long idle one is asked
+		private boolean usable() {
+			try {
+				if (this._connection.isClosed()) return false;
+				if (System.currentTimeMillis() - this._idleSince < VALIDATE_AFTER_MILLIS) return true;
+				return this._connection.isValid(VALIDATE_TIMEOUT_SECONDS);
+			}catch (SQLException e) {
+				return false;
+			}
+		}
+
+		private void closePhysical() {
+			Iterator<PreparedStatement> it = this._statements.values().iterator();
+			while (it.hasNext()) {
+				try {
+					it.next().close();
+				}catch (SQLException e) {
+					// ignored.
+				}
+			}
+			this._statements.clear();
+			try {
+				this._connection.close();
+			}catch (SQLException e) {
+				// ignored.
+			}
+		}
+	}
+}
@@ -11,9 +11,8 @@
  */
 
 
-import java.sql.DriverManager;
 import java.sql.Connection;
-import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -21,8 +20,10 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.time.LocalDate;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Properties;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -31,154 +32,512 @@ import java.util.ArrayList;
  */
 
 public class DBproject{
-	//reference to physical database connection
-	private Connection _connection = null;
+	//pool of physical database connections, each with its own statement cache
+	private ConnectionPool _pool = null;
+	//sends read only reports to healthy replicas, everything else to _pool
+	private ReplicaRouter _router = null;
+	//transactional booking of appointments, shares the pool
+	private BookingEngine _bookings = null;
+	//the eight operations without their console prompts
+	private Operations _operations = null;
+	//recent report results, dropped when executeUpdate writes a table they read
+	private ResultCache _cache = null;
+	//queries run in the background on the pool, for the dashboard
+	private AsyncQueries _async = null;
+	//(department, date) -> available appointments, null when not running
+	private AvailabilityIndex _availability = null;
+	//expires past appointments and promotes the waitlist in the background
+	private StatusSweeper _sweeper = null;
+	//patient search, type-ahead trie and lookup log
+	private PatientSearch _patients = null;
+	//hourly department capacity and the load booked against it
+	private CapacityPlanner _capacity = null;
 	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
-	
+
+	//rows fetched per round trip by the streaming query methods
+	static final int FETCH_SIZE = Integer.getInteger("dbproject.fetch.size", 1000);
+	//rows per page of the paged reports
+	static final int PAGE_SIZE = Integer.getInteger("dbproject.page.size", 50);
+
+	//operation names the metrics use for menu options 1 to 8 and 10 to 12
+	static final String[] MENU_OPERATIONS = { null, "AddDoctor", "AddPatient", "AddAppointment", "MakeAppointment",
+		"ListAppointmentsOfDoctor", "ListAvailableAppointmentsOfDepartment", "ListStatusNumberOfAppointmentsPerDoctor", "FindPatientsCountWithStatus",
+		null, "Dashboard", "SearchPatients", "DepartmentCapacity" };
+
+	//menu statements, shared by every caller so the statement cache can re-use them
+	static final String ADD_DOCTOR_SQL = "insert into Doctor (doctor_ID, name, specialty, did) values (?, ?, ?, ?)";
+	static final String ADD_PATIENT_SQL = "insert into Patient (patient_ID, name, gtype, age, address, number_of_appts) values (?, ?, ?, ?, ?, ?)";
+	static final String ADD_APPOINTMENT_SQL = "insert into Appointment (appnt_ID, adate, time_slot, status) values (?, ?, ?, ?)";
+	//report 5 pages through doctor_appointment in (adate, appnt_id) order, resuming after the last row of the previous page
+	static final String APPOINTMENTS_OF_DOCTOR_SQL = "select adate, appnt_id from doctor_appointment where doctor_id = ? "
+		+ "and (doctor_id, adate, appnt_id) > (?, ?, ?) and adate >= ? and adate < ? and status in ('AC', 'AV') "
+		+ "order by adate, appnt_id limit ?";
+	static final String AVAILABLE_OF_DEPARTMENT_SQL = "select A.appnt_ID from Appointment A, request_maintenance R, has_appointment H where R.dept_name = ? "
+		+ "and R.did = H.doctor_id and H.appt_id = A.appnt_ID and A.status = 'AV' and A.adate = ? group by A.appnt_ID";
+	//reports 7 and 8 read the per doctor counters kept by the triggers of create.sql
+	static final String STATUS_PER_DOCTOR_SQL = "select D.name, nullif(C.status, '') as status, sum(C.cnt) as count from Doctor D, doctor_status_count C "
+		+ "where D.doctor_ID = C.doctor_id and C.cnt > 0 group by D.name, C.status order by sum(C.cnt) desc";
+	static final String PATIENTS_WITH_STATUS_SQL = "select D.name, sum(C.cnt) as count from Doctor D, doctor_status_count C "
+		+ "where D.doctor_ID = C.doctor_id and C.status = ? and C.cnt > 0 group by D.name";
+
 	public DBproject(String dbname, String dbport, String user, String passwd) throws SQLException {
 		System.out.print("Connecting to database...");
 		try{
 			// constructs the connection URL
 			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
 			System.out.println ("Connection URL: " + url + "\n");
-			
-			// obtain a physical connection
-	        this._connection = DriverManager.getConnection(url, user, passwd);
-	        System.out.println("Done");
+
+			Properties props = new Properties();
+			props.setProperty("user", user);
+			props.setProperty("password", passwd);
+			//use a named server side statement from the first execution on
+			props.setProperty("prepareThreshold", "1");
+			//send batched inserts as multi row inserts
+			props.setProperty("reWriteBatchedInserts", "true");
+
+			int poolSize = Integer.getInteger("dbproject.pool.size", 4);
+			int cacheSize = Integer.getInteger("dbproject.statement.cache", 64);
+			this._pool = new ConnectionPool(url, props, poolSize, cacheSize, 30000L);
+			//replicas as host:port[,host:port...], same database, user and password
+			this._router = new ReplicaRouter(this._pool, Long.getLong("dbproject.replica.max.lag.ms", 1000L),
+				Long.getLong("dbproject.replica.check.ms", 1000L));
+			for (String replica : System.getProperty("dbproject.replicas", "").split(",")) {
+				if (!replica.trim().isEmpty()) this._router.addReplica(replica.trim(), dbname, props, poolSize, cacheSize);
+			}
+			this._capacity = new CapacityPlanner(this._pool, Long.getLong("dbproject.capacity.poll", 250L));
+			this._bookings = new BookingEngine(this._pool, this._capacity);
+			this._cache = new ResultCache(Long.getLong("dbproject.cache.bytes", 16L << 20), Long.getLong("dbproject.cache.ttl.ms", 5000L));
+			this._operations = new Operations(this);
+			//more queries in flight than connections would only wait for the pool
+			this._async = new AsyncQueries(this._router, Integer.getInteger("dbproject.async.inflight", poolSize),
+				Integer.getInteger("dbproject.async.queue", 256));
+			this._patients = new PatientSearch(this, Integer.getInteger("dbproject.patient.trie.keep", 10),
+				Integer.getInteger("dbproject.patient.trie.depth", 16), Integer.getInteger("dbproject.patient.trie.nodes", 500000),
+				Integer.getInteger("dbproject.patient.log.queue", 10000), Integer.getInteger("dbproject.patient.log.batch", 100));
+			this._sweeper = new StatusSweeper(this._pool, this._cache, this._capacity, Integer.getInteger("dbproject.sweeper.batch", 500),
+				Long.getLong("dbproject.sweeper.pause.ms", 100L), Long.getLong("dbproject.sweeper.period.ms", 60000L));
+
+			// obtain a physical connection, this also checks the server is up
+			this._pool.acquire().close();
+			this._router.start();
+			System.out.println("Done");
 		}catch(Exception e){
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
-	        System.out.println("Make sure you started postgres on this machine");
-	        System.exit(-1);
+			System.out.println("Make sure you started postgres on this machine");
+			System.exit(-1);
 		}
 	}
-	
+
+	/**
+	 * @return the connection pool used by this object
+	 */
+	public ConnectionPool pool() {
+		return this._pool;
+	}
+
+	/**
+	 * @return the router of read only statements to the replicas
+	 */
+	public ReplicaRouter router() {
+		return this._router;
+	}
+
+	/**
+	 * @return the cache of report results
+	 */
+	public ResultCache cache() {
+		return this._cache;
+	}
+
+	/**
+	 * @return the booking engine used by Make an Appointment
+	 */
+	public BookingEngine bookings() {
+		return this._bookings;
+	}
+
+	/**
+	 * @return the operations shared by the menu and the server
+	 */
+	public Operations operations() {
+		return this._operations;
+	}
+
+	/**
+	 * @return the executor of background queries
+	 */
+	public AsyncQueries async() {
+		return this._async;
+	}
+
+	/**
+	 * Starts the availability index used by List all available appointments
+	 * of a given department, unless -Ddbproject.availability.index=false.
+	 * The SQL query stays in use when the change triggers are missing.
+	 */
+	public void startAvailabilityIndex() {
+		if (!Boolean.parseBoolean(System.getProperty("dbproject.availability.index", "true"))) return;
+		try {
+			AvailabilityIndex index = new AvailabilityIndex(this._pool, Long.getLong("dbproject.availability.poll", 250L));
+			if (index.start()) this._availability = index;
+			else System.out.println("Availability index disabled, the notify triggers of create.sql are missing");
+		}catch (SQLException e) {
+			System.err.println("Availability index disabled: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the availability index, or null when it is not running
+	 */
+	public AvailabilityIndex availability() {
+		return this._availability;
+	}
+
+	/**
+	 * Starts keeping the department capacity current, so bookings are
+	 * checked against it, unless -Ddbproject.capacity=false.
+	 */
+	public void startCapacityPlanner() {
+		if (!Boolean.parseBoolean(System.getProperty("dbproject.capacity", "true"))) return;
+		try {
+			if (!this._capacity.start()) System.out.println("Capacity check disabled, the notify triggers of create.sql are missing");
+		}catch (SQLException e) {
+			System.err.println("Capacity check disabled: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the department capacity planner, loaded on first use when it is not running
+	 */
+	public CapacityPlanner capacity() {
+		return this._capacity;
+	}
+
+	/**
+	 * Starts the periodic status sweep, unless -Ddbproject.sweeper=false.
+	 */
+	public void startSweeper() {
+		if (Boolean.parseBoolean(System.getProperty("dbproject.sweeper", "true"))) this._sweeper.start();
+	}
+
+	/**
+	 * @return the patient search
+	 */
+	public PatientSearch patients() {
+		return this._patients;
+	}
+
+	/**
+	 * @return the status sweeper, running or not
+	 */
+	public StatusSweeper sweeper() {
+		return this._sweeper;
+	}
+
+	/**
+	 * Binds the parameters to the statement in order. Values are passed
+	 * through setObject, so use Integer, String, java.sql.Date and so on.
+	 */
+	static void bind(PreparedStatement stmt, Object[] params) throws SQLException {
+		for (int i = 0; i < params.length; ++i)
+			stmt.setObject(i + 1, params[i]);
+	}
+
 	/**
 	 * Method to execute an update SQL statement.  Update SQL instructions
 	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
 	 * 
-	 * @param sql the input SQL string
+	 * @param sql the input SQL string, with ? placeholders for the parameters
+	 * @param params the values bound to the placeholders
+	 * @return the number of rows affected
 	 * @throws java.sql.SQLException when update failed
 	 * */
-	public void executeUpdate (String sql) throws SQLException { 
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
+	public int executeUpdate (String sql, Object... params) throws SQLException {
+		long start = System.nanoTime();
+		int rowCount = 0;
+		boolean failed = true;
+		try (ConnectionPool.PooledConnection conn = this._pool.acquire()) {
+			// fetches the cached statement object
+			PreparedStatement stmt = conn.prepare(sql);
+			bind(stmt, params);
+
+			// issues the update instruction
+			rowCount = stmt.executeUpdate ();
+			failed = false;
+			//cached results reading the written table are stale now
+			this._cache.written(sql);
+			return rowCount;
+		}finally{
+			Metrics.record(sql, params, System.nanoTime() - start, rowCount, 0, failed);
+		}
+	}//end executeUpdate
 
-		// issues the update instruction
-		stmt.executeUpdate (sql);
+	/**
+	 * Callback receiving the rows of a streamed query. The result set is
+	 * positioned on the current row; do not call next() on it.
+	 */
+	public interface RowHandler {
+		void handle(ResultSet rs) throws SQLException;
+	}
 
-		// close the instruction
-	    stmt.close ();
-	}//end executeUpdate
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT) through
+	 * a server side cursor.  Autocommit is turned off for the duration of the
+	 * query so the driver fetches fetchSize rows per round trip instead of
+	 * buffering the whole result, and each row is handed to the handler as
+	 * soon as its batch arrives.  Memory stays flat no matter the row count.
+	 *
+	 * @param query the input query string, with ? placeholders for the parameters
+	 * @param fetchSize the number of rows fetched per round trip
+	 * @param handler receives every row in order
+	 * @param params the values bound to the placeholders
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQueryStreaming (String query, int fetchSize, RowHandler handler, Object... params) throws SQLException {
+		return stream(false, query, fetchSize, handler, params);
+	}
+
+	/**
+	 * Same as executeQueryStreaming, but the query may run on a replica
+	 * (-Ddbproject.replicas) that is at most -Ddbproject.replica.max.lag.ms
+	 * behind the primary, so it can miss the latest writes.  Use it only for
+	 * reports, never to read back what was just written.
+	 */
+	public int executeReadOnlyStreaming (String query, int fetchSize, RowHandler handler, Object... params) throws SQLException {
+		return stream(true, query, fetchSize, handler, params);
+	}
+
+	/**
+	 * Same as executeReadOnlyStreaming using the configured fetch size.
+	 */
+	public int executeReadOnlyStreaming (String query, RowHandler handler, Object... params) throws SQLException {
+		return stream(true, query, FETCH_SIZE, handler, params);
+	}
+
+	/**
+	 * Same as executeReadOnlyStreaming into a renderer, answered from the
+	 * result cache when the same statement with the same parameters ran
+	 * less than the TTL of the current operation ago and no executeUpdate
+	 * has written a table it reads since.  On a miss within
+	 * -Ddbproject.replica.max.lag.ms of a write of a table it reads, the
+	 * statement runs on the primary, so a replica that has not replayed the
+	 * write yet does not fill the cache with the old rows.  The renderer is
+	 * not finished.
+	 *
+	 * @param query the input query string, with ? placeholders for the parameters
+	 * @param out receives the rows
+	 * @param params the values bound to the placeholders
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeCachedQuery (String query, final ResultRenderer out, Object... params) throws SQLException {
+		long ttl = this._cache.ttl(Metrics.operation());
+		if (ttl <= 0) return executeReadOnlyStreaming(query, out, params);
+
+		long start = System.nanoTime();
+		ResultCache.Entry hit = this._cache.get(query, params);
+		if (hit != null) {
+			int rowCount = hit.render(out);
+			Metrics.record("result cache hit", params, System.nanoTime() - start, rowCount, 0, false);
+			return rowCount;
+		}
+
+		final ResultCache.Builder builder = this._cache.builder(query, params);
+		if (builder == null) return executeReadOnlyStreaming(query, out, params);
+		//the rows are kept as they stream to the renderer
+		boolean primary = builder.writtenWithin(this._router.maxLagMillis());
+		int rowCount = stream(!primary, query, FETCH_SIZE, rs -> {
+			String[] values = builder.add(rs);
+			if (out.rowCount() == 0) out.begin(builder.columns(), builder.numeric());
+			long bytes = 0;
+			for (String value : values)
+				if (value != null) bytes += value.length();
+			Metrics.addBytes(bytes);
+			out.row(values);
+		}, params);
+		this._cache.put(builder, ttl);
+		return rowCount;
+	}
+
+	private int stream (boolean readOnly, String query, int fetchSize, RowHandler handler, Object... params) throws SQLException {
+		long start = System.nanoTime();
+		int rowCount = 0;
+		boolean failed = true;
+		Metrics.startBytes();
+		try (ConnectionPool.PooledConnection conn = readOnly ? this._router.acquireRead() : this._pool.acquire()) {
+			//the driver only uses a cursor inside a transaction
+			conn.connection().setAutoCommit(false);
+			PreparedStatement stmt = conn.prepare(query);
+			stmt.setFetchSize(fetchSize);
+			bind(stmt, params);
+
+			try (ResultSet rs = stmt.executeQuery ()) {
+				while (rs.next()){
+					handler.handle(rs);
+					++rowCount;
+				}//end while
+			}
+			conn.connection().commit();
+			failed = false;
+			return rowCount;
+		}finally{
+			Metrics.record(query, params, System.nanoTime() - start, rowCount, Metrics.bytes(), failed);
+		}
+	}
+
+	/**
+	 * Same as executeQueryStreaming using the configured fetch size
+	 * (-Ddbproject.fetch.size, 1000 rows by default).
+	 */
+	public int executeQueryStreaming (String query, RowHandler handler, Object... params) throws SQLException {
+		return executeQueryStreaming(query, FETCH_SIZE, handler, params);
+	}
 
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and outputs the results to
 	 * standard out.
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string, with ? placeholders for the parameters
+	 * @param params the values bound to the placeholders
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQueryAndPrintResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
-
-		/*
-		 *  obtains the metadata object for the returned result set.  The metadata
-		 *  contains row and column info.
-		 */
-		ResultSetMetaData rsmd = rs.getMetaData ();
-		int numCol = rsmd.getColumnCount ();
-		int rowCount = 0;
-		
-		//iterates through the result set and output them to standard out.
-		boolean outputHeader = true;
-		while (rs.next()){
-			if(outputHeader){
-				for(int i = 1; i <= numCol; i++){
-					System.out.print(rsmd.getColumnName(i) + "\t");
-			    }
-			    System.out.println();
-			    outputHeader = false;
+	public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+		return executeQueryStreaming(query, new RowHandler() {
+			//read from the metadata on the first row only
+			private int _numCol = -1;
+
+			public void handle(ResultSet rs) throws SQLException {
+				if (this._numCol < 0) {
+					/*
+					 *  obtains the metadata object for the returned result set.  The metadata
+					 *  contains row and column info.
+					 */
+					ResultSetMetaData rsmd = rs.getMetaData ();
+					this._numCol = rsmd.getColumnCount ();
+					for(int i = 1; i <= this._numCol; i++){
+						System.out.print(rsmd.getColumnName(i) + "\t");
+					}
+					System.out.println();
+				}
+				//outputs the current row to standard out.
+				long bytes = 0;
+				for (int i=1; i<=this._numCol; ++i) {
+					String value = rs.getString (i);
+					if (value != null) bytes += value.length();
+					System.out.print (value + "\t");
+				}
+				System.out.println ();
+				Metrics.addBytes(bytes);
 			}
-			for (int i=1; i<=numCol; ++i)
-				System.out.print (rs.getString (i) + "\t");
-			System.out.println ();
-			++rowCount;
-		}//end while
-		stmt.close ();
+		}, params);
+	}
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
+	 * method streams the results to standard out through a ResultRenderer in
+	 * the format set with -Ddbproject.output.format (table, tsv, csv, json)
+	 * and reports the rendering throughput.
+	 *
+	 * @param query the input query string, with ? placeholders for the parameters
+	 * @param params the values bound to the placeholders
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQueryAndRender (String query, Object... params) throws SQLException {
+		ResultRenderer renderer = stdoutRenderer();
+		executeQueryStreaming(query, renderer, params);
+		int rowCount = renderer.finish();
+		System.out.println (renderer.stats());
 		return rowCount;
 	}
-	
+
+	/**
+	 * @return a renderer writing to standard out in the format set with -Ddbproject.output.format
+	 */
+	static ResultRenderer stdoutRenderer() {
+		//the renderer writes around System.out, so flush what is already there
+		System.out.flush();
+		return ResultRenderer.toStdout(ResultRenderer.defaultFormat());
+	}
+
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and returns the results as
-	 * a list of records. Each record in turn is a list of attribute values
+	 * a list of records. Each record in turn is a list of attribute values.
+	 * Prefer executeQueryAndReturnColumns, or executeQueryStreaming, for
+	 * results that may be large.
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string, with ? placeholders for the parameters
+	 * @param params the values bound to the placeholders
 	 * @return the query result as a list of records
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-		//creates a statement object 
-		Statement stmt = this._connection.createStatement (); 
-		
-		//issues the query instruction 
-		ResultSet rs = stmt.executeQuery (query); 
-	 
-		/*
-		 * obtains the metadata object for the returned result set.  The metadata 
-		 * contains row and column info. 
-		*/ 
-		ResultSetMetaData rsmd = rs.getMetaData (); 
-		int numCol = rsmd.getColumnCount (); 
-		int rowCount = 0; 
-	 
-		//iterates through the result set and saves the data returned by the query. 
-		boolean outputHeader = false;
-		List<List<String>> result  = new ArrayList<List<String>>(); 
-		while (rs.next()){
-			List<String> record = new ArrayList<String>(); 
-			for (int i=1; i<=numCol; ++i) 
-				record.add(rs.getString (i)); 
-			result.add(record); 
-		}//end while 
-		stmt.close (); 
-		return result; 
+	public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+		//saves the data returned by the query.
+		final List<List<String>> result  = new ArrayList<List<String>>();
+		executeQueryStreaming(query, new RowHandler() {
+			//read from the metadata on the first row only
+			private int _numCol = -1;
+
+			public void handle(ResultSet rs) throws SQLException {
+				if (this._numCol < 0) this._numCol = rs.getMetaData ().getColumnCount ();
+				List<String> record = new ArrayList<String>(this._numCol);
+				long bytes = 0;
+				for (int i=1; i<=this._numCol; ++i) {
+					String value = rs.getString (i);
+					if (value != null) bytes += value.length();
+					record.add(value);
+				}
+				result.add(record);
+				Metrics.addBytes(bytes);
+			}
+		}, params);
+		return result;
 	}//end executeQueryAndReturnResult
-	
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
+	 * method issues the query to the DBMS and returns the results stored
+	 * column by column in typed arrays, a few bytes per value instead of a
+	 * String each.
+	 *
+	 * @param query the input query string, with ? placeholders for the parameters
+	 * @param params the values bound to the placeholders
+	 * @return the query result, read with the typed accessors of ColumnarResult
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public ColumnarResult executeQueryAndReturnColumns (String query, Object... params) throws SQLException {
+		ColumnarResult result = new ColumnarResult();
+		executeQueryStreaming(query, result, params);
+		return result.finish();
+	}
+
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and returns the number of results
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string, with ? placeholders for the parameters
+	 * @param params the values bound to the placeholders
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQuery (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
-
-		int rowCount = 0;
-
-		//iterates through the result set and count nuber of results.
-		while(rs.next()){ //was if here -------------------------------------------------------------------------------
-			rowCount++;
-		}//end while
-		stmt.close ();
-		return rowCount;
+	public int executeQuery (String query, Object... params) throws SQLException {
+		//the rows are only counted, nothing to do per row
+		return executeQueryStreaming(query, new RowHandler() {
+			public void handle(ResultSet rs) {
+			}
+		}, params);
 	}
-	
+
 	/**
 	 * Method to fetch the last value from sequence. This
 	 * method issues the query to the DBMS and returns the current 
-	 * value of sequence used for autogenerated keys
+	 * value of sequence used for autogenerated keys.  Note currval is
+	 * per session, so it only sees a nextval issued on the same pooled
+	 * connection.
 	 * 
 	 * @param sequence name of the DB sequence
 	 * @return current value of a sequence
@@ -186,24 +545,46 @@ public class DBproject{
 	 */
 	
 	public int getCurrSeqVal(String sequence) throws SQLException {
-		Statement stmt = this._connection.createStatement ();
-		
-		ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-		if (rs.next()) return rs.getInt(1);
-		return -1;
+		long start = System.nanoTime();
+		boolean failed = true;
+		try (ConnectionPool.PooledConnection conn = this._pool.acquire()) {
+			PreparedStatement stmt = conn.prepare("Select currval(?::regclass)");
+			stmt.setString(1, sequence);
+			try (ResultSet rs = stmt.executeQuery ()) {
+				failed = false;
+				if (rs.next()) return rs.getInt(1);
+				return -1;
+			}
+		}finally{
+			Metrics.record("Select currval(?::regclass)", new Object[] { sequence }, System.nanoTime() - start, 1, 0, failed);
+		}
 	}
 
 	/**
-	 * Method to close the physical connection if it is open.
+	 * Method to close the physical connections if they are open.
 	 */
 	public void cleanup(){
-		try{
-			if (this._connection != null){
-				this._connection.close ();
-			}//end if
-		}catch (SQLException e){
-	         // ignored.
-		}//end try
+		if (this._sweeper != null){
+			this._sweeper.close ();
+		}//end if
+		if (this._async != null){
+			this._async.close ();
+		}//end if
+		if (this._patients != null){
+			this._patients.close ();
+		}//end if
+		if (this._availability != null){
+			this._availability.close ();
+		}//end if
+		if (this._capacity != null){
+			this._capacity.close ();
+		}//end if
+		if (this._router != null){
+			this._router.close ();
+		}//end if
+		if (this._pool != null){
+			this._pool.close ();
+		}//end if
 	}//end cleanup
 
 	/**
@@ -212,14 +593,27 @@ public class DBproject{
 	 * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
 	 */
 	public static void main (String[] args) {
-		if (args.length != 3) {
+		if (args.length < 3) {
 			System.err.println (
 				"Usage: " + "java [-classpath <classpath>] " + DBproject.class.getName () +
-		            " <dbname> <port> <user>");
+		            " <dbname> <port> <user> [mode]\n" +
+				"Modes:\n" +
+				"  --load <dir> [--threads N] [--defer-constraints] [--truncate]\n" +
+				"  --import doctor|patient|appointment <file|-> [--batch-size N] [--commit-every N]\n" +
+				"  --contention-bench <doctor id> [--slots N] [--clients N] [--bookings N] [--connections N]\n" +
+				"  --plan-check [--budget-ms N] [--min-rows N]\n" +
+				"  --reconcile\n" +
+				"  --sweep\n" +
+				"  --audit-slots\n" +
+				"  --capacity-report [--from yyyy-mm-dd] [--to yyyy-mm-dd] [--limit N]\n" +
+				"  --export <table|report> <file|-> [report args] [--format text|csv|binary] [--gzip] [--buffer-kb N]\n" +
+				"  --export-nightly <dir> [--format text|csv|binary] [--gzip] [--buffer-kb N]\n" +
+				"  --serve [--port N] [--backlog N]");
 			return;
 		}//end if
 		
 		DBproject esql = null;
+		boolean failed = false;
 		
 		try{
 			System.out.println("(1)");
@@ -239,7 +633,19 @@ public class DBproject{
 			String user = args[2];
 			
 			esql = new DBproject (dbname, dbport, user, "");
+
+			//any argument after the user picks a non interactive mode instead of the menu
+			if (args.length > 3) {
+				runMode(esql, java.util.Arrays.copyOfRange(args, 3, args.length));
+				return;
+			}
 			
+			esql.startAvailabilityIndex();
+			esql.startCapacityPlanner();
+			esql.startSweeper();
+			esql.patients().warm();
+			Metrics.startDump();
+
 			boolean keepon = true;
 			while(keepon){
 				System.out.println("MAIN MENU");
@@ -253,8 +659,15 @@ public class DBproject{
 				System.out.println("7. List total number of different types of appointments per doctor in descending order");
 				System.out.println("8. Find total number of patients per doctor with a given status");
 				System.out.println("9. < EXIT");
+				System.out.println("10. Show query metrics");
+				System.out.println("11. Dashboard");
+				System.out.println("12. Search patients");
+				System.out.println("13. Department capacity");
 				
-				switch (readChoice()){
+				int choice = readChoice();
+				//statements are recorded in the metrics under the menu operation
+				Metrics.setOperation(choice >= 1 && choice < MENU_OPERATIONS.length ? MENU_OPERATIONS[choice] : null);
+				switch (choice){
 					case 1: AddDoctor(esql); break;
 					case 2: AddPatient(esql); break;
 					case 3: AddAppointment(esql); break;
@@ -264,10 +677,18 @@ public class DBproject{
 					case 7: ListStatusNumberOfAppointmentsPerDoctor(esql); break;
 					case 8: FindPatientsCountWithStatus(esql); break;
 					case 9: keepon = false; break;
+					case 10: System.out.print(Metrics.report() + esql.cache().stats() + esql.router().status() + esql.sweeper().status()
+						+ esql.patients().stats() + esql.capacity().stats()); break;
+					case 11: ShowDashboard(esql); break;
+					case 12: SearchPatients(esql); break;
+					case 13: DepartmentCapacity(esql); break;
 				}
+				Metrics.setOperation(null);
 			}
 		}catch(Exception e){
 			System.err.println (e.getMessage ());
+			//lets scripts running a mode see the failure
+			failed = true;
 		}finally{
 			try{
 				if(esql != null) {
@@ -279,6 +700,116 @@ public class DBproject{
 				// ignored.
 			}
 		}
+		if (failed) System.exit(1);
+	}
+
+	/**
+	 * Runs one of the non interactive modes given on the command line.
+	 *
+	 * @param esql the connected database
+	 * @param args the mode name followed by its arguments
+	 */
+	static void runMode(DBproject esql, String[] args) throws Exception {
+		switch (args[0]) {
+			case "--load":
+				new BulkLoader(esql.pool(), new File(args.length > 1 ? args[1] : "../data"),
+					Integer.parseInt(option(args, "--threads", "4")),
+					flag(args, "--defer-constraints"), flag(args, "--truncate")).load();
+				break;
+			case "--import":
+				new BatchImporter(esql.pool(), BatchImporter.Kind.valueOf(args[1].toUpperCase()),
+					Integer.parseInt(option(args, "--batch-size", "1000")),
+					Integer.parseInt(option(args, "--commit-every", "10000"))).run(args[2]);
+				break;
+			case "--contention-bench":
+				boolean ok = new BookingBenchmark(esql, Integer.parseInt(args[1]),
+					Integer.parseInt(option(args, "--slots", "50")),
+					Integer.parseInt(option(args, "--clients", "200")),
+					Integer.parseInt(option(args, "--bookings", "20")),
+					Integer.parseInt(option(args, "--connections", "32"))).run();
+				if (!ok) throw new IllegalStateException("contention benchmark found double bookings");
+				break;
+			case "--plan-check":
+				if (!new PlanCheck(esql, Long.parseLong(option(args, "--budget-ms", "100")),
+						Long.parseLong(option(args, "--min-rows", "100000"))).run())
+					throw new IllegalStateException("plan check failed");
+				break;
+			case "--reconcile":
+				if (StatusCounters.reconcile(esql.pool(), true) < 0)
+					throw new IllegalStateException("doctor_status_count does not exist, run create.sql");
+				if (DoctorAppointments.rebuild(esql.pool(), true) < 0)
+					throw new IllegalStateException("doctor_appointment does not exist, run create.sql");
+				break;
+			case "--sweep":
+				esql.sweeper().sweep();
+				System.out.print(esql.sweeper().status());
+				break;
+			case "--audit-slots":
+				ResultRenderer renderer = stdoutRenderer();
+				SlotConflicts.audit(esql, renderer);
+				int conflicts = renderer.finish();
+				System.out.println(renderer.stats());
+				System.out.println(conflicts + " overlap(s) or unreadable slot(s)");
+				break;
+			case "--capacity-report":
+				LocalDate reportFrom = LocalDate.parse(option(args, "--from", LocalDate.now().toString()));
+				ResultRenderer capacity = stdoutRenderer();
+				esql.operations().departmentCapacity(reportFrom, LocalDate.parse(option(args, "--to", reportFrom.plusDays(30).toString())),
+					Integer.parseInt(option(args, "--limit", "20")), capacity);
+				System.out.println(capacity.stats());
+				break;
+			case "--export":
+				//the arguments after the target that are not options are those of the report
+				List<String> reportArgs = new ArrayList<String>();
+				for (int i = 3; i < args.length; ++i) {
+					if (args[i].equals("--format") || args[i].equals("--buffer-kb")) ++i;
+					else if (!args[i].equals("--gzip")) reportArgs.add(args[i]);
+				}
+				Exporter exporter = exporter(esql, args);
+				boolean isTable = false;
+				for (BulkLoader.Table t : BulkLoader.TABLES)
+					if (t.name.equalsIgnoreCase(args[1])) isTable = true;
+				if (isTable) exporter.exportTable(args[1], args[2]);
+				else exporter.exportReport(args[1], reportArgs.toArray(new String[0]), args[2]);
+				break;
+			case "--export-nightly":
+				exporter(esql, args).nightly(new File(args.length > 1 ? args[1] : "."));
+				break;
+			case "--serve":
+				esql.startAvailabilityIndex();
+				esql.startCapacityPlanner();
+				esql.startSweeper();
+				esql.patients().warm();
+				Metrics.startDump();
+				new ApiServer(esql, Integer.parseInt(option(args, "--port", "8080")),
+					Integer.parseInt(option(args, "--backlog", "1024"))).run();
+				break;
+			default:
+				System.err.println("Unknown mode: " + args[0]);
+		}
+	}
+
+	private static Exporter exporter(DBproject esql, String[] args) {
+		return new Exporter(esql, Exporter.Format.valueOf(option(args, "--format", "text").toUpperCase()), flag(args, "--gzip"),
+			Integer.parseInt(option(args, "--buffer-kb", "4096")) * 1024);
+	}
+
+	/**
+	 * @return the value following name in args, or def when it is absent
+	 */
+	static String option(String[] args, String name, String def) {
+		for (int i = 0; i + 1 < args.length; ++i)
+			if (args[i].equals(name)) return args[i + 1];
+		return def;
+	}
+
+	/**
+	 * @return true when name appears in args
+	 */
+	static boolean flag(String[] args, String name) {
+		for (String arg : args)
+			if (arg.equals(name)) return true;
+		return false;
 	}
 
 	public static int readChoice() {
@@ -297,35 +828,42 @@ public class DBproject{
 		return input;
 	}//end readChoice
 
+	/**
+	 * Parses a date typed as month/day/year (3/10/2021 or 11/5/2020), the
+	 * format used by the data files, so it does not depend on DateStyle.
+	 *
+	 * @param mdy the date text
+	 * @return the date as a SQL date parameter
+	 */
+	static java.sql.Date parseDate(String mdy) {
+		return java.sql.Date.valueOf(parseLocalDate(mdy));
+	}
+
+	/**
+	 * Same as parseDate, for the operations that take a LocalDate.
+	 */
+	static LocalDate parseLocalDate(String mdy) {
+		String[] parts = mdy.trim().split("/");
+		if (parts.length != 3) throw new IllegalArgumentException("Invalid date, expected month/day/year: " + mdy);
+		return LocalDate.of(Integer.parseInt(parts[2].trim()), Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+	}
+
 	public static void AddDoctor(DBproject esql) {//1
 		try{
-			String query = "insert into Doctor (doctor_ID, name, specialty, did) values (";
-			
 			System.out.print("\tEnter Doctor ID: ");
-			String id = in.readLine();
-			query += id; //gets the doctor ID
+			int id = Integer.parseInt(in.readLine().trim()); //gets the doctor ID
 			
 			System.out.print("\tEnter Doctor name: ");
-			String doc_name = in.readLine();
-			query += ", '";
-			query += doc_name; //gets the doctor name
-			query += "', "; //query added as: , 'doc_name',
+			String doc_name = in.readLine(); //gets the doctor name
 
 			System.out.print("\tEnter Doctor specialty: ");
-			String doc_spec = in.readLine();
-			query += "'";
-			query += doc_spec; //gets the doctor specailty
-			query += "', "; //query added as: 'doc_spec', 
+			String doc_spec = in.readLine(); //gets the doctor specailty
 
 			System.out.print("\tEnter Doctor Department ID: ");
-			String doc_did = in.readLine();
-			query += doc_did; //gets the doctor department id
-			query += ")"; //need closing parenthases here
+			int doc_did = Integer.parseInt(in.readLine().trim()); //gets the doctor department id
    
-			//int rowCount = esql.executeQuery(query); 
-			esql.executeUpdate(query);
+			esql.operations().addDoctor(id, doc_name, doc_spec, doc_did);
 			System.out.println ("ADDED VALUES");
-			//System.out.println ("total row(s): " + rowCount);
 		 }
 		 catch(Exception e){
 			System.err.println (e.getMessage());
@@ -334,44 +872,26 @@ public class DBproject{
 
 	public static void AddPatient(DBproject esql) {//2
 		try{
-			String query = "insert into Patient (patient_ID, name, gtype, age, address, number_of_appts) values (";
-
 			System.out.print("\tEnter Patient ID: ");
-			String id = in.readLine();
-			query += id; 
+			int id = Integer.parseInt(in.readLine().trim());
 			
 			System.out.print("\tEnter Patient name: ");
 			String pat_name = in.readLine();
-			query += ", '";
-			query += pat_name; 
-			query += "', "; //query added as: , 'pat_name',
 
 			System.out.print("\tEnter Patient gender: "); //looks like it either takes 'M' or 'F' soooo 2 genders??????????????
 			String pat_gender = in.readLine();
-			query += "'";
-			query += pat_gender; 
-			query += "', "; //query added as: 'pat_gender',
 
 			System.out.print("\tEnter Patient age: ");
-			String age = in.readLine();
-			query += age; 
+			int age = Integer.parseInt(in.readLine().trim());
 
 			System.out.print("\tEnter Patient address: ");
 			String pat_address = in.readLine();
-			query += ", '";
-			query += pat_address; 
-			query += "', "; //query added as: , 'pat_address',
 
 			System.out.print("\tEnter number of appointments for the Patient: ");
-			String num_appts = in.readLine();
-			query += num_appts; 
-			query += ")"; //need closing parenthases here
+			int num_appts = Integer.parseInt(in.readLine().trim());
 
-
-			//int rowCount = esql.executeQuery(query);
-			esql.executeUpdate(query);
+			esql.operations().addPatient(id, pat_name, pat_gender, age, pat_address, num_appts);
 			System.out.println ("ADDED VALUES");
-			//System.out.println ("total row(s): " + rowCount);
 		}
 		catch(Exception e){
 			System.err.println (e.getMessage());
@@ -380,50 +900,37 @@ public class DBproject{
 
 	public static void AddAppointment(DBproject esql) {//3
 		try{
-			String query  = "insert into Appointment (appnt_ID, adate, time_slot, status) values (";
-			
 			System.out.print("\tEnter Appointment ID: ");
-			String id = in.readLine();
-			query += id; 
+			int id = Integer.parseInt(in.readLine().trim());
 
 			System.out.print("\tEnter Appointment month: ");
 			String appt_m = in.readLine();
-			query += ", '";
-			query += appt_m; 
-			query += "/"; //query added as: , 'appt_m/
 
 			System.out.print("\tEnter Appointment day: ");
 			String appt_d = in.readLine();
-			query += appt_d; 
-			query += "/"; //query added as: appt_d/
 
 			System.out.print("\tEnter Appointment year: ");
 			String appt_y = in.readLine();
-			query += appt_y; 
-			query += "', "; //query added as: appt_y', 
+			java.sql.Date adate = parseDate(appt_m + "/" + appt_d + "/" + appt_y);
 
 			System.out.print("\tEnter Appointment starting time in this format 'hour:minutes' (ie. 8:00 or 14:30): ");
 			String appt_startTime = in.readLine();
-			query += "'";
-			query += appt_startTime; 
-			query += "-"; //query added as: 'appt_startTIme-
 
 			System.out.print("\tEnter Appointment ending time in this format 'hour:minutes' (ie. 8:00 or 14:30): ");
 			String appt_endTime = in.readLine();
-			query += appt_endTime; 
-			query += "', "; //query added as: appt_endTime', 
 
 			System.out.print("\tEnter Appointment status: ");
 			String appt_status = in.readLine();
-			query += "'";
-			query += appt_status; 
-			query += "')"; //query added as: 'appt_status') with ending parenthases
 
-			//int rowCount = esql.executeQuery(query);
-			esql.executeUpdate(query);
-			System.out.println ("ADDED VALUES");
-			//System.out.println ("total row(s): " + rowCount);
+			System.out.print("\tEnter the doctor ID (leave empty for none): ");
+			String doc_id = in.readLine().trim();
+
+			System.out.print("\tEnter the staff ID (leave empty for none): ");
+			String staff_id = in.readLine().trim();
 
+			esql.operations().addAppointment(id, adate, appt_startTime.trim() + "-" + appt_endTime.trim(), appt_status,
+				doc_id.isEmpty() ? null : Integer.valueOf(doc_id), staff_id.isEmpty() ? null : Integer.valueOf(staff_id));
+			System.out.println ("ADDED VALUES");
 		}
 		catch(Exception e){
 			System.err.println (e.getMessage());
@@ -435,58 +942,33 @@ public class DBproject{
 	public static void MakeAppointment(DBproject esql) {//4
 		// Given a patient, a doctor and an appointment of the doctor that s/he wants to take, add an appointment to the DB
 		try{
-			String query  = "if exists(select * from Doctor D, Appointment A, has_appointment H where D.doctor_ID = ";
-
 			System.out.print("\tWe will take in the doctor's id: ");
-			String doc_id = in.readLine();
-			query += doc_id;
+			int doc_id = Integer.parseInt(in.readLine().trim());
 
-			query += " and D.doctor_ID = H.doctor_id and H.appt_id = ";
-
-			System.out.print("\tNow we will take in the appointment id: ");
-			String appointment_id = in.readLine();
-			query += appointment_id;
-
-			query += " and A.status = 'AV') begin insert into Patient (patient_ID, name, gtype, age, address, number_of_appts) values (";
+			System.out.print("\tNow we will take in the appointment id (leave empty for the next available one): ");
+			String appointment_id = in.readLine().trim();
 
 			System.out.println("\tWe will now take in your patient info :)");
 			
 			System.out.print("\tEnter Patient ID: ");
-			String id = in.readLine();
-			query += id; 
+			int id = Integer.parseInt(in.readLine().trim());
 			
 			System.out.print("\tEnter Patient name: ");
 			String pat_name = in.readLine();
-			query += ", '";
-			query += pat_name; 
-			query += "', "; //query added as: , 'pat_name',
 
 			System.out.print("\tEnter Patient gender: "); //looks like it either takes 'M' or 'F' soooo 2 genders??????????????
 			String pat_gender = in.readLine();
-			query += "'";
-			query += pat_gender; 
-			query += "', "; //query added as: 'pat_gender',
 
 			System.out.print("\tEnter Patient age: ");
-			String age = in.readLine();
-			query += age; 
+			int age = Integer.parseInt(in.readLine().trim());
 
 			System.out.print("\tEnter Patient address: ");
 			String pat_address = in.readLine();
-			query += ", '";
-			query += pat_address; 
-			query += "', "; //query added as: , 'pat_address',
-
-			System.out.print("\tEnter number of appointments: ");
-			String num_appts = in.readLine();
-			query += num_appts; 
-			query += ")"; //need closing parenthases here
-
-			//int rowCount = esql.executeQuery(query);
-			esql.executeUpdate(query);
-			System.out.println ("ADDED VALUES");
-			//System.out.println ("total row(s): " + rowCount);
 
+			BookingEngine.Patient patient = new BookingEngine.Patient(id, pat_name, pat_gender, age, pat_address);
+			BookingEngine.Booking booking = esql.operations().makeAppointment(doc_id,
+				appointment_id.isEmpty() ? null : Integer.valueOf(appointment_id), patient);
+			System.out.println (booking);
 		}
 		catch(Exception e){
 			System.err.println (e.getMessage());
@@ -496,34 +978,29 @@ public class DBproject{
 	public static void ListAppointmentsOfDoctor(DBproject esql) {//5
 		// For a doctor ID and a date range, find the list of active and available appointments of the doctor
 		//https://stackoverflow.com/questions/14208958/select-data-from-date-range-between-two-dates
-		//so after seeing this stack overflow website i am now thinking that dates are not strings which means some of my insert into statments would be wrong but should be an easy fix
-		//nvm they are strings HEHEH
-		//thesres this thing called to date but i dont wana use that 
 		try {
-			String query  = "select A.adate, A.appnt_ID from Appointment A, Doctor D, has_appointment H where H.doctor_id = ";
-
-
 			System.out.print("\tEnter Doctor ID: ");
-			String doc_ID = in.readLine();
-			query += doc_ID; 
-
-			query += " and H.appt_id = A.appnt_ID and (A.status = 'AC' or A.status = 'AV') and A.adate > ";
-
-			System.out.print("\tEnter a left bound date in this format: month/day/year (3/10/2021 or 11/5/2020): ");
-			String dateStr = in.readLine();
-			query += "'";
-			query += dateStr;
-			query += "'";
-
-			query += " and A.adate < ";
-
-			System.out.print("\tEnter a right bound date in this format: month/day/year (3/10/2021 or 11/5/2020): ");
-			String dateStr2 = in.readLine();
-			query += "'";
-			query += dateStr2;
-			query += "' group by A.appnt_ID";
-
-			int rowCount = esql.executeQueryAndPrintResult(query);
+			int doc_ID = Integer.parseInt(in.readLine().trim());
+
+			System.out.print("\tEnter the first date (included) in this format: month/day/year (3/10/2021 or 11/5/2020): ");
+			LocalDate from = parseLocalDate(in.readLine());
+
+			System.out.print("\tEnter the end date (not included) in this format: month/day/year (3/10/2021 or 11/5/2020): ");
+			LocalDate to = parseLocalDate(in.readLine());
+
+			//one page at a time, each resuming after the last row of the one before
+			int rowCount = 0;
+			Operations.PageToken page = null;
+			while (true) {
+				ResultRenderer renderer = stdoutRenderer();
+				page = esql.operations().listAppointmentsOfDoctor(doc_ID, from, to, page, PAGE_SIZE, renderer);
+				rowCount += renderer.rowCount();
+				System.out.println (renderer.stats());
+				if (page == null) break;
+				System.out.print("\tPress enter for the next page, q to stop: ");
+				String answer = in.readLine();
+				if (answer == null || answer.trim().equalsIgnoreCase("q")) break;
+			}
 			System.out.println ("total row(s): " + rowCount);
 		}
 		catch(Exception e){
@@ -534,26 +1011,15 @@ public class DBproject{
 	public static void ListAvailableAppointmentsOfDepartment(DBproject esql) {//6
 		// For a department name and a specific date, find the list of available appointments of the department
 		try{ //okay this is how it connects: Department -> Doctor id thoruhg request maint -> appt id through has appointment -> appointment outputs ids for all availble that match the date 
-			String query = " select A.appnt_ID from Appointment A, Department D, request_maintenance R, has_appointment H where R.dept_name = ";
-			
 			System.out.print("\tEnter Department name: ");
 			String dname = in.readLine();
-			query += "'";
-			query += dname; 
-			query += "'";
-
-			query += "and R.did = H.doctor_id and H.appt_id = A.appnt_ID and A.status = 'AV' and A.adate = ";
 
 			System.out.print("\tEnter a date in this format: month/day/year (3/10/2021 or 11/5/2020): ");
-			String dateStr = in.readLine();
-			query += "'";
-			query += dateStr;
-			query += "' group by A.appnt_ID";
-			
-
-			//int rowCount = esql.executeQuery(query);
-			int rowCount = esql.executeQueryAndPrintResult(query);
+			java.sql.Date adate = parseDate(in.readLine());
 
+			ResultRenderer renderer = stdoutRenderer();
+			int rowCount = esql.operations().listAvailableAppointmentsOfDepartment(dname, adate, renderer);
+			System.out.println (renderer.stats());
 			System.out.println ("total row(s): " + rowCount);
 		}
 		catch(Exception e){
@@ -567,12 +1033,9 @@ public class DBproject{
 		//just lists the doctors in descedning order based on how many appointments they have with all types of appointments
 		try{
 			//this link for help:https://learnsql.com/cookbook/how-to-order-by-count-in-sql/#:~:text=The%20first%20step%20is%20to,IDs%20with%20COUNT(id)%20.
-			//String query  = "select A.status, count(*) from Doctor D, Appointment A, has_appointment H where D.doctor_ID = H.doctor_id and H.appt_id = A.appnt_ID group by A.status order by count(*) desc";
-			String query  = "select D.name, A.status, count(*) from Doctor D, Appointment A, has_appointment H where D.doctor_ID = H.doctor_id and H.appt_id = A.appnt_ID group by D.name, A.status order by count(*) desc";
-			//may want count(A.status) here
-
-			//int rowCount = esql.executeQuery(query);
-			int rowCount = esql.executeQueryAndPrintResult(query);
+			ResultRenderer renderer = stdoutRenderer();
+			int rowCount = esql.operations().listStatusNumberOfAppointmentsPerDoctor(renderer);
+			System.out.println (renderer.stats());
 
 			System.out.println ("total row(s): " + rowCount);	
 		}		
@@ -585,23 +1048,77 @@ public class DBproject{
 	public static void FindPatientsCountWithStatus(DBproject esql) {//8
 		// Find how many patients per doctor there are with a given status (i.e. PA, AC, AV, WL) and list that number per doctor.
 		try{
-			String query = "select D.name, count(A.status) from Appointment A, Doctor D, has_appointment H where A.appnt_ID = H.appt_id and H.doctor_id = D.doctor_ID and A.status = " ;
-
 			System.out.print("\tEnter Appointment status: ");
-			String statass = in.readLine();
-			query += "'";
-			query += statass; 
-			query += "'";
-			query += " group by D.name";
+			String statass = in.readLine().trim();
+
+			ResultRenderer renderer = stdoutRenderer();
+			int rowCount = esql.operations().findPatientsCountWithStatus(statass, renderer);
+			System.out.println (renderer.stats());
+
+			System.out.println ("total row(s): " + rowCount);
+		}
+		catch(Exception e){
+			System.err.println (e.getMessage());
+		}
+	}
+
+	public static void ShowDashboard(DBproject esql) {//10
+		// Reports 7 and 8 and the next appointments of the busiest doctors, all queries running at once
+		try{
+			System.out.print("\tEnter the first date of the appointments in this format: month/day/year (empty for today): ");
+			String line = in.readLine();
+			LocalDate from = line == null || line.trim().isEmpty() ? LocalDate.now() : parseLocalDate(line);
+
+			long start = System.nanoTime();
+			Dashboard dashboard = new Dashboard(esql, Integer.getInteger("dbproject.dashboard.doctors", 5),
+				Long.getLong("dbproject.dashboard.timeout.ms", 10000L));
+			java.util.List<Dashboard.Section> sections = dashboard.load(from);
+			long elapsed = System.nanoTime() - start;
+			for (Dashboard.Section section : sections) {
+				System.out.println (section.title);
+				int rowCount = section.result.render(stdoutRenderer());
+				System.out.println ("total row(s): " + rowCount + "\n");
+			}
+			System.out.printf("%d queries in %.1f ms%n", sections.size() + 1, elapsed / 1e6);
+		}
+		catch(Exception e){
+			System.err.println (e.getMessage());
+		}
+	}
+
+	public static void SearchPatients(DBproject esql) {//11
+		// Patients by part of their name or address, close spellings included
+		try{
+			System.out.print("\tEnter part of the patient name or address: ");
+			String text = in.readLine();
+
+			ResultRenderer renderer = stdoutRenderer();
+			int rowCount = esql.operations().searchPatients(text == null ? "" : text, PAGE_SIZE, renderer);
+			System.out.println (renderer.stats());
+			System.out.println ("total row(s): " + rowCount);
+		}
+		catch(Exception e){
+			System.err.println (e.getMessage());
+		}
+	}
+
+	public static void DepartmentCapacity(DBproject esql) {//12
+		// Departments with the most hours booked past their patient_per_hour capacity
+		try{
+			System.out.print("\tEnter the first date (month/day/year, empty for today): ");
+			String first = in.readLine().trim();
+			LocalDate from = first.isEmpty() ? LocalDate.now() : parseLocalDate(first);
 
-			//int rowCount = esql.executeQuery(query);
-			//int rowCount = esql.executeQueryAndReturnResult(query);
-			int rowCount = esql.executeQueryAndPrintResult(query);
+			System.out.print("\tEnter the number of days: ");
+			int days = Integer.parseInt(in.readLine().trim());
 
+			ResultRenderer renderer = stdoutRenderer();
+			int rowCount = esql.operations().departmentCapacity(from, from.plusDays(days), PAGE_SIZE, renderer);
+			System.out.println (renderer.stats());
 			System.out.println ("total row(s): " + rowCount);
 		}
 		catch(Exception e){
 			System.err.println (e.getMessage());
 		}
 	}
-} 
\ No newline at end of file
+}
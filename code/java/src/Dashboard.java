@@ -0,0 +1,117 @@
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * This class defines the dashboard: report 7, report 8 for every status and
+ * the first page of report 5 for the busiest doctors.  Every query is
+ * started through AsyncQueries before any result is waited for, so the
+ * dashboard takes about as long as its slowest query (plus the lookup of
+ * the busiest doctors, which the listings need) rather than the sum of all.
+ *
+ */
+
+public class Dashboard {
+	static final String BUSIEST_DOCTORS_SQL = "select doctor_id from doctor_status_count where status in ('AC', 'AV') "
+		+ "group by doctor_id order by sum(cnt) desc, doctor_id limit ?";
+	static final String[] STATUSES = { "PA", "AC", "AV", "WL" };
+
+	/**
+	 * One titled result of the dashboard.
+	 */
+	public static final class Section {
+		public final String title;
+		public final AsyncQueries.Result result;
+
+		Section(String title, AsyncQueries.Result result) {
+			this.title = title;
+			this.result = result;
+		}
+	}
+
+	private final DBproject _esql;
+	private final int _doctors;
+	private final long _timeoutMillis;
+
+	/**
+	 * @param esql the connected database
+	 * @param doctors the number of busiest doctors listed
+	 * @param timeoutMillis how long the whole dashboard may take, 0 for no limit
+	 */
+	public Dashboard(DBproject esql, int doctors, long timeoutMillis) {
+		this._esql = esql;
+		this._doctors = doctors;
+		this._timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Runs every query of the dashboard.  When one fails or the timeout
+	 * expires the others are cancelled.
+	 *
+	 * @param from the first date of the appointment listings
+	 * @return the sections in display order
+	 * @throws java.sql.SQLException when a query fails or times out
+	 */
+	public List<Section> load(final LocalDate from) throws SQLException {
+		final AsyncQueries async = this._esql.async();
+		final long deadline = System.nanoTime() + this._timeoutMillis * 1000000L;
+		final List<CompletableFuture<?>> started = new CopyOnWriteArrayList<CompletableFuture<?>>();
+
+		List<String> titles = new ArrayList<String>();
+		List<CompletableFuture<AsyncQueries.Result>> results = new ArrayList<CompletableFuture<AsyncQueries.Result>>();
+		titles.add("Appointments per doctor and status");
+		results.add(track(started, async.query(remaining(deadline), DBproject.STATUS_PER_DOCTOR_SQL)));
+		for (String status : STATUSES) {
+			titles.add("Appointments per doctor with status " + status);
+			results.add(track(started, async.query(remaining(deadline), DBproject.PATIENTS_WITH_STATUS_SQL, status)));
+		}
+
+		//the listings start as soon as the busiest doctors are known
+		final Date first = Date.valueOf(from);
+		final Date last = Date.valueOf(LocalDate.of(9999, 12, 31));
+		CompletableFuture<AsyncQueries.Result> busiestDoctors = track(started, async.query(remaining(deadline), BUSIEST_DOCTORS_SQL, this._doctors));
+		CompletableFuture<List<AsyncQueries.Result>> listings = busiestDoctors.thenCompose(busiest -> {
+			List<CompletableFuture<AsyncQueries.Result>> pages = new ArrayList<CompletableFuture<AsyncQueries.Result>>();
+			for (String[] row : busiest.rows) {
+				int doctor = Integer.parseInt(row[0]);
+				pages.add(track(started, async.query(remaining(deadline), DBproject.APPOINTMENTS_OF_DOCTOR_SQL,
+					doctor, doctor, first, Integer.MIN_VALUE, first, last, DBproject.PAGE_SIZE)));
+			}
+			return CompletableFuture.allOf(pages.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+				List<AsyncQueries.Result> values = new ArrayList<AsyncQueries.Result>();
+				for (CompletableFuture<AsyncQueries.Result> page : pages)
+					values.add(page.join());
+				return values;
+			});
+		});
+
+		List<Section> sections = new ArrayList<Section>();
+		try {
+			for (int i = 0; i < results.size(); ++i)
+				sections.add(new Section(titles.get(i), AsyncQueries.await(results.get(i))));
+			AsyncQueries.Result busiest = AsyncQueries.await(busiestDoctors);
+			List<AsyncQueries.Result> pages = AsyncQueries.await(listings);
+			for (int i = 0; i < pages.size(); ++i)
+				sections.add(new Section("Appointments of doctor " + busiest.rows.get(i)[0] + " from " + from, pages.get(i)));
+		}catch (SQLException e) {
+			for (CompletableFuture<?> future : started)
+				future.cancel(true);
+			throw e;
+		}
+		return sections;
+	}
+
+	private long remaining(long deadline) {
+		if (this._timeoutMillis <= 0) return 0;
+		return Math.max(1, (deadline - System.nanoTime()) / 1000000L);
+	}
+
+	private static <T> CompletableFuture<T> track(List<CompletableFuture<?>> started, CompletableFuture<T> future) {
+		started.add(future);
+		return future;
+	}
+}
@@ -0,0 +1,351 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This class defines the synthetic data generator for the ten files of
+ * code/data.  Scale 1 has the sizes of the sample (5 hospitals, 125
+ * departments, 250 doctors, staff and patients, 550 appointments) and every
+ * count grows linearly with the scale, up to 3.9 million (2 billion
+ * appointments, the limit of the INTEGER keys).
+ *
+ * The mixes follow the sample files: statuses per year (2020 is almost all
+ * PA, 2021 has the AC, AV and WL), the eight time_slot values and their
+ * frequencies, 25 departments per hospital with doctors only in the 15
+ * medical ones and skewed towards Cardiology and Nutrition, and so on.
+ * Unlike the sample every appointment has a doctor and a staff member of
+ * that doctor's hospital, so every row is reachable from the reports.
+ *
+ * Every value is a hash of the seed, the table and the row number, not the
+ * next draw of a shared generator, so the output only depends on the seed
+ * and the scale and any row can be made by any thread.  Each file is cut
+ * into chunks formatted by a pool of worker threads and written in order
+ * with at most a few chunks per file in memory, and the ten files are
+ * written at the same time.
+ *
+ * Usage: java DataGenerator <dir> [--scale N] [--seed N] [--threads N]
+ * then DBproject <dbname> <port> <user> --load <dir> --defer-constraints
+ *
+ */
+
+public class DataGenerator {
+	//rows formatted per task
+	static final int CHUNK = 16384;
+
+	static final String[] HOSPITALS = { "UCLA Medical Center", "Cedars-Sinai Medical Center", "UCSF Medical Center",
+		"Stanford Health Care- Stanford Hospital", "Keck Medical Center of USC" };
+	//the departments of every hospital, in the order of department.csv
+	static final String[] DEPARTMENTS = { "Cardiology", "Finance", "Gastroenterology", "Obstetrics/Gynecology", "Microbiology",
+		"Pediatric", "Neurology", "Oncology", "Ophthalmology", "Pain Management", "Patient Services", "Radiology", "Rheumatology",
+		"Urology", "Pharmacy", "Otolaryngology", "Nutrition", "Human Resources", "ICU", "General Surgery", "Psychiatry",
+		"Accident and emergency", "Dermatology", "Allergy and Immunology", "Endocrinology" };
+	//doctor specialties, the department they work in and their share of the 250 sample doctors
+	static final String[] SPECIALTIES = { "Cardiologist", "Nutritionist", "Allergist", "Pediatrician", "Radiologist", "Oncologist",
+		"Dermatologist", "Gastroenterologist", "Neurologist", "Otolaryngologist", "Endocrinologist", "Ophthalmologist", "Urologist",
+		"gynecologist", "Psychiatrist" };
+	static final int[] SPECIALTY_DEPARTMENT = { 0, 16, 23, 5, 11, 7, 22, 2, 6, 15, 24, 8, 13, 3, 20 };
+	static final int[] SPECIALTY_WEIGHTS = { 33, 30, 20, 19, 17, 16, 15, 15, 15, 15, 14, 11, 11, 10, 9 };
+
+	static final String[] TIME_SLOTS = { "14:00-16:00", "8:00-10:00", "13:00-15:00", "8:00-10:30", "8:00-17:00", "8:00-10:50",
+		"10:00-17:00", "10:00-15:00" };
+	static final int[] TIME_SLOT_WEIGHTS = { 185, 89, 70, 48, 47, 45, 36, 30 };
+	static final String[] STATUSES = { "PA", "AC", "AV", "WL" };
+	static final int[] STATUS_WEIGHTS_2020 = { 278, 2, 1, 0 };
+	static final int[] STATUS_WEIGHTS_2021 = { 101, 75, 59, 34 };
+	//281 of the 550 sample appointments are in 2020
+	static final int[] YEAR_WEIGHTS = { 281, 269 };
+	static final int[] DAYS_IN_MONTH_2020 = { 31, 29, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31 };
+	static final int[] DAYS_IN_MONTH_2021 = { 31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31 };
+
+	static final int[] GENDER_WEIGHTS = { 86, 164 }; //F, M
+	static final int[] APPOINTMENT_COUNT_WEIGHTS = { 73, 100, 77 }; //1, 2, 3
+	static final int[] PATIENTS_PER_HOUR_WEIGHTS = { 46, 54 }; //1, 2
+	//share of the doctors with a request_maintenance row, 100 of 250 in the sample
+	static final int MAINTAINED_PERCENT = 40;
+
+	static final String[] FEMALE_NAMES = { "Pearl", "Breanne", "Annette", "Dorothy", "Ina", "Alane", "Nova", "Tomeka", "Drusilla",
+		"Connie", "Maryetta", "Krystle", "Julieta", "Camille", "Lindsey", "Karla", "Flora", "Angela", "Barbara", "Clara" };
+	static final String[] MALE_NAMES = { "Armand", "Alberto", "Wyatt", "Alfonso", "Vincent", "Lloyd", "Calvin", "Leo", "Greg",
+		"Dexter", "Dan", "Adam", "Alan", "Albert", "Alvin", "Andrew", "Anthony", "Arthur", "Benjamin", "Carlos" };
+	static final String[] LAST_NAMES = { "Enderle", "Scarlett", "Ruoff", "Denmark", "Straube", "Wohlwend", "Flick", "Onken", "Sherk",
+		"Lecroy", "Piland", "Bodiford", "Imburgia", "Amerson", "Kogan", "Woodruff", "Smolen", "Palmateer", "Trembath", "Marts",
+		"Holmes", "Sullivan", "Newton", "Byrd", "Rodriquez", "Norris", "Tyler", "Franklin", "Hayes", "Dean", "Saunders", "Cortez" };
+	static final String[] STREETS = { "Chapel Drive", "Bald Hill Street", "Campfire Ave.", "Young Avenue", "East Warren St.",
+		"Spruce Dr.", "Golf Ave.", "Shub Farm St.", "W. Greystone Dr.", "Edgewood Ave.", "Berkshire Street", "Rose St." };
+	static final String[] CITIES = { "Melbourne", "Baton Rouge", "Cockeysville", "Oak Forest", "New Brunswick", "Lanham",
+		"Rocky Mount", "Appleton", "Jamaica", "Newtown", "Fishers", "Brentwood", "Hendersonville", "Zeeland", "Flemington" };
+
+	/**
+	 * Formats one row of a file into the buffer, without the line end.
+	 */
+	interface RowWriter {
+		void write(long row, StringBuilder out);
+	}
+
+	/**
+	 * One of the ten files with its row count and row format.
+	 */
+	static final class FileSpec {
+		final String file;
+		final long rows;
+		final RowWriter writer;
+
+		FileSpec(String file, long rows, RowWriter writer) {
+			this.file = file;
+			this.rows = rows;
+			this.writer = writer;
+		}
+	}
+
+	private final File _dir;
+	private final long _seed;
+	private final int _threads;
+
+	private final int _hospitals;
+	private final int _departments;
+	private final int _doctors;
+	private final int _staff;
+	private final int _patients;
+	private final int _appointments;
+
+	/**
+	 * @param dir the directory the files are written to
+	 * @param scale the size relative to the sample data
+	 * @param seed the seed every value is derived from
+	 * @param threads the number of worker threads formatting rows
+	 */
+	public DataGenerator(File dir, int scale, long seed, int threads) {
+		if (scale < 1 || 550L * scale > Integer.MAX_VALUE) throw new IllegalArgumentException("Scale must be between 1 and " + Integer.MAX_VALUE / 550);
+		this._dir = dir;
+		this._seed = seed;
+		this._threads = threads;
+		this._hospitals = 5 * scale;
+		this._departments = DEPARTMENTS.length * this._hospitals;
+		this._doctors = 250 * scale;
+		this._staff = 250 * scale;
+		this._patients = 250 * scale;
+		this._appointments = 550 * scale;
+	}
+
+	/**
+	 * Writes the ten files, replacing existing ones.
+	 *
+	 * @throws java.io.IOException when a file cannot be written
+	 */
+	public void generate() throws IOException {
+		if (!this._dir.isDirectory() && !this._dir.mkdirs()) throw new IOException("Cannot create " + this._dir);
+		long start = System.nanoTime();
+		List<FileSpec> files = files();
+		ExecutorService workers = Executors.newFixedThreadPool(this._threads);
+		ExecutorService writers = Executors.newFixedThreadPool(files.size());
+		try {
+			List<CompletableFuture<Void>> done = new ArrayList<CompletableFuture<Void>>();
+			for (final FileSpec spec : files)
+				done.add(CompletableFuture.runAsync(() -> writeFile(spec, workers), writers));
+			CompletableFuture.allOf(done.toArray(new CompletableFuture<?>[0])).join();
+		}catch (CompletionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof UncheckedIOException) throw ((UncheckedIOException) cause).getCause();
+			throw e;
+		}finally{
+			writers.shutdownNow();
+			workers.shutdownNow();
+		}
+		System.out.printf("generated %d appointments in %.1f s%n", this._appointments, (System.nanoTime() - start) / 1e9);
+	}
+
+	List<FileSpec> files() {
+		List<FileSpec> files = new ArrayList<FileSpec>();
+		files.add(new FileSpec("hospital.csv", this._hospitals, (h, out) -> {
+			out.append(h).append(',').append(HOSPITALS[(int) (h % HOSPITALS.length)]);
+			if (h >= HOSPITALS.length) out.append(' ').append(h / HOSPITALS.length + 1);
+		}));
+		files.add(new FileSpec("department.csv", this._departments, (d, out) -> {
+			out.append(d).append(',').append(DEPARTMENTS[(int) (d % DEPARTMENTS.length)]).append(',').append(d / DEPARTMENTS.length);
+		}));
+		files.add(new FileSpec("staff.csv", this._staff, (s, out) -> {
+			out.append(s).append(',');
+			name(1, s, out);
+			out.append(',').append(staffHospital(s));
+		}));
+		files.add(new FileSpec("doctor.csv", this._doctors, (d, out) -> {
+			int specialty = specialty(d);
+			out.append(d).append(',');
+			name(2, d, out);
+			out.append(',').append(SPECIALTIES[specialty]).append(',').append(doctorDepartment(d));
+		}));
+		files.add(new FileSpec("patient.csv", this._patients, (p, out) -> {
+			boolean female = pick(GENDER_WEIGHTS, random(3, p, 0)) == 0;
+			out.append(p).append(',');
+			out.append((female ? FEMALE_NAMES : MALE_NAMES)[(int) uniform(FEMALE_NAMES.length, random(3, p, 1))]).append(' ');
+			out.append(LAST_NAMES[(int) uniform(LAST_NAMES.length, random(3, p, 2))]).append(',');
+			out.append(female ? 'F' : 'M').append(',').append(10 + uniform(51, random(3, p, 3))).append(',');
+			out.append(1 + uniform(9999, random(3, p, 4))).append(' ').append(STREETS[(int) uniform(STREETS.length, random(3, p, 5))]);
+			out.append(' ').append(CITIES[(int) uniform(CITIES.length, random(3, p, 6))]).append(',');
+			out.append(1 + pick(APPOINTMENT_COUNT_WEIGHTS, random(3, p, 7)));
+		}));
+		files.add(new FileSpec("appointment.csv", this._appointments, (a, out) -> {
+			boolean y2020 = pick(YEAR_WEIGHTS, random(4, a, 0)) == 0;
+			int[] days = y2020 ? DAYS_IN_MONTH_2020 : DAYS_IN_MONTH_2021;
+			int month = (int) uniform(12, random(4, a, 1));
+			out.append(a).append(',').append(month + 1).append('/').append(1 + uniform(days[month], random(4, a, 2)));
+			out.append('/').append(y2020 ? 2020 : 2021).append(',');
+			out.append(TIME_SLOTS[pick(TIME_SLOT_WEIGHTS, random(4, a, 3))]).append(',');
+			out.append(STATUSES[pick(y2020 ? STATUS_WEIGHTS_2020 : STATUS_WEIGHTS_2021, random(4, a, 4))]);
+		}));
+		files.add(new FileSpec("has_appointment.csv", this._appointments, (a, out) -> {
+			out.append(a).append(',').append(appointmentDoctor(a));
+		}));
+		files.add(new FileSpec("schedules.csv", this._appointments, (a, out) -> {
+			out.append(a).append(',').append(staffOf(doctorHospital(appointmentDoctor(a)), random(5, a, 0)));
+		}));
+		files.add(new FileSpec("searches.csv", this._patients, (p, out) -> {
+			long a = uniform(this._appointments, random(6, p, 0));
+			out.append(doctorHospital(appointmentDoctor(a))).append(',').append(p).append(',').append(a);
+		}));
+		//one row per maintained doctor, so (did, sid) stays unique; rows of the other doctors are left empty
+		files.add(new FileSpec("request_maintenance.csv", this._doctors, (d, out) -> {
+			if (uniform(100, random(7, d, 0)) >= MAINTAINED_PERCENT) return;
+			out.append(1 + pick(PATIENTS_PER_HOUR_WEIGHTS, random(7, d, 1))).append(',');
+			out.append(DEPARTMENTS[SPECIALTY_DEPARTMENT[specialty(d)]]).append(',');
+			out.append(TIME_SLOTS[pick(TIME_SLOT_WEIGHTS, random(7, d, 2))]).append(',');
+			out.append(d).append(',').append(staffOf(doctorHospital(d), random(7, d, 3)));
+		}));
+		return files;
+	}
+
+	/**
+	 * Formats the file in chunks on the workers and writes the chunks in
+	 * order, keeping at most two chunks per worker in flight.
+	 */
+	private void writeFile(FileSpec spec, ExecutorService workers) {
+		long start = System.nanoTime();
+		File file = new File(this._dir, spec.file);
+		long bytes = 0;
+		long rows = 0;
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 20)) {
+			ArrayDeque<CompletableFuture<byte[]>> inFlight = new ArrayDeque<CompletableFuture<byte[]>>();
+			for (long first = 0; first < spec.rows || !inFlight.isEmpty(); ) {
+				while (first < spec.rows && inFlight.size() < 2 * this._threads) {
+					final long from = first;
+					final long to = Math.min(spec.rows, first + CHUNK);
+					inFlight.add(CompletableFuture.supplyAsync(() -> format(spec, from, to), workers));
+					first = to;
+				}
+				byte[] chunk = inFlight.removeFirst().join();
+				out.write(chunk);
+				bytes += chunk.length;
+				for (byte b : chunk)
+					if (b == '\n') ++rows;
+			}
+		}catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		System.out.printf("%-24s %12d row(s) %8.1f MB in %6.1f s%n", spec.file, rows, bytes / 1e6, (System.nanoTime() - start) / 1e9);
+	}
+
+	private static byte[] format(FileSpec spec, long from, long to) {
+		StringBuilder out = new StringBuilder((int) (to - from) * 48);
+		for (long row = from; row < to; ++row) {
+			int length = out.length();
+			spec.writer.write(row, out);
+			if (out.length() > length) out.append('\n');
+		}
+		return out.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+
+	// ---- relations shared by several files, all derived from row numbers ----
+
+	private int specialty(long doctor) {
+		return pick(SPECIALTY_WEIGHTS, random(2, doctor, 10));
+	}
+
+	//doctors are spread evenly over the hospitals, and skewed over the departments of their hospital
+	private long doctorHospital(long doctor) {
+		return doctor % this._hospitals;
+	}
+
+	private long doctorDepartment(long doctor) {
+		return doctorHospital(doctor) * DEPARTMENTS.length + SPECIALTY_DEPARTMENT[specialty(doctor)];
+	}
+
+	private long staffHospital(long staff) {
+		return staff % this._hospitals;
+	}
+
+	//a staff member of the hospital, as staff are assigned to hospitals round robin
+	private long staffOf(long hospital, long random) {
+		return hospital + this._hospitals * uniform(this._staff / this._hospitals, random);
+	}
+
+	private long appointmentDoctor(long appointment) {
+		return uniform(this._doctors, random(8, appointment, 0));
+	}
+
+	private void name(int table, long row, StringBuilder out) {
+		String[] first = (row & 1) == 0 ? FEMALE_NAMES : MALE_NAMES;
+		out.append(first[(int) uniform(first.length, random(table, row, 20))]).append(' ');
+		out.append(LAST_NAMES[(int) uniform(LAST_NAMES.length, random(table, row, 21))]);
+	}
+
+	// ---- hashing ----
+
+	/**
+	 * @return 64 random bits for the given table, row and field
+	 */
+	long random(int table, long row, int field) {
+		return mix(this._seed ^ mix(((long) table << 56) ^ ((long) field << 48) ^ row));
+	}
+
+	//the SplitMix64 finalizer
+	static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	static long uniform(long n, long random) {
+		return Long.remainderUnsigned(random, n);
+	}
+
+	/**
+	 * @return an index of weights, drawn in proportion to the weights
+	 */
+	static int pick(int[] weights, long random) {
+		int total = 0;
+		for (int w : weights)
+			total += w;
+		long r = uniform(total, random);
+		for (int i = 0; i < weights.length; ++i) {
+			r -= weights[i];
+			if (r < 0) return i;
+		}
+		return weights.length - 1;
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.err.println("Usage: java [-classpath <classpath>] " + DataGenerator.class.getName() + " <dir> [--scale N] [--seed N] [--threads N]");
+			return;
+		}
+		try {
+			new DataGenerator(new File(args[0]), Integer.parseInt(DBproject.option(args, "--scale", "1")),
+				Long.parseLong(DBproject.option(args, "--seed", "166")),
+				Integer.parseInt(DBproject.option(args, "--threads", Integer.toString(Runtime.getRuntime().availableProcessors())))).generate();
+		}catch (Exception e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+}
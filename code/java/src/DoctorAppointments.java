@@ -0,0 +1,49 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * This class defines the maintenance of doctor_appointment, the copy of
+ * has_appointment with the date and status of every appointment that
+ * report 5 pages through.  The triggers of create.sql keep it current;
+ * rebuild() refills it from has_appointment and Appointment after a bulk
+ * load, which skips the triggers, in one transaction that holds off writers
+ * of the two source tables for its duration.
+ *
+ */
+
+public class DoctorAppointments {
+	static final String REFILL_SQL = "insert into doctor_appointment (doctor_id, appnt_id, adate, status) "
+		+ "select H.doctor_id, A.appnt_ID, A.adate, A.status from has_appointment H, Appointment A where A.appnt_ID = H.appt_id";
+
+	/**
+	 * Rebuilds doctor_appointment from scratch.
+	 *
+	 * @param pool the pool the connection is borrowed from
+	 * @param print print a summary
+	 * @return the number of rows written, -1 when the table does not exist
+	 * @throws java.sql.SQLException when the rebuild fails
+	 */
+	public static int rebuild(ConnectionPool pool, boolean print) throws SQLException {
+		long start = System.nanoTime();
+		try (ConnectionPool.PooledConnection pooled = pool.acquire()) {
+			Connection conn = pooled.connection();
+			try (Statement stmt = conn.createStatement()) {
+				try (ResultSet rs = stmt.executeQuery("select to_regclass('doctor_appointment') is not null")) {
+					if (!rs.next() || !rs.getBoolean(1)) return -1;
+				}
+
+				conn.setAutoCommit(false);
+				stmt.execute("lock table has_appointment, Appointment in share mode");
+				stmt.execute("truncate doctor_appointment");
+				int rows = stmt.executeUpdate(REFILL_SQL);
+				stmt.execute("analyze doctor_appointment");
+				conn.commit();
+				if (print)
+					System.out.printf("rebuilt doctor_appointment in %.1f ms, %d row(s)%n", (System.nanoTime() - start) / 1e6, rows);
+				return rows;
+			}
+		}
+	}
+}
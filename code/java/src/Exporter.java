@@ -0,0 +1,279 @@
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyOut;
+import org.postgresql.core.BaseConnection;
+import org.postgresql.core.Utils;
+
+/**
+ * This class defines the export of tables and report results with
+ * COPY ... TO STDOUT.  The server formats the rows, and the bytes it sends
+ * go to the file as they are, never becoming Strings in the JVM.  They are
+ * gathered in two large direct buffers: while one is written to the
+ * FileChannel (or through gzip) by a writer thread the other fills from the
+ * network, so an export runs at the speed of the slower of the two.
+ *
+ * Formats are text (the comma separated format of code/data, which --load
+ * reads back), csv with a header, and binary.  Reports take their
+ * parameters inline, as COPY has no bind parameters; they are read as
+ * numbers and dates, or quoted as string literals.  Exports read from a
+ * replica when one is healthy.
+ *
+ */
+
+public class Exporter {
+	public enum Format {
+		TEXT, CSV, BINARY
+	}
+
+	private final DBproject _esql;
+	private final Format _format;
+	private final boolean _gzip;
+	private final int _bufferBytes;
+
+	/**
+	 * @param format the format of the rows
+	 * @param gzip compress the output
+	 * @param bufferBytes the size of each of the two buffers
+	 */
+	public Exporter(DBproject esql, Format format, boolean gzip, int bufferBytes) {
+		this._esql = esql;
+		this._format = format;
+		this._gzip = gzip;
+		this._bufferBytes = bufferBytes;
+	}
+
+	/**
+	 * Exports one of the tables of create.sql.
+	 *
+	 * @param target the output file, - for standard output
+	 * @return the number of rows exported
+	 */
+	public long exportTable(String table, String target) throws SQLException, IOException {
+		for (BulkLoader.Table t : BulkLoader.TABLES) {
+			if (t.name.equalsIgnoreCase(table))
+				return copy(t.name, "COPY " + t.name + " (" + t.columns + ") TO STDOUT" + options(), target);
+		}
+		throw new IllegalArgumentException("Unknown table: " + table);
+	}
+
+	/**
+	 * Exports the rows of a report, every row at once.
+	 *
+	 * @param report appointments-of-doctor, available-of-department, status-per-doctor or patients-with-status
+	 * @param args the parameters of the report, as for the menu
+	 * @param target the output file, - for standard output
+	 * @return the number of rows exported
+	 */
+	public long exportReport(String report, String[] args, String target) throws SQLException, IOException {
+		String sql;
+		Object[] params;
+		switch (report) {
+			case "appointments-of-doctor":
+				//report 5 from its first row, in one page
+				int doctor = Integer.parseInt(arg(args, 0, report).trim());
+				Date from = Date.valueOf(date(arg(args, 1, report)));
+				sql = DBproject.APPOINTMENTS_OF_DOCTOR_SQL;
+				params = new Object[] { doctor, doctor, from, Integer.MIN_VALUE, from, Date.valueOf(date(arg(args, 2, report))), Integer.MAX_VALUE };
+				break;
+			case "available-of-department":
+				sql = DBproject.AVAILABLE_OF_DEPARTMENT_SQL;
+				params = new Object[] { arg(args, 0, report), Date.valueOf(date(arg(args, 1, report))) };
+				break;
+			case "status-per-doctor":
+				sql = DBproject.STATUS_PER_DOCTOR_SQL;
+				params = new Object[0];
+				break;
+			case "patients-with-status":
+				sql = DBproject.PATIENTS_WITH_STATUS_SQL;
+				params = new Object[] { arg(args, 0, report).trim() };
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown report: " + report);
+		}
+		return copy(report, sql, params, target);
+	}
+
+	/**
+	 * The nightly extract: Appointment and has_appointment into dir, named
+	 * as in code/data (with .gz when compressed).
+	 */
+	public void nightly(File dir) throws SQLException, IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+		for (String table : new String[] { "Appointment", "has_appointment" }) {
+			for (BulkLoader.Table t : BulkLoader.TABLES) {
+				if (t.name.equals(table)) exportTable(t.name, new File(dir, fileName(t.file)).getPath());
+			}
+		}
+	}
+
+	private long copy(String name, String sql, Object[] params, String target) throws SQLException, IOException {
+		//the literals depend on the connection, so the statement is built on the one that runs it
+		try (ConnectionPool.PooledConnection conn = this._esql.router().acquireRead()) {
+			String select = inline(sql, params, conn.connection().unwrap(BaseConnection.class).getStandardConformingStrings());
+			return copy(name, conn, "COPY (" + select + ") TO STDOUT" + options(), target);
+		}
+	}
+
+	private long copy(String name, String copySql, String target) throws SQLException, IOException {
+		try (ConnectionPool.PooledConnection conn = this._esql.router().acquireRead()) {
+			return copy(name, conn, copySql, target);
+		}
+	}
+
+	private long copy(String name, ConnectionPool.PooledConnection conn, String copySql, String target) throws SQLException, IOException {
+		long start = System.nanoTime();
+		long bytes = 0;
+		long rows = 0;
+		boolean failed = true;
+		ExecutorService writer = Executors.newSingleThreadExecutor();
+		try (WritableByteChannel out = open(target)) {
+			CopyOut copy = conn.connection().unwrap(PGConnection.class).getCopyAPI().copyOut(copySql);
+			ByteBuffer[] buffers = { ByteBuffer.allocateDirect(this._bufferBytes), ByteBuffer.allocateDirect(this._bufferBytes) };
+			int current = 0;
+			Future<?> pending = null;
+			try {
+				byte[] data;
+				while ((data = copy.readFromCopy()) != null) {
+					bytes += data.length;
+					if (buffers[current].remaining() < data.length) {
+						pending = flush(writer, out, buffers[current], pending);
+						//the other buffer was written by the flush just waited for
+						current ^= 1;
+						if (data.length > buffers[current].capacity()) {
+							await(pending);
+							pending = null;
+							write(out, ByteBuffer.wrap(data));
+							continue;
+						}
+					}
+					buffers[current].put(data);
+				}
+				rows = copy.getHandledRowCount();
+			}finally{
+				if (copy.isActive()) copy.cancelCopy();
+			}
+			await(flush(writer, out, buffers[current], pending));
+			failed = false;
+		}finally{
+			writer.shutdown();
+			Metrics.record(copySql, new Object[0], System.nanoTime() - start, rows, bytes, failed);
+		}
+		double secs = (System.nanoTime() - start) / 1e9;
+		//the numbers must not end up in the exported data
+		PrintStream log = target.equals("-") ? System.err : System.out;
+		log.printf("%-24s %10d row(s) %12d byte(s) %8.2f s %12.0f rows/s %8.1f MB/s%n", name, rows, bytes, secs,
+			rows / Math.max(secs, 1e-9), bytes / 1e6 / Math.max(secs, 1e-9));
+		return rows;
+	}
+
+	/**
+	 * Waits for the previous write, then hands buffer to the writer.
+	 *
+	 * @return the write of buffer
+	 */
+	private static Future<?> flush(ExecutorService writer, final WritableByteChannel out, final ByteBuffer buffer, Future<?> pending) throws IOException {
+		await(pending);
+		buffer.flip();
+		return writer.submit(() -> {
+			write(out, buffer);
+			buffer.clear();
+			return null;
+		});
+	}
+
+	private static void write(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining())
+			out.write(buffer);
+	}
+
+	private static void await(Future<?> pending) throws IOException {
+		if (pending == null) return;
+		try {
+			pending.get();
+		}catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Export interrupted");
+		}catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		}
+	}
+
+	private WritableByteChannel open(String target) throws IOException {
+		if (target.equals("-")) {
+			FileOutputStream stdout = new FileOutputStream(FileDescriptor.out);
+			return this._gzip ? Channels.newChannel(new GZIPOutputStream(stdout, this._bufferBytes)) : stdout.getChannel();
+		}
+		if (this._gzip) return Channels.newChannel(new GZIPOutputStream(new FileOutputStream(target), this._bufferBytes));
+		return FileChannel.open(new File(target).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	private String options() {
+		switch (this._format) {
+			case CSV: return " WITH (FORMAT csv, HEADER)";
+			case BINARY: return " WITH (FORMAT binary)";
+			default: return " WITH (FORMAT text, DELIMITER ',')";
+		}
+	}
+
+	private String fileName(String csv) {
+		String name = this._format == Format.BINARY ? csv.replace(".csv", ".bin") : csv;
+		return this._gzip ? name + ".gz" : name;
+	}
+
+	/**
+	 * Replaces the ? placeholders of sql, in order, with the parameters as
+	 * literals.  The statements of DBproject have no ? inside their own
+	 * literals.
+	 */
+	static String inline(String sql, Object[] params, boolean standardConformingStrings) throws SQLException {
+		StringBuilder sb = new StringBuilder(sql.length() + 16 * params.length);
+		int next = 0;
+		for (int i = 0; i < sql.length(); ++i) {
+			char c = sql.charAt(i);
+			if (c != '?') {
+				sb.append(c);
+				continue;
+			}
+			if (next == params.length) throw new IllegalArgumentException("Too few parameters for: " + sql);
+			Object param = params[next++];
+			if (param instanceof Integer || param instanceof Long) {
+				sb.append(param);
+			}else if (param instanceof Date) {
+				sb.append('\'').append(param).append("'::date");
+			}else{
+				sb.append('\'');
+				Utils.escapeLiteral(sb, param.toString(), standardConformingStrings);
+				sb.append('\'');
+			}
+		}
+		if (next != params.length) throw new IllegalArgumentException("Too many parameters for: " + sql);
+		return sb.toString();
+	}
+
+	private static String arg(String[] args, int i, String report) {
+		if (i >= args.length) throw new IllegalArgumentException("Missing parameter " + (i + 1) + " of " + report);
+		return args[i];
+	}
+
+	private static LocalDate date(String s) {
+		return s.contains("-") ? LocalDate.parse(s.trim()) : DBproject.parseLocalDate(s);
+	}
+}
@@ -0,0 +1,201 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class defines the built in instrumentation of DBproject.  Every
+ * statement is recorded against the operation running on the current
+ * thread (the menu option or server endpoint, set with setOperation) in a
+ * lock free log-linear latency histogram, together with row, byte and
+ * error counts.  Statements slower than -Ddbproject.slow.ms (500 by
+ * default) are appended with their parameters to -Ddbproject.slow.log
+ * (slow_query.log).
+ *
+ */
+
+public class Metrics {
+	//sub buckets per power of two, gives about 12% resolution
+	static final int SUB_BITS = 3;
+	static final int BUCKETS = 64 << SUB_BITS;
+
+	static final long SLOW_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("dbproject.slow.ms", 500L));
+	static final String SLOW_LOG = System.getProperty("dbproject.slow.log", "slow_query.log");
+
+	private static final Map<String, Stats> STATS = new ConcurrentHashMap<String, Stats>();
+	private static final ThreadLocal<String> OPERATION = new ThreadLocal<String>();
+	//bytes of the values read by the statement running on this thread
+	private static final ThreadLocal<long[]> BYTES = ThreadLocal.withInitial(() -> new long[1]);
+	private static Writer _slowLog = null;
+	private static ScheduledExecutorService _dumper = null;
+
+	/**
+	 * Latency histogram and counters of one operation.
+	 */
+	static final class Stats {
+		final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		final LongAdder count = new LongAdder();
+		final LongAdder rows = new LongAdder();
+		final LongAdder bytes = new LongAdder();
+		final LongAdder errors = new LongAdder();
+		final LongAdder totalNanos = new LongAdder();
+
+		void record(long nanos, long rowCount, long byteCount, boolean error) {
+			this.buckets.incrementAndGet(bucket(Math.max(1, nanos / 1000)));
+			this.count.increment();
+			this.rows.add(rowCount);
+			this.bytes.add(byteCount);
+			this.totalNanos.add(nanos);
+			if (error) this.errors.increment();
+		}
+
+		/**
+		 * @param q the quantile, 0.99 for p99
+		 * @return the latency in microseconds below which q of the samples fall
+		 */
+		long percentile(double q) {
+			long total = 0;
+			long[] counts = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; ++i)
+				total += counts[i] = this.buckets.get(i);
+			if (total == 0) return 0;
+			long rank = (long) Math.ceil(q * total);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; ++i) {
+				seen += counts[i];
+				if (seen >= rank) return upperBound(i);
+			}
+			return upperBound(BUCKETS - 1);
+		}
+	}
+
+	static int bucket(long micros) {
+		int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+		if (magnitude < SUB_BITS) return (int) micros;
+		int sub = (int) (micros >>> (magnitude - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+		return ((magnitude - SUB_BITS + 1) << SUB_BITS) + sub;
+	}
+
+	static long upperBound(int bucket) {
+		if (bucket < (1 << SUB_BITS)) return bucket;
+		int magnitude = (bucket >> SUB_BITS) + SUB_BITS - 1;
+		int sub = bucket & ((1 << SUB_BITS) - 1);
+		return ((long) ((1 << SUB_BITS) + sub + 1) << (magnitude - SUB_BITS)) - 1;
+	}
+
+	/**
+	 * Names the operation the following statements on this thread belong to.
+	 *
+	 * @param name the operation name, null to clear it
+	 */
+	public static void setOperation(String name) {
+		if (name == null) OPERATION.remove();
+		else OPERATION.set(name);
+	}
+
+	/**
+	 * @return the operation running on this thread, "other" when none is set
+	 */
+	public static String operation() {
+		String name = OPERATION.get();
+		return name == null ? "other" : name;
+	}
+
+	/**
+	 * Starts counting the bytes read by a statement on this thread.
+	 */
+	static void startBytes() {
+		BYTES.get()[0] = 0;
+	}
+
+	/**
+	 * Adds to the bytes read by the running statement, called once per row
+	 * by the code that already turns values into strings.
+	 */
+	static void addBytes(long n) {
+		BYTES.get()[0] += n;
+	}
+
+	static long bytes() {
+		return BYTES.get()[0];
+	}
+
+	/**
+	 * Records one statement under the current operation and logs it when slow.
+	 *
+	 * @param sql the statement text
+	 * @param params the bound parameters
+	 * @param nanos the elapsed time
+	 * @param rows the rows returned or affected
+	 * @param bytes the bytes of the values read
+	 * @param error whether the statement failed
+	 */
+	public static void record(String sql, Object[] params, long nanos, long rows, long bytes, boolean error) {
+		String op = operation();
+		STATS.computeIfAbsent(op, k -> new Stats()).record(nanos, rows, bytes, error);
+		if (nanos >= SLOW_NANOS) logSlow(op, sql, params, nanos, rows, error);
+	}
+
+	private static synchronized void logSlow(String op, String sql, Object[] params, long nanos, long rows, boolean error) {
+		try {
+			if (_slowLog == null) _slowLog = new BufferedWriter(new FileWriter(SLOW_LOG, true));
+			_slowLog.write(String.format("%s %s %.1f ms rows=%d%s | %s | %s%n", LocalDateTime.now(), op, nanos / 1e6, rows,
+				error ? " ERROR" : "", sql.replaceAll("\\s+", " ").trim(), Arrays.toString(params)));
+			_slowLog.flush();
+		}catch (IOException e) {
+			System.err.println("slow query log: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return one line per operation with counts and p50/p95/p99/max latency
+	 */
+	public static String report() {
+		StringWriter text = new StringWriter();
+		PrintWriter out = new PrintWriter(text);
+		out.printf("%-40s %8s %6s %10s %12s %9s %9s %9s %9s %9s%n", "operation", "calls", "errors", "rows", "bytes", "mean ms", "p50 ms", "p95 ms", "p99 ms", "max ms");
+		for (Map.Entry<String, Stats> e : new TreeMap<String, Stats>(STATS).entrySet()) {
+			Stats s = e.getValue();
+			long calls = s.count.sum();
+			out.printf("%-40s %8d %6d %10d %12d %9.2f %9.2f %9.2f %9.2f %9.2f%n", e.getKey(), calls, s.errors.sum(), s.rows.sum(), s.bytes.sum(),
+				calls == 0 ? 0 : s.totalNanos.sum() / 1e6 / calls, s.percentile(0.50) / 1e3, s.percentile(0.95) / 1e3, s.percentile(0.99) / 1e3, s.percentile(1.0) / 1e3);
+		}
+		out.flush();
+		return text.toString();
+	}
+
+	/**
+	 * Writes report() to a file every period, replacing the previous dump.
+	 * Started once, from -Ddbproject.metrics.file and -Ddbproject.metrics.period (seconds, 60).
+	 */
+	public static synchronized void startDump() {
+		final String file = System.getProperty("dbproject.metrics.file");
+		if (file == null || _dumper != null) return;
+		long period = Long.getLong("dbproject.metrics.period", 60L);
+		_dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "metrics-dump");
+			t.setDaemon(true);
+			return t;
+		});
+		_dumper.scheduleAtFixedRate(() -> {
+			try (Writer out = new BufferedWriter(new FileWriter(file))) {
+				out.write("# " + LocalDateTime.now() + "\n");
+				out.write(report());
+			}catch (IOException e) {
+				System.err.println("metrics dump: " + e.getMessage());
+			}
+		}, period, period, TimeUnit.SECONDS);
+	}
+}
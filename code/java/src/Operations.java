@@ -0,0 +1,232 @@
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+
+/**
+ * This class defines the eight operations of the application with typed
+ * parameters and no console input, so the menu of DBproject and the HTTP
+ * server run the same code.  Reports write their rows to a ResultRenderer
+ * chosen by the caller: the console table for the menu, JSON lines for the
+ * server.  Every method is safe to call from many threads at once; they
+ * share the connection pool and the statement caches of the DBproject.  The
+ * reports (5 to 8) may be answered by a replica, 6 to 8 from the result
+ * cache.
+ *
+ */
+
+public class Operations {
+	/**
+	 * Where a page of report 5 ended: the date and ID of its last row.  The
+	 * next page starts right after it, so paging never re-reads skipped rows.
+	 */
+	public static final class PageToken {
+		public final LocalDate adate;
+		public final int appointmentId;
+
+		public PageToken(LocalDate adate, int appointmentId) {
+			this.adate = adate;
+			this.appointmentId = appointmentId;
+		}
+
+		/**
+		 * @param token a token as written by toString, for example 2021-03-10:412
+		 * @return the position it names
+		 */
+		public static PageToken parse(String token) {
+			int colon = token.lastIndexOf(':');
+			if (colon < 0) throw new IllegalArgumentException("Invalid page token: " + token);
+			try {
+				return new PageToken(LocalDate.parse(token.substring(0, colon)), Integer.parseInt(token.substring(colon + 1)));
+			}catch (RuntimeException e) {
+				throw new IllegalArgumentException("Invalid page token: " + token);
+			}
+		}
+
+		public String toString() {
+			return this.adate + ":" + this.appointmentId;
+		}
+	}
+
+	private final DBproject _esql;
+
+	/**
+	 * @param esql the connected database
+	 */
+	public Operations(DBproject esql) {
+		this._esql = esql;
+	}
+
+	/**
+	 * @return the number of rows inserted
+	 */
+	public int addDoctor(int id, String name, String specialty, int did) throws SQLException {//1
+		return this._esql.executeUpdate(DBproject.ADD_DOCTOR_SQL, id, name, specialty, did);
+	}
+
+	/**
+	 * @return the number of rows inserted
+	 */
+	public int addPatient(int id, String name, String gender, int age, String address, int appointments) throws SQLException {//2
+		int rows = this._esql.executeUpdate(DBproject.ADD_PATIENT_SQL, id, name, gender, age, address, appointments);
+		this._esql.patients().add(id, name);
+		return rows;
+	}
+
+	/**
+	 * @param timeSlot the slot as start-end, for example 8:00-10:00
+	 * @return the number of rows inserted
+	 */
+	public int addAppointment(int id, Date adate, String timeSlot, String status) throws SQLException {//3
+		return addAppointment(id, adate, timeSlot, status, null, null);
+	}
+
+	/**
+	 * Adds an appointment of the doctor and the staff member, refused when
+	 * it overlaps one of their appointments that day.
+	 *
+	 * @param timeSlot the slot as start-end, for example 8:00-10:00
+	 * @param doctorId the doctor of the appointment, null for none
+	 * @param staffId the staff member scheduled on it, null for none
+	 * @return the number of rows inserted
+	 * @throws java.sql.SQLException with SQLSTATE 23P01 when the slot overlaps
+	 */
+	public int addAppointment(int id, Date adate, String timeSlot, String status, Integer doctorId, Integer staffId) throws SQLException {//3
+		TimeSlot slot = TimeSlot.parse(timeSlot);
+		if (doctorId == null && staffId == null) return this._esql.executeUpdate(DBproject.ADD_APPOINTMENT_SQL, id, adate, slot.toString(), status);
+		int rows = SlotConflicts.addAppointment(this._esql.pool(), id, adate, slot, status, doctorId, staffId);
+		this._esql.cache().invalidate("Appointment", "has_appointment", "schedules");
+		return rows;
+	}
+
+	/**
+	 * Books an appointment of the doctor for the patient.  The status check,
+	 * the status change and the patient link run as one transaction.
+	 *
+	 * @param appointmentId the appointment to book, null for the next available one
+	 * @return the outcome of the booking
+	 */
+	public BookingEngine.Booking makeAppointment(int doctorId, Integer appointmentId, BookingEngine.Patient patient) throws SQLException {//4
+		BookingEngine.Booking booking = appointmentId == null
+			? this._esql.bookings().bookNextAvailable(doctorId, patient)
+			: this._esql.bookings().book(doctorId, appointmentId, patient);
+		if (booking.outcome == BookingEngine.Outcome.ACTIVE || booking.outcome == BookingEngine.Outcome.WAITLISTED) {
+			this._esql.cache().invalidate("Appointment", "Patient", "searches");
+			//a patient already on file keeps the stored name and is already in the trie
+			if (booking.newPatient) this._esql.patients().add(patient.id, patient.name);
+		}
+		return booking;
+	}
+
+	/**
+	 * One page of the active and available appointments of the doctor from
+	 * from (included) to to (excluded), in date then ID order.  The page is a
+	 * range scan of the doctor_appointment index that starts at the token, so
+	 * its cost does not depend on how many pages came before.
+	 *
+	 * @param after the token of the previous page, null for the first page
+	 * @param pageSize the most rows written to out
+	 * @return the token of the next page, null when this was the last one
+	 */
+	public PageToken listAppointmentsOfDoctor(int doctorId, LocalDate from, LocalDate to, PageToken after, final int pageSize, final ResultRenderer out) throws SQLException {//5
+		if (pageSize < 1) throw new IllegalArgumentException("Page size must be positive: " + pageSize);
+		final Date[] lastDate = { null };
+		final int[] lastId = { 0 };
+		final int[] rows = { 0 };
+		//one row more than the page tells whether there is a next page, all in one round trip
+		this._esql.executeReadOnlyStreaming(DBproject.APPOINTMENTS_OF_DOCTOR_SQL, pageSize + 1, rs -> {
+			if (++rows[0] > pageSize) return;
+			lastDate[0] = rs.getDate(1);
+			lastId[0] = rs.getInt(2);
+			out.handle(rs);
+		}, doctorId, doctorId, Date.valueOf(after != null ? after.adate : from), after != null ? after.appointmentId : Integer.MIN_VALUE,
+			Date.valueOf(from), Date.valueOf(to), pageSize + 1);
+		out.finish();
+		return rows[0] > pageSize ? new PageToken(lastDate[0].toLocalDate(), lastId[0]) : null;
+	}
+
+	/**
+	 * Available appointments of the department on the date, answered from
+	 * the availability index when it is running.
+	 *
+	 * @return the number of rows written to out
+	 */
+	public int listAvailableAppointmentsOfDepartment(String dept, Date adate, ResultRenderer out) throws SQLException {//6
+		AvailabilityIndex index = this._esql.availability();
+		if (index == null || !index.ready()) {
+			this._esql.executeCachedQuery(DBproject.AVAILABLE_OF_DEPARTMENT_SQL, out, dept, adate);
+			return out.finish();
+		}
+
+		//answered from memory, kept up to date by the notify triggers
+		long start = System.nanoTime();
+		out.begin(new String[] { "appnt_id" }, new boolean[] { true });
+		String[] row = new String[1];
+		for (int id : index.lookup(dept, adate.toLocalDate())) {
+			row[0] = Integer.toString(id);
+			out.row(row);
+		}
+		int rowCount = out.finish();
+		Metrics.record("availability index lookup", new Object[] { dept, adate }, System.nanoTime() - start, rowCount, 0, false);
+		return rowCount;
+	}
+
+	/**
+	 * Number of appointments per doctor and status, largest first.
+	 *
+	 * @return the number of rows written to out
+	 */
+	public int listStatusNumberOfAppointmentsPerDoctor(ResultRenderer out) throws SQLException {//7
+		this._esql.executeCachedQuery(DBproject.STATUS_PER_DOCTOR_SQL, out);
+		return out.finish();
+	}
+
+	/**
+	 * Number of appointments per doctor with the given status.
+	 *
+	 * @param status PA, AC, AV or WL
+	 * @return the number of rows written to out
+	 */
+	public int findPatientsCountWithStatus(String status, ResultRenderer out) throws SQLException {//8
+		this._esql.executeCachedQuery(DBproject.PATIENTS_WITH_STATUS_SQL, out, status);
+		return out.finish();
+	}
+
+	/**
+	 * Patients whose name or address contains or resembles the text, names
+	 * starting with it first.  The search is logged to patient_lookup.
+	 *
+	 * @param limit the most rows written to out
+	 * @return the number of rows written to out
+	 */
+	public int searchPatients(String text, int limit, ResultRenderer out) throws SQLException {
+		this._esql.patients().search(text, limit, out);
+		return out.finish();
+	}
+
+	/**
+	 * The first patients whose name starts with the prefix, for type-ahead.
+	 *
+	 * @param limit the most rows written to out
+	 * @return the number of rows written to out
+	 */
+	public int suggestPatients(String prefix, int limit, ResultRenderer out) throws SQLException {
+		this._esql.patients().suggest(prefix, limit, out);
+		return out.finish();
+	}
+
+	/**
+	 * The departments with the most hours booked past their capacity from
+	 * from (included) to to (excluded).  The counters are loaded first when
+	 * the capacity planner is not running.
+	 *
+	 * @param limit the most rows written to out
+	 * @return the number of rows written to out
+	 */
+	public int departmentCapacity(LocalDate from, LocalDate to, int limit, ResultRenderer out) throws SQLException {
+		if (!to.isAfter(from)) throw new IllegalArgumentException("The last date must come after the first");
+		CapacityPlanner capacity = this._esql.capacity();
+		if (!capacity.warm()) capacity.load();
+		capacity.overloaded(from, to, limit, out);
+		return out.finish();
+	}
+}
@@ -0,0 +1,318 @@
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class defines the patient lookup of the front desk.
+ *
+ * search() finds the patients whose name or address contains the text, or
+ * is similar to it (pg_trgm, so a typo or two still matches), names
+ * starting with the text first, then by similarity.  Both columns have a
+ * trigram GIN index in create.sql, so neither kind of match scans Patient.
+ *
+ * suggest() serves type-ahead from a prefix trie of the lower case names,
+ * warmed from Patient in the background and told about the patients this
+ * process adds.  Every node keeps the first -Ddbproject.patient.trie.keep
+ * (10) patients under its prefix in name order, the trie stops at
+ * -Ddbproject.patient.trie.depth (16) characters and holds at most
+ * -Ddbproject.patient.trie.nodes (500000) nodes.  A prefix the trie cannot
+ * answer in full, or any prefix before it is warm, is answered by the
+ * database.  Patients added by other clients show up in the trie after a
+ * restart.
+ *
+ * Every search is logged to patient_lookup by a background writer, in
+ * batches of up to -Ddbproject.patient.log.batch (100) rows, so logging
+ * never holds up a lookup.  When the queue of
+ * -Ddbproject.patient.log.queue (10000) entries is full, entries are dropped
+ * and counted instead.
+ *
+ */
+
+public class PatientSearch implements AutoCloseable {
+	//names starting with the text first, then the closest
+	static final String SEARCH_SQL = "select patient_ID, name, address from Patient "
+		+ "where lower(name) like ? escape '\\' or lower(address) like ? escape '\\' or lower(name) % ? or lower(address) % ? "
+		+ "order by lower(name) like ? escape '\\' desc, greatest(similarity(lower(name), ?), similarity(lower(address), ?)) desc, patient_ID limit ?";
+	static final String PREFIX_SQL = "select patient_ID, name from Patient where lower(name) like ? escape '\\' "
+		+ "order by lower(name) collate \"C\", patient_ID limit ?";
+	static final String WARM_SQL = "select patient_ID, name from Patient order by lower(name) collate \"C\", patient_ID";
+	static final String LOG_SQL = "insert into patient_lookup (looked_up_at, query, matches) values (?, ?, ?)";
+
+	/**
+	 * One prefix of the trie.
+	 */
+	static final class Node {
+		char[] keys = new char[0];
+		Node[] children = new Node[0];
+		//the first patients under this prefix, by (lower case name, ID)
+		int[] ids = new int[0];
+		String[] names = new String[0];
+		//more patients have this prefix than are kept
+		boolean full = false;
+		//a child could not be added for lack of nodes, so longer prefixes are unknown
+		boolean cut = false;
+
+		Node child(char c) {
+			for (int i = 0; i < this.keys.length; ++i)
+				if (this.keys[i] == c) return this.children[i];
+			return null;
+		}
+
+		Node add(char c) {
+			Node node = new Node();
+			this.keys = Arrays.copyOf(this.keys, this.keys.length + 1);
+			this.children = Arrays.copyOf(this.children, this.children.length + 1);
+			this.keys[this.keys.length - 1] = c;
+			this.children[this.children.length - 1] = node;
+			return node;
+		}
+
+		void keep(int id, String name, String key, int keep) {
+			//a patient booked again is added again
+			for (int kept : this.ids)
+				if (kept == id) return;
+			int at = this.ids.length;
+			while (at > 0) {
+				int c = lower(this.names[at - 1]).compareTo(key);
+				if (c < 0 || (c == 0 && this.ids[at - 1] < id)) break;
+				--at;
+			}
+			if (at == keep) {
+				this.full = true;
+				return;
+			}
+			int size = Math.min(this.ids.length + 1, keep);
+			if (size == this.ids.length) this.full = true;
+			int[] ids = new int[size];
+			String[] names = new String[size];
+			System.arraycopy(this.ids, 0, ids, 0, at);
+			System.arraycopy(this.names, 0, names, 0, at);
+			ids[at] = id;
+			names[at] = name;
+			System.arraycopy(this.ids, at, ids, at + 1, size - at - 1);
+			System.arraycopy(this.names, at, names, at + 1, size - at - 1);
+			this.ids = ids;
+			this.names = names;
+		}
+	}
+
+	private final DBproject _esql;
+	private final int _keep;
+	private final int _depth;
+	private final int _maxNodes;
+	private final Node _root = new Node();
+	private int _nodes = 1;
+	private int _patients = 0;
+	private volatile boolean _ready = false;
+	private volatile boolean _closed = false;
+	private final AtomicLong _trieHits = new AtomicLong();
+	private final AtomicLong _trieMisses = new AtomicLong();
+
+	private final ArrayBlockingQueue<Object[]> _log;
+	private final int _logBatch;
+	private final AtomicLong _logged = new AtomicLong();
+	private final AtomicLong _dropped = new AtomicLong();
+	private volatile String _logProblem = null;
+	private final Thread _writer;
+
+	/**
+	 * Starts the log writer; the trie is empty until warm() is called.
+	 *
+	 * @param keep the patients kept per prefix, the longest type-ahead list the trie answers alone
+	 * @param depth the longest prefix with its own node
+	 * @param maxNodes the most nodes the trie may have
+	 * @param logQueue the most searches waiting to be logged
+	 * @param logBatch the most searches logged per insert
+	 */
+	public PatientSearch(DBproject esql, int keep, int depth, int maxNodes, int logQueue, int logBatch) {
+		this._esql = esql;
+		this._keep = keep;
+		this._depth = depth;
+		this._maxNodes = maxNodes;
+		this._log = new ArrayBlockingQueue<Object[]>(logQueue);
+		this._logBatch = logBatch;
+		this._writer = new Thread(this::writeLog, "patient-lookup-log");
+		this._writer.setDaemon(true);
+		this._writer.start();
+	}
+
+	/**
+	 * Loads every patient name into the trie on a background thread.
+	 */
+	public void warm() {
+		Thread loader = new Thread(() -> {
+			try {
+				long start = System.nanoTime();
+				this._esql.executeQueryStreaming(WARM_SQL, rs -> add(rs.getInt(1), rs.getString(2)));
+				this._ready = true;
+				Metrics.record("patient trie warm", new Object[0], System.nanoTime() - start, this._patients, 0, false);
+			}catch (SQLException e) {
+				System.err.println("Patient type-ahead answered by the database: " + e.getMessage());
+			}
+		}, "patient-trie-warm");
+		loader.setDaemon(true);
+		loader.start();
+	}
+
+	/**
+	 * Adds a patient to the trie, for the patients this process inserts.
+	 */
+	public synchronized void add(int id, String name) {
+		if (name == null) return;
+		String key = lower(name);
+		++this._patients;
+		Node node = this._root;
+		node.keep(id, name, key, this._keep);
+		for (int i = 0; i < Math.min(key.length(), this._depth); ++i) {
+			Node child = node.child(key.charAt(i));
+			if (child == null) {
+				if (this._nodes >= this._maxNodes) {
+					node.cut = true;
+					return;
+				}
+				child = node.add(key.charAt(i));
+				++this._nodes;
+			}
+			node = child;
+			node.keep(id, name, key, this._keep);
+		}
+	}
+
+	/**
+	 * Writes the patients whose name or address contains or resembles text,
+	 * best matches first, and logs the search.
+	 *
+	 * @return the number of rows written to out
+	 */
+	public int search(String text, int limit, ResultRenderer out) throws SQLException {
+		String q = lower(text.trim());
+		if (q.isEmpty()) throw new IllegalArgumentException("Enter part of a name or address");
+		String contains = "%" + escapeLike(q) + "%";
+		int rowCount = this._esql.executeReadOnlyStreaming(SEARCH_SQL, out, contains, contains, q, q, escapeLike(q) + "%", q, q, limit);
+		if (!this._log.offer(new Object[] { new Timestamp(System.currentTimeMillis()), text.length() > 256 ? text.substring(0, 256) : text, rowCount })) this._dropped.incrementAndGet();
+		return rowCount;
+	}
+
+	/**
+	 * Writes the first patients whose name starts with prefix, in name order.
+	 *
+	 * @return the number of rows written to out
+	 */
+	public int suggest(String prefix, int limit, ResultRenderer out) throws SQLException {
+		String q = lower(prefix.trim());
+		long start = System.nanoTime();
+		List<Object[]> found = lookup(q, limit);
+		if (found == null) {
+			this._trieMisses.incrementAndGet();
+			return this._esql.executeReadOnlyStreaming(PREFIX_SQL, out, escapeLike(q) + "%", limit);
+		}
+		this._trieHits.incrementAndGet();
+		out.begin(new String[] { "patient_id", "name" }, new boolean[] { true, false });
+		String[] row = new String[2];
+		for (Object[] patient : found) {
+			row[0] = patient[0].toString();
+			row[1] = (String) patient[1];
+			out.row(row);
+		}
+		Metrics.record("patient trie lookup", new Object[] { prefix }, System.nanoTime() - start, found.size(), 0, false);
+		return found.size();
+	}
+
+	/**
+	 * @return the size of the trie, how often it answered and the searches logged
+	 */
+	public String stats() {
+		int nodes;
+		int patients;
+		synchronized (this) {
+			nodes = this._nodes;
+			patients = this._patients;
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("patient trie: %s, %d patient(s), %d of %d node(s), %d hit(s), %d miss(es)%n",
+			this._ready ? "warm" : "warming", patients, nodes, this._maxNodes, this._trieHits.get(), this._trieMisses.get()));
+		sb.append(String.format("patient lookups logged: %d, queued %d, dropped %d%n", this._logged.get(), this._log.size(), this._dropped.get()));
+		if (this._logProblem != null) sb.append("last log error: ").append(this._logProblem).append(System.lineSeparator());
+		return sb.toString();
+	}
+
+	/**
+	 * Stops the log writer once the queued searches are written.
+	 */
+	public void close() {
+		this._closed = true;
+		this._writer.interrupt();
+		try {
+			this._writer.join(5000);
+		}catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return the first limit patients of the prefix as { id, name }, null when the trie cannot tell
+	 */
+	private synchronized List<Object[]> lookup(String prefix, int limit) {
+		if (!this._ready) return null;
+		Node node = this._root;
+		for (int i = 0; i < Math.min(prefix.length(), this._depth); ++i) {
+			Node child = node.child(prefix.charAt(i));
+			if (child == null) return node.cut ? null : new ArrayList<Object[]>();
+			node = child;
+		}
+		//beyond the depth the kept patients of the deepest node are filtered, still in name order
+		List<Object[]> found = new ArrayList<Object[]>();
+		for (int i = 0; i < node.ids.length && found.size() < limit; ++i)
+			if (lower(node.names[i]).startsWith(prefix)) found.add(new Object[] { node.ids[i], node.names[i] });
+		return found.size() >= limit || !node.full ? found : null;
+	}
+
+	private void writeLog() {
+		List<Object[]> batch = new ArrayList<Object[]>();
+		while (true) {
+			try {
+				if (this._closed && this._log.isEmpty()) return;
+				batch.add(this._log.take());
+			}catch (InterruptedException e) {
+				//closing: write what is left, then stop
+				if (this._log.isEmpty()) return;
+			}
+			this._log.drainTo(batch, this._logBatch - batch.size());
+			if (batch.isEmpty()) continue;
+			long start = System.nanoTime();
+			boolean failed = true;
+			try (ConnectionPool.PooledConnection conn = this._esql.pool().acquire()) {
+				PreparedStatement insert = conn.prepare(LOG_SQL);
+				for (Object[] entry : batch) {
+					DBproject.bind(insert, entry);
+					insert.addBatch();
+				}
+				insert.executeBatch();
+				this._logged.addAndGet(batch.size());
+				failed = false;
+			}catch (SQLException e) {
+				//the lookups are not retried, the log is best effort
+				this._logProblem = e.getMessage();
+				this._dropped.addAndGet(batch.size());
+			}finally{
+				Metrics.record(LOG_SQL, new Object[] { batch.size() }, System.nanoTime() - start, batch.size(), 0, failed);
+			}
+			batch.clear();
+		}
+	}
+
+	private static String lower(String s) {
+		return s.toLowerCase(Locale.ROOT);
+	}
+
+	//escapes the wildcards of LIKE with the escape character of the queries
+	private static String escapeLike(String s) {
+		return s.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+	}
+}
@@ -0,0 +1,169 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class defines the plan regression check of the menu queries.  Each
+ * query runs under EXPLAIN (ANALYZE, BUFFERS) with parameters picked from
+ * the loaded data (the busiest doctor, the department and date with the
+ * most available slots, the rarest status, ...).  A check fails when the
+ * plan does not use any of its intended indexes or the execution time is
+ * over its budget.  Inserts and locking queries run in a transaction that
+ * is rolled back.
+ *
+ * On small tables the planner rightly prefers sequential scans, so the index
+ * part is only enforced once Appointment has minRows rows; load scaled data
+ * before relying on it.  Budgets default to budgetMs and can be set per
+ * check with -Ddbproject.plancheck.<name>.ms.
+ *
+ */
+
+public class PlanCheck {
+	static final Pattern EXECUTION_TIME = Pattern.compile("(?:Execution Time|Total runtime): ([0-9.]+) ms");
+
+	/**
+	 * One query to explain with the indexes it should use.
+	 */
+	static final class Check {
+		final String name;
+		final String sql;
+		final Object[] params;
+		final String[] indexes;
+
+		Check(String name, String sql, Object[] params, String... indexes) {
+			this.name = name;
+			this.sql = sql;
+			this.params = params;
+			this.indexes = indexes;
+		}
+	}
+
+	private final DBproject _esql;
+	private final long _budgetMs;
+	private final long _minRows;
+
+	/**
+	 * @param esql the connected database
+	 * @param budgetMs the default latency budget of a query
+	 * @param minRows the Appointment size from which index use is enforced
+	 */
+	public PlanCheck(DBproject esql, long budgetMs, long minRows) {
+		this._esql = esql;
+		this._budgetMs = budgetMs;
+		this._minRows = minRows;
+	}
+
+	/**
+	 * Runs every check and prints its plan summary.
+	 *
+	 * @return true when every check passed
+	 * @throws java.sql.SQLException when a query cannot be explained
+	 */
+	public boolean run() throws SQLException {
+		this._esql.executeUpdate("analyze");
+		long appointments = Long.parseLong(value("select count(*) from Appointment"));
+		boolean enforceIndexes = appointments >= this._minRows;
+		if (!enforceIndexes)
+			System.out.println("Appointment has " + appointments + " row(s), index use is reported but not enforced below " + this._minRows);
+
+		boolean ok = true;
+		for (Check check : checks()) {
+			String plan = explain(check);
+			Matcher m = EXECUTION_TIME.matcher(plan);
+			double ms = m.find() ? Double.parseDouble(m.group(1)) : -1;
+			long budget = Long.getLong("dbproject.plancheck." + check.name + ".ms", this._budgetMs);
+
+			String used = null;
+			for (String index : check.indexes)
+				if (plan.contains(" " + index + " ") || plan.contains(" " + index + "\n")) used = index;
+			boolean indexOk = check.indexes.length == 0 || used != null || !enforceIndexes;
+			boolean timeOk = ms >= 0 && ms <= budget;
+
+			System.out.printf("%-4s %-42s %8.2f ms (budget %d) %s%n", indexOk && timeOk ? "OK" : "FAIL", check.name, ms, budget,
+				check.indexes.length == 0 ? "" : used != null ? "uses " + used : "no intended index used");
+			if (!indexOk || !timeOk) {
+				ok = false;
+				System.out.println(plan);
+			}
+		}
+		return ok;
+	}
+
+	/**
+	 * Builds the checks with parameters taken from the data.
+	 */
+	List<Check> checks() throws SQLException {
+		int doctor = Integer.parseInt(value("select doctor_id from has_appointment group by doctor_id order by count(*) desc limit 1"));
+		int appointment = Integer.parseInt(value("select max(appt_id) from has_appointment where doctor_id = ?", doctor));
+		java.sql.Date first = java.sql.Date.valueOf(value("select min(adate) from Appointment"));
+		java.sql.Date last = java.sql.Date.valueOf(value("select max(adate) from Appointment"));
+		ColumnarResult busiest = this._esql.executeQueryAndReturnColumns(
+			"select R.dept_name, A.adate from Appointment A, has_appointment H, request_maintenance R "
+			+ "where A.status = 'AV' and H.appt_id = A.appnt_ID and R.did = H.doctor_id group by 1, 2 order by count(*) desc limit 1");
+		String dept = busiest.rowCount() == 0 ? "" : busiest.getString(0, 0);
+		java.sql.Date day = busiest.rowCount() == 0 ? first : java.sql.Date.valueOf(busiest.getDate(0, 1));
+		String rarest = value("select status from Appointment where status is not null group by status order by count(*) limit 1");
+		int dept_ID = Integer.parseInt(value("select min(dept_ID) from Department"));
+		String name = value("select lower(name) from Patient order by patient_ID limit 1");
+		String part = name.substring(0, Math.min(5, name.length()));
+
+		List<Check> checks = new ArrayList<Check>();
+		checks.add(new Check("AddDoctor", DBproject.ADD_DOCTOR_SQL,
+			new Object[] { nextId("Doctor", "doctor_ID"), "Plan Check", "None", dept_ID }));
+		checks.add(new Check("AddPatient", DBproject.ADD_PATIENT_SQL,
+			new Object[] { nextId("Patient", "patient_ID"), "Plan Check", "F", 30, "plan check", 0 }));
+		checks.add(new Check("AddAppointment", DBproject.ADD_APPOINTMENT_SQL,
+			new Object[] { nextId("Appointment", "appnt_ID"), last, "8:00-10:00", "AV" }));
+		checks.add(new Check("MakeAppointment.lock", BookingEngine.LOCK_SLOT_SQL,
+			new Object[] { appointment, doctor }, "appointment_pkey"));
+		checks.add(new Check("MakeAppointment.overlap", SlotConflicts.DOCTOR_DAY_SQL,
+			new Object[] { doctor, last }, "doctor_appointment_day_idx"));
+		checks.add(new Check("ListAppointmentsOfDoctor", DBproject.APPOINTMENTS_OF_DOCTOR_SQL,
+			new Object[] { doctor, doctor, first, Integer.MIN_VALUE, first, java.sql.Date.valueOf(last.toLocalDate().plusDays(1)), DBproject.PAGE_SIZE + 1 },
+			"doctor_appointment_open_idx"));
+		checks.add(new Check("ListAvailableAppointmentsOfDepartment", DBproject.AVAILABLE_OF_DEPARTMENT_SQL,
+			new Object[] { dept, day }, "request_maintenance_dept_idx", "appointment_available_adate_idx"));
+		checks.add(new Check("ListStatusNumberOfAppointmentsPerDoctor", DBproject.STATUS_PER_DOCTOR_SQL,
+			new Object[0]));
+		checks.add(new Check("FindPatientsCountWithStatus", DBproject.PATIENTS_WITH_STATUS_SQL,
+			new Object[] { rarest }));
+		checks.add(new Check("SearchPatients", PatientSearch.SEARCH_SQL,
+			new Object[] { "%" + part + "%", "%" + part + "%", part, part, part + "%", part, part, DBproject.PAGE_SIZE },
+			"patient_name_trgm_idx", "patient_address_trgm_idx"));
+		return checks;
+	}
+
+	private String explain(Check check) throws SQLException {
+		try (ConnectionPool.PooledConnection conn = this._esql.pool().acquire()) {
+			Connection c = conn.connection();
+			//the inserts and row locks of EXPLAIN ANALYZE are rolled back on release
+			c.setAutoCommit(false);
+			try (PreparedStatement stmt = c.prepareStatement("EXPLAIN (ANALYZE, BUFFERS) " + check.sql)) {
+				DBproject.bind(stmt, check.params);
+				StringBuilder plan = new StringBuilder();
+				try (ResultSet rs = stmt.executeQuery()) {
+					while (rs.next())
+						plan.append(rs.getString(1)).append('\n');
+				}
+				return plan.toString();
+			}finally{
+				c.rollback();
+			}
+		}
+	}
+
+	private int nextId(String table, String column) throws SQLException {
+		return Integer.parseInt(value("select coalesce(max(" + column + "), 0) + 1 from " + table));
+	}
+
+	private String value(String query, Object... params) throws SQLException {
+		ColumnarResult rows = this._esql.executeQueryAndReturnColumns(query, params);
+		if (rows.rowCount() == 0 || rows.isNull(0, 0)) throw new SQLException("No data for the plan check: " + query);
+		return rows.getString(0, 0);
+	}
+}
@@ -0,0 +1,250 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class defines the routing of statements between the primary and its
+ * streaming replicas.  Writes, and reads that must see the latest writes,
+ * use the primary pool; read only reports borrow a connection from a
+ * replica, round robin, so read capacity grows with the number of replicas.
+ *
+ * A background thread checks every replica each -Ddbproject.replica.check.ms
+ * (1000 ms): it must answer, be in recovery and have replayed the WAL up
+ * to where the primary was a moment before, or have done so less than the
+ * staleness budget ago.  A replica failing the check, or whose last check
+ * is more than three periods old, gets no reads until it passes again.
+ * With no healthy replica reads go to the primary.
+ *
+ */
+
+public class ReplicaRouter implements AutoCloseable {
+	//the replay lag is 0 once the replica has replayed the primary position, else the age of its last replayed commit
+	//(unknown, so too large, when it has replayed none yet)
+	static final String LAG_SQL = "select pg_is_in_recovery(), case when pg_last_wal_replay_lsn() >= ?::pg_lsn then 0 "
+		+ "else coalesce(extract(epoch from now() - pg_last_xact_replay_timestamp()) * 1000, 2147483647) end";
+
+	/**
+	 * One replica with the outcome of its last check.
+	 */
+	static final class Replica {
+		final String name;
+		final ConnectionPool pool;
+		final AtomicLong reads = new AtomicLong();
+		//set by the checks; a failed acquire also clears healthy
+		volatile boolean healthy = false;
+		volatile long lagMillis = -1;
+		volatile long checkedAt = 0;
+		volatile String problem = "not checked yet";
+		Connection check = null;
+
+		Replica(String name, ConnectionPool pool) {
+			this.name = name;
+			this.pool = pool;
+		}
+	}
+
+	private final ConnectionPool _primary;
+	private final List<Replica> _replicas = new CopyOnWriteArrayList<Replica>();
+	private final long _maxLagMillis;
+	private final long _checkMillis;
+	private final AtomicInteger _next = new AtomicInteger();
+	private final AtomicLong _primaryReads = new AtomicLong();
+	private volatile boolean _closed = false;
+	private Thread _checker = null;
+	private Connection _primaryCheck = null;
+
+	/**
+	 * @param primary the pool of the primary
+	 * @param maxLagMillis the staleness budget, how far behind the primary a replica may be
+	 * @param checkMillis the period of the health checks
+	 */
+	public ReplicaRouter(ConnectionPool primary, long maxLagMillis, long checkMillis) {
+		this._primary = primary;
+		this._maxLagMillis = maxLagMillis;
+		this._checkMillis = checkMillis;
+	}
+
+	/**
+	 * Adds a replica.  Its connections are opened lazily, read only, with the
+	 * same database, user and password as the primary.
+	 *
+	 * @param hostPort the replica endpoint as host:port
+	 */
+	public void addReplica(String hostPort, String dbname, Properties props, int poolSize, int cacheSize) {
+		Properties replicaProps = new Properties();
+		replicaProps.putAll(props);
+		replicaProps.setProperty("readOnly", "true");
+		String url = "jdbc:postgresql://" + hostPort + "/" + dbname;
+		this._replicas.add(new Replica(hostPort, new ConnectionPool(url, replicaProps, poolSize, cacheSize, 30000L)));
+	}
+
+	/**
+	 * Starts the health checks, if there are replicas.
+	 */
+	public synchronized void start() {
+		if (this._replicas.isEmpty() || this._checker != null) return;
+		this._checker = new Thread(() -> {
+			while (!this._closed) {
+				checkAll();
+				try {
+					Thread.sleep(this._checkMillis);
+				}catch (InterruptedException e) {
+					return;
+				}
+			}
+		}, "replica-check");
+		this._checker.setDaemon(true);
+		this._checker.start();
+	}
+
+	/**
+	 * @return the pool of the primary, for writes and reads that must see every write
+	 */
+	public ConnectionPool primary() {
+		return this._primary;
+	}
+
+	/**
+	 * @return the staleness budget, how far behind the primary a replica read may be
+	 */
+	public long maxLagMillis() {
+		return this._maxLagMillis;
+	}
+
+	/**
+	 * Borrows a connection for a read only statement: from a healthy replica
+	 * within the staleness budget if there is one, else from the primary.
+	 *
+	 * @return a pooled connection, on which only reads may run
+	 * @throws java.sql.SQLException when no connection can be borrowed
+	 */
+	public ConnectionPool.PooledConnection acquireRead() throws SQLException {
+		int count = this._replicas.size();
+		if (count > 0) {
+			long now = System.currentTimeMillis();
+			int first = Math.floorMod(this._next.getAndIncrement(), count);
+			for (int i = 0; i < count; ++i) {
+				Replica replica = this._replicas.get((first + i) % count);
+				if (!replica.healthy || replica.lagMillis > this._maxLagMillis || now - replica.checkedAt > 3 * this._checkMillis) continue;
+				try {
+					ConnectionPool.PooledConnection conn = replica.pool.acquire();
+					replica.reads.incrementAndGet();
+					return conn;
+				}catch (SQLException e) {
+					//the next check decides when it gets reads again
+					replica.healthy = false;
+					replica.problem = e.getMessage();
+				}
+			}
+		}
+		this._primaryReads.incrementAndGet();
+		return this._primary.acquire();
+	}
+
+	/**
+	 * @return one line per endpoint with its health, lag and reads served
+	 */
+	public String status() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-24s %-9s %10s %10s%n", "endpoint", "state", "lag ms", "reads"));
+		sb.append(String.format("%-24s %-9s %10s %10d%n", "primary", "primary", "-", this._primaryReads.get()));
+		for (Replica replica : this._replicas) {
+			String state = !replica.healthy ? "down" : replica.lagMillis > this._maxLagMillis ? "stale" : "ok";
+			sb.append(String.format("%-24s %-9s %10s %10d", replica.name, state,
+				replica.lagMillis < 0 ? "-" : Long.toString(replica.lagMillis), replica.reads.get()));
+			if (!replica.healthy) sb.append("  ").append(replica.problem);
+			sb.append(System.lineSeparator());
+		}
+		sb.append("staleness budget " + this._maxLagMillis + " ms").append(System.lineSeparator());
+		return sb.toString();
+	}
+
+	/**
+	 * Stops the checks and closes the replica pools.  The primary pool
+	 * belongs to the caller.
+	 */
+	public void close() {
+		this._closed = true;
+		Thread checker;
+		synchronized (this) {
+			checker = this._checker;
+		}
+		if (checker != null) {
+			checker.interrupt();
+			try {
+				checker.join(1000);
+			}catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		closeQuietly(this._primaryCheck);
+		for (Replica replica : this._replicas) {
+			closeQuietly(replica.check);
+			replica.pool.close();
+		}
+	}
+
+	private void checkAll() {
+		//where the primary is now; a replica that has replayed up to here is not behind
+		String position;
+		try {
+			if (this._primaryCheck == null) this._primaryCheck = this._primary.openDedicated();
+			try (Statement stmt = this._primaryCheck.createStatement();
+				 ResultSet rs = stmt.executeQuery("select pg_current_wal_lsn()::text")) {
+				rs.next();
+				position = rs.getString(1);
+			}
+		}catch (SQLException e) {
+			System.err.println(e.getMessage());
+			closeQuietly(this._primaryCheck);
+			this._primaryCheck = null;
+			//without the primary position only the replay timestamp tells the lag
+			position = "FFFFFFFF/FFFFFFFF";
+		}
+		for (Replica replica : this._replicas)
+			check(replica, position);
+	}
+
+	private void check(Replica replica, String position) {
+		try {
+			if (replica.check == null) replica.check = replica.pool.openDedicated();
+			try (PreparedStatement stmt = replica.check.prepareStatement(LAG_SQL)) {
+				stmt.setString(1, position);
+				try (ResultSet rs = stmt.executeQuery()) {
+					rs.next();
+					if (!rs.getBoolean(1)) {
+						//promoted or not a replica at all: its data may have diverged
+						replica.healthy = false;
+						replica.problem = "not in recovery";
+					}else{
+						replica.lagMillis = rs.getLong(2);
+						replica.healthy = true;
+						replica.problem = null;
+					}
+				}
+			}
+		}catch (SQLException e) {
+			replica.healthy = false;
+			replica.problem = e.getMessage();
+			closeQuietly(replica.check);
+			replica.check = null;
+		}
+		replica.checkedAt = System.currentTimeMillis();
+	}
+
+	private static void closeQuietly(Connection conn) {
+		if (conn == null) return;
+		try {
+			conn.close();
+		}catch (SQLException e) {
+			// ignored.
+		}
+	}
+}
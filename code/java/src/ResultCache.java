@@ -0,0 +1,471 @@
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class defines the cache of report results.  Entries are keyed on
+ * the normalized statement text plus the parameters, live for the TTL of
+ * the operation that ran them (-Ddbproject.cache.ttl.<operation>, else
+ * -Ddbproject.cache.ttl.ms, 5000 by default, 0 turns caching off) and are
+ * evicted least recently used first once their total size passes
+ * -Ddbproject.cache.bytes (16MB).
+ *
+ * Each entry remembers the tables its statement reads.  A write through
+ * DBproject.executeUpdate or a booking drops every entry reading the
+ * written table, or a table the triggers of create.sql update from it.
+ * Tables also carry a generation number, so a result read while a write
+ * commits is never stored as current.  Writes by other clients are only
+ * seen once the TTL expires.  The time of the last write of every table is
+ * kept too, so a result is not read from a replica that may not have
+ * replayed the write yet.
+ *
+ * The rows of an entry are kept as one char array of all values with the
+ * end offset of every cell, rather than as a list of lists of strings.
+ *
+ */
+
+public class ResultCache {
+	//tables the triggers of create.sql write when the key is written
+	static final Map<String, List<String>> TRIGGERED = new HashMap<String, List<String>>();
+	static {
+		TRIGGERED.put("appointment", Arrays.asList("doctor_status_count", "doctor_appointment"));
+		TRIGGERED.put("has_appointment", Arrays.asList("doctor_status_count", "doctor_appointment"));
+		//deleting a doctor cascades to its counters
+		TRIGGERED.put("doctor", Arrays.asList("doctor_status_count"));
+	}
+
+	static final String IDENT = "[a-z_][a-z0-9_$]*(?:\\.[a-z_][a-z0-9_$]*)?";
+	static final Pattern READS = Pattern.compile("\\b(?:from|join)\\s+(" + IDENT + "(?:\\s+" + IDENT + ")?(?:\\s*,\\s*" + IDENT + "(?:\\s+" + IDENT + ")?)*)");
+	static final Pattern WRITES = Pattern.compile("^\\s*(?:insert\\s+into|update|delete\\s+from|truncate(?:\\s+table)?|copy)\\s+(?:only\\s+)?(" + IDENT + ")");
+
+	/**
+	 * Statement text and parameters.
+	 */
+	static final class Key {
+		final String sql;
+		final Object[] params;
+		final int hash;
+
+		Key(String sql, Object[] params) {
+			this.sql = sql;
+			this.params = params.clone();
+			this.hash = sql.hashCode() * 31 + Arrays.hashCode(params);
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			return this.hash == k.hash && this.sql.equals(k.sql) && Arrays.equals(this.params, k.params);
+		}
+
+		public int hashCode() {
+			return this.hash;
+		}
+	}
+
+	/**
+	 * A cached result: the column labels and every value in one char array.
+	 */
+	static final class Entry {
+		final String[] columns;
+		final boolean[] numeric;
+		final int rowCount;
+		final char[] chars;
+		//end offset in chars of every cell, row by row
+		final int[] ends;
+		final BitSet nulls;
+		final String[] tables;
+		final long[] generations;
+		final long expiresAt;
+		final long bytes;
+
+		Entry(Builder b, long expiresAt) {
+			this.columns = b._columns;
+			this.numeric = b._numeric;
+			this.rowCount = b._rowCount;
+			this.chars = new char[b._chars.length()];
+			b._chars.getChars(0, this.chars.length, this.chars, 0);
+			this.ends = Arrays.copyOf(b._ends, b._cells);
+			this.nulls = b._nulls;
+			this.tables = b._tables;
+			this.generations = b._generations;
+			this.expiresAt = expiresAt;
+			this.bytes = 64 + 2L * this.chars.length + 4L * this.ends.length + this.nulls.size() / 8 + 2L * b._key.sql.length();
+		}
+
+		/**
+		 * Writes the rows to the renderer, which is not finished.
+		 *
+		 * @return the number of rows written
+		 */
+		int render(ResultRenderer out) {
+			if (this.rowCount == 0) return 0;
+			out.begin(this.columns, this.numeric);
+			int numCol = this.columns.length;
+			String[] row = new String[numCol];
+			int cell = 0;
+			int start = 0;
+			for (int r = 0; r < this.rowCount; ++r) {
+				for (int c = 0; c < numCol; ++c, ++cell) {
+					int end = this.ends[cell];
+					row[c] = this.nulls.get(cell) ? null : new String(this.chars, start, end - start);
+					start = end;
+				}
+				out.row(row);
+			}
+			return this.rowCount;
+		}
+	}
+
+	/**
+	 * Collects the rows of a result as they stream by.  It gives up, and the
+	 * result is not cached, once the rows pass the largest entry size.
+	 */
+	final class Builder {
+		private final Key _key;
+		private final String[] _tables;
+		private final long[] _generations;
+		//the time of the last write of a table read, 0 when none was written
+		private final long _writtenAt;
+		private String[] _columns = null;
+		private boolean[] _numeric = null;
+		private String[] _row = null;
+		private final StringBuilder _chars = new StringBuilder();
+		private int[] _ends = new int[64];
+		private final BitSet _nulls = new BitSet();
+		private int _cells = 0;
+		private int _rowCount = 0;
+		private boolean _full = false;
+
+		private Builder(Key key, String[] tables) {
+			this._key = key;
+			this._tables = tables;
+			//taken before the statement runs, so a write committed meanwhile makes the result stale
+			this._generations = new long[tables.length + 1];
+			this._generations[0] = ResultCache.this._everything.get();
+			long writtenAt = ResultCache.this._everythingWrittenAt;
+			for (int i = 0; i < tables.length; ++i) {
+				this._generations[i + 1] = generation(tables[i]).get();
+				Long at = ResultCache.this._writtenAt.get(tables[i]);
+				if (at != null) writtenAt = Math.max(writtenAt, at);
+			}
+			this._writtenAt = writtenAt;
+		}
+
+		/**
+		 * @return whether a table the statement reads was written less than millis ago
+		 */
+		boolean writtenWithin(long millis) {
+			return this._writtenAt > 0 && System.currentTimeMillis() - this._writtenAt < millis;
+		}
+
+		/**
+		 * @param values the row values, null for SQL NULL; the array may be re-used afterwards
+		 */
+		void add(String[] values) {
+			if (this._full) return;
+			if (this._ends.length < this._cells + values.length)
+				this._ends = Arrays.copyOf(this._ends, Math.max(this._ends.length * 2, this._cells + values.length));
+			for (String v : values) {
+				if (v == null) this._nulls.set(this._cells);
+				else this._chars.append(v);
+				this._ends[this._cells++] = this._chars.length();
+			}
+			++this._rowCount;
+			if (2L * this._chars.length() + 4L * this._cells > ResultCache.this._maxEntryBytes) {
+				//too large to be worth keeping, let the memory go
+				this._full = true;
+				this._chars.setLength(0);
+				this._chars.trimToSize();
+				this._ends = null;
+			}
+		}
+
+		/**
+		 * Reads the column labels of the result on its first row, then adds the row.
+		 *
+		 * @return the values of the row, in an array re-used for the next row
+		 */
+		String[] add(ResultSet rs) throws SQLException {
+			if (this._columns == null) {
+				ResultSetMetaData rsmd = rs.getMetaData();
+				int numCol = rsmd.getColumnCount();
+				this._columns = new String[numCol];
+				this._numeric = new boolean[numCol];
+				for (int i = 0; i < numCol; ++i) {
+					this._columns[i] = rsmd.getColumnName(i + 1);
+					this._numeric[i] = ResultRenderer.isNumeric(rsmd.getColumnType(i + 1));
+				}
+				this._row = new String[numCol];
+			}
+			for (int i = 0; i < this._row.length; ++i)
+				this._row[i] = rs.getString(i + 1);
+			add(this._row);
+			return this._row;
+		}
+
+		/**
+		 * @return the column labels, null before the first row
+		 */
+		String[] columns() {
+			return this._columns;
+		}
+
+		boolean[] numeric() {
+			return this._numeric;
+		}
+	}
+
+	private final long _maxBytes;
+	private final long _maxEntryBytes;
+	private final long _defaultTtlMillis;
+	//access ordered, the eldest entry is the least recently used
+	private final LinkedHashMap<Key, Entry> _entries = new LinkedHashMap<Key, Entry>(64, 0.75f, true);
+	private long _bytes = 0;
+	private final Map<String, AtomicLong> _generations = new ConcurrentHashMap<String, AtomicLong>();
+	//bumped by writes the cache cannot attribute to a table
+	private final AtomicLong _everything = new AtomicLong();
+	//the time of the last write of every table, and of the last write of unknown tables
+	private final Map<String, Long> _writtenAt = new ConcurrentHashMap<String, Long>();
+	private volatile long _everythingWrittenAt = 0;
+	private final Map<String, String[]> _tablesRead = new ConcurrentHashMap<String, String[]>();
+	private final Map<String, Long> _ttls = new ConcurrentHashMap<String, Long>();
+
+	private long _hits = 0;
+	private long _misses = 0;
+	private long _stores = 0;
+	private long _evictions = 0;
+	private long _invalidations = 0;
+	private long _expirations = 0;
+
+	/**
+	 * @param maxBytes the largest total size of the entries, 0 turns the cache off
+	 * @param defaultTtlMillis how long entries live unless their operation sets its own TTL
+	 */
+	public ResultCache(long maxBytes, long defaultTtlMillis) {
+		this._maxBytes = maxBytes;
+		//one result may take an eighth of the cache
+		this._maxEntryBytes = maxBytes / 8;
+		this._defaultTtlMillis = defaultTtlMillis;
+	}
+
+	/**
+	 * @param operation the operation name as in the metrics, null for none
+	 * @return how long results of the operation are kept, 0 when they are not cached
+	 */
+	public long ttl(String operation) {
+		if (this._maxBytes <= 0) return 0;
+		if (operation == null) return this._defaultTtlMillis;
+		Long ttl = this._ttls.get(operation);
+		if (ttl == null) {
+			ttl = Long.getLong("dbproject.cache.ttl." + operation, this._defaultTtlMillis);
+			this._ttls.put(operation, ttl);
+		}
+		return ttl;
+	}
+
+	/**
+	 * @return the cached result of the statement, or null on a miss
+	 */
+	synchronized Entry get(String sql, Object[] params) {
+		Key key = new Key(normalize(sql), params);
+		Entry entry = this._entries.get(key);
+		if (entry != null && System.currentTimeMillis() >= entry.expiresAt) {
+			remove(key);
+			++this._expirations;
+			entry = null;
+		}
+		if (entry == null || !current(entry)) {
+			if (entry != null) {
+				remove(key);
+				++this._invalidations;
+			}
+			++this._misses;
+			return null;
+		}
+		++this._hits;
+		return entry;
+	}
+
+	/**
+	 * Starts collecting the result of a statement about to run.
+	 *
+	 * @return a builder, null when the tables read by the statement are not known
+	 */
+	Builder builder(String sql, Object[] params) {
+		String normalized = normalize(sql);
+		String[] tables = tablesRead(normalized);
+		if (tables.length == 0) return null;
+		return new Builder(new Key(normalized, params), tables);
+	}
+
+	/**
+	 * Stores a complete result, unless it grew too large or a table it
+	 * read was written while it ran.
+	 */
+	synchronized void put(Builder builder, long ttlMillis) {
+		if (builder._full || ttlMillis <= 0) return;
+		Entry entry = new Entry(builder, System.currentTimeMillis() + ttlMillis);
+		if (!current(entry)) return;
+		remove(builder._key);
+		this._entries.put(builder._key, entry);
+		this._bytes += entry.bytes;
+		++this._stores;
+		Iterator<Entry> it = this._entries.values().iterator();
+		while (this._bytes > this._maxBytes && it.hasNext()) {
+			this._bytes -= it.next().bytes;
+			it.remove();
+			++this._evictions;
+		}
+	}
+
+	/**
+	 * Drops the results that read the table the statement writes, and the
+	 * tables the triggers write from it.  A statement the cache cannot parse
+	 * drops every result.
+	 *
+	 * @param sql a statement that was executed (insert, update, delete, ...)
+	 */
+	public void written(String sql) {
+		Matcher m = WRITES.matcher(normalize(sql));
+		if (m.find()) {
+			invalidate(m.group(1));
+			return;
+		}
+		this._everythingWrittenAt = System.currentTimeMillis();
+		this._everything.incrementAndGet();
+		synchronized (this) {
+			this._invalidations += this._entries.size();
+			this._entries.clear();
+			this._bytes = 0;
+		}
+	}
+
+	/**
+	 * Drops the results that read any of the tables, or a table the triggers
+	 * write from them.
+	 *
+	 * @param tables table names, case insensitive
+	 */
+	public void invalidate(String... tables) {
+		Set<String> all = new HashSet<String>();
+		for (String table : tables)
+			addWithTriggered(table.toLowerCase(), all);
+		long now = System.currentTimeMillis();
+		for (String table : all) {
+			this._writtenAt.put(table, now);
+			generation(table).incrementAndGet();
+		}
+		synchronized (this) {
+			Iterator<Entry> it = this._entries.values().iterator();
+			while (it.hasNext()) {
+				Entry entry = it.next();
+				for (String table : entry.tables) {
+					if (!all.contains(table)) continue;
+					this._bytes -= entry.bytes;
+					it.remove();
+					++this._invalidations;
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return one line with the size and the hit, miss and eviction counts
+	 */
+	public synchronized String stats() {
+		long lookups = this._hits + this._misses;
+		return String.format("result cache: %d entries, %d of %d KB, %d hits, %d misses (%.1f%% hits), %d stored, "
+			+ "%d evicted, %d invalidated, %d expired%n", this._entries.size(), this._bytes / 1024, this._maxBytes / 1024,
+			this._hits, this._misses, lookups == 0 ? 0.0 : 100.0 * this._hits / lookups, this._stores,
+			this._evictions, this._invalidations, this._expirations);
+	}
+
+	private boolean current(Entry entry) {
+		if (entry.generations[0] != this._everything.get()) return false;
+		for (int i = 0; i < entry.tables.length; ++i)
+			if (entry.generations[i + 1] != generation(entry.tables[i]).get()) return false;
+		return true;
+	}
+
+	private void remove(Key key) {
+		Entry old = this._entries.remove(key);
+		if (old != null) this._bytes -= old.bytes;
+	}
+
+	private AtomicLong generation(String table) {
+		return this._generations.computeIfAbsent(table, t -> new AtomicLong());
+	}
+
+	private static void addWithTriggered(String table, Set<String> all) {
+		//schema qualified names are tracked by their table name
+		table = table.substring(table.lastIndexOf('.') + 1);
+		if (!all.add(table)) return;
+		List<String> triggered = TRIGGERED.get(table);
+		if (triggered == null) return;
+		for (String t : triggered)
+			addWithTriggered(t, all);
+	}
+
+	/**
+	 * @return the tables named after from and join in the statement
+	 */
+	private String[] tablesRead(String normalized) {
+		String[] tables = this._tablesRead.get(normalized);
+		if (tables != null) return tables;
+		Set<String> found = new HashSet<String>();
+		Matcher m = READS.matcher(normalized);
+		while (m.find()) {
+			for (String item : m.group(1).split(",")) {
+				String table = item.trim().split("\\s+")[0];
+				found.add(table.substring(table.lastIndexOf('.') + 1));
+			}
+		}
+		List<String> sorted = new ArrayList<String>(found);
+		Collections.sort(sorted);
+		tables = sorted.toArray(new String[0]);
+		this._tablesRead.put(normalized, tables);
+		return tables;
+	}
+
+	/**
+	 * Lower cases the statement and collapses runs of white space, outside
+	 * of quoted literals and identifiers.
+	 */
+	static String normalize(String sql) {
+		StringBuilder sb = new StringBuilder(sql.length());
+		char quote = 0;
+		boolean space = false;
+		for (int i = 0; i < sql.length(); ++i) {
+			char c = sql.charAt(i);
+			if (quote != 0) {
+				sb.append(c);
+				if (c == quote) quote = 0;
+			}else if (Character.isWhitespace(c)) {
+				space = true;
+			}else{
+				if (space && sb.length() > 0) sb.append(' ');
+				space = false;
+				if (c == '\'' || c == '"') quote = c;
+				sb.append(Character.toLowerCase(c));
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,314 @@
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class defines the output stage for query results.  Rows are written
+ * through one large buffered writer in one of several formats, the column
+ * metadata is read once per result and the writer is flushed in batches
+ * rather than once per cell.
+ *
+ */
+
+public class ResultRenderer implements DBproject.RowHandler {
+	//rows written between two flushes, also the rows used to size table columns
+	static final int BATCH = 1000;
+	//widest column the aligned table pads to
+	static final int MAX_WIDTH = 48;
+
+	public enum Format {
+		TABLE, TSV, CSV, JSON;
+
+		/**
+		 * @param name the format name, case insensitive (table, tsv, csv, json)
+		 * @return the matching format
+		 */
+		public static Format parse(String name) {
+			return valueOf(name.trim().toUpperCase());
+		}
+	}
+
+	private final Format _format;
+	private final Writer _out;
+	private final long _start = System.nanoTime();
+
+	private String[] _columns = null;
+	private boolean[] _numeric = null;
+	private String[] _values = null;
+	private int[] _widths = null;
+	//rows held back until the table column widths are known
+	private List<String[]> _pending = null;
+	private int _rowCount = 0;
+	private long _elapsed = 0;
+
+	/**
+	 * @param format the output format
+	 * @param out the destination, wrapped in a 64KB buffer
+	 */
+	public ResultRenderer(Format format, Writer out) {
+		this._format = format;
+		this._out = new BufferedWriter(out, 1 << 16);
+		if (format == Format.TABLE) this._pending = new ArrayList<String[]>();
+	}
+
+	/**
+	 * @param format the output format
+	 * @return a renderer writing to standard out, bypassing System.out
+	 */
+	public static ResultRenderer toStdout(Format format) {
+		return new ResultRenderer(format, new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @return the format configured with -Ddbproject.output.format, table by default
+	 */
+	public static Format defaultFormat() {
+		return Format.parse(System.getProperty("dbproject.output.format", "table"));
+	}
+
+	/**
+	 * Starts a result with the given column labels.  The header is written
+	 * even if no row follows.
+	 *
+	 * @param columns the column labels
+	 * @param numeric which columns hold numbers, or null if unknown
+	 */
+	public void begin(String[] columns, boolean[] numeric) {
+		boolean first = this._columns == null;
+		this._columns = columns;
+		this._numeric = numeric != null ? numeric : new boolean[columns.length];
+		this._values = new String[columns.length];
+		try {
+			if (first) writeHeader();
+		}catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Reads the metadata on the first row only, then copies the row into a
+	 * re-used buffer and writes it.
+	 */
+	public void handle(ResultSet rs) throws SQLException {
+		if (this._columns == null) {
+			ResultSetMetaData rsmd = rs.getMetaData();
+			int numCol = rsmd.getColumnCount();
+			String[] columns = new String[numCol];
+			boolean[] numeric = new boolean[numCol];
+			for (int i = 0; i < numCol; ++i) {
+				columns[i] = rsmd.getColumnName(i + 1);
+				numeric[i] = isNumeric(rsmd.getColumnType(i + 1));
+			}
+			begin(columns, numeric);
+		}
+		long bytes = 0;
+		for (int i = 0; i < this._values.length; ++i) {
+			this._values[i] = rs.getString(i + 1);
+			if (this._values[i] != null) bytes += this._values[i].length();
+		}
+		Metrics.addBytes(bytes);
+		row(this._values);
+	}
+
+	/**
+	 * Writes one row.  The array may be re-used by the caller afterwards.
+	 *
+	 * @param values the row values, null for SQL NULL
+	 */
+	public void row(String[] values) {
+		try {
+			++this._rowCount;
+			if (this._pending != null) {
+				//the table format sizes its columns on the first batch
+				this._pending.add(values.clone());
+				if (this._pending.size() >= BATCH) drainPending();
+				return;
+			}
+			writeRow(values);
+			if (this._rowCount % BATCH == 0) this._out.flush();
+		}catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Writes the remaining rows and flushes the writer.
+	 *
+	 * @return the number of rows written
+	 */
+	public int finish() {
+		try {
+			if (this._pending != null) drainPending();
+			this._out.flush();
+		}catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		this._elapsed = System.nanoTime() - this._start;
+		return this._rowCount;
+	}
+
+	/**
+	 * @return the number of rows written so far
+	 */
+	public int rowCount() {
+		return this._rowCount;
+	}
+
+	/**
+	 * @return the rows written per second, measured from creation to finish()
+	 */
+	public double rowsPerSecond() {
+		return this._elapsed == 0 ? 0 : this._rowCount * 1e9 / this._elapsed;
+	}
+
+	/**
+	 * @return a one line summary of the rendering throughput
+	 */
+	public String stats() {
+		return String.format("rendered %d row(s) in %.1f ms (%.0f rows/s)", this._rowCount, this._elapsed / 1e6, rowsPerSecond());
+	}
+
+	static boolean isNumeric(int type) {
+		switch (type) {
+			case Types.TINYINT: case Types.SMALLINT: case Types.INTEGER: case Types.BIGINT:
+			case Types.REAL: case Types.FLOAT: case Types.DOUBLE: case Types.NUMERIC: case Types.DECIMAL:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	private void writeHeader() throws IOException {
+		switch (this._format) {
+			case TSV: writeRow(this._columns); break;
+			case CSV: writeRow(this._columns); break;
+			default: break; //the table header is written once the widths are known, by finish() if no row comes, json lines has none
+		}
+	}
+
+	private void drainPending() throws IOException {
+		//begin() is only called once a row arrives, so an empty result has no columns and nothing to write
+		if (this._columns == null) return;
+		if (this._widths == null) {
+			this._widths = new int[this._columns.length];
+			for (int i = 0; i < this._columns.length; ++i)
+				this._widths[i] = Math.min(MAX_WIDTH, this._columns[i].length());
+			for (String[] values : this._pending)
+				for (int i = 0; i < values.length; ++i)
+					this._widths[i] = Math.max(this._widths[i], Math.min(MAX_WIDTH, String.valueOf(values[i]).length()));
+			writeRow(this._columns);
+			for (int i = 0; i < this._widths.length; ++i) {
+				if (i > 0) this._out.write("-+-");
+				for (int j = 0; j < this._widths[i]; ++j)
+					this._out.write('-');
+			}
+			this._out.write('\n');
+		}
+		for (String[] values : this._pending)
+			writeRow(values);
+		this._pending.clear();
+		this._out.flush();
+	}
+
+	private void writeRow(String[] values) throws IOException {
+		Writer out = this._out;
+		switch (this._format) {
+			case TABLE:
+				for (int i = 0; i < values.length; ++i) {
+					if (i > 0) out.write(" | ");
+					String v = String.valueOf(values[i]);
+					out.write(v);
+					for (int j = v.length(); j < this._widths[i]; ++j)
+						out.write(' ');
+				}
+				break;
+			case TSV:
+				for (int i = 0; i < values.length; ++i) {
+					if (i > 0) out.write('\t');
+					if (values[i] == null) out.write("\\N");
+					else writeEscaped(out, values[i]);
+				}
+				break;
+			case CSV:
+				for (int i = 0; i < values.length; ++i) {
+					if (i > 0) out.write(',');
+					if (values[i] != null) writeCsv(out, values[i]);
+				}
+				break;
+			case JSON:
+				out.write('{');
+				for (int i = 0; i < values.length; ++i) {
+					if (i > 0) out.write(',');
+					writeJsonString(out, this._columns[i]);
+					out.write(':');
+					if (values[i] == null) out.write("null");
+					else if (this._numeric[i]) out.write(values[i]);
+					else writeJsonString(out, values[i]);
+				}
+				out.write('}');
+				break;
+		}
+		out.write('\n');
+	}
+
+	private static void writeEscaped(Writer out, String v) throws IOException {
+		for (int i = 0; i < v.length(); ++i) {
+			char c = v.charAt(i);
+			switch (c) {
+				case '\t': out.write("\\t"); break;
+				case '\n': out.write("\\n"); break;
+				case '\r': out.write("\\r"); break;
+				case '\\': out.write("\\\\"); break;
+				default: out.write(c);
+			}
+		}
+	}
+
+	private static void writeCsv(Writer out, String v) throws IOException {
+		boolean quote = false;
+		for (int i = 0; i < v.length() && !quote; ++i) {
+			char c = v.charAt(i);
+			quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+		}
+		if (!quote) {
+			out.write(v);
+			return;
+		}
+		out.write('"');
+		for (int i = 0; i < v.length(); ++i) {
+			char c = v.charAt(i);
+			if (c == '"') out.write('"');
+			out.write(c);
+		}
+		out.write('"');
+	}
+
+	static void writeJsonString(Writer out, String v) throws IOException {
+		out.write('"');
+		for (int i = 0; i < v.length(); ++i) {
+			char c = v.charAt(i);
+			switch (c) {
+				case '"': out.write("\\\""); break;
+				case '\\': out.write("\\\\"); break;
+				case '\n': out.write("\\n"); break;
+				case '\r': out.write("\\r"); break;
+				case '\t': out.write("\\t"); break;
+				default:
+					if (c < 0x20) out.write(String.format("\\u%04x", (int) c));
+					else out.write(c);
+			}
+		}
+		out.write('"');
+	}
+}
@@ -0,0 +1,291 @@
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class defines the checks that keep the appointments of a doctor, or
+ * of a staff member, from overlapping on a day.  Only appointments that
+ * still take time count: AC, AV and WL ones against a new appointment, AC
+ * and WL ones against a booking (an AV slot overlapping a booked one simply
+ * cannot be booked any more).
+ *
+ * A check runs in the transaction of the write it guards.  It takes a
+ * transaction advisory lock on the (doctor, day) or (staff member, day), so
+ * two writes for the same day of the same person are serialized while other
+ * days and other people go on, reads the appointments of that day with one
+ * range scan of doctor_appointment_day_idx or schedules_staff_idx, and
+ * looks the slot up in an Intervals index of them.
+ *
+ * audit() finds every overlap already in the database in one sorted pass
+ * over all the appointments.
+ *
+ */
+
+public class SlotConflicts {
+	static final String LOCK_DAY_SQL = "select pg_advisory_xact_lock(?, ?)";
+	static final String DOCTOR_DAY_SQL = "select A.appnt_ID, A.time_slot, A.status from doctor_appointment D, Appointment A "
+		+ "where D.doctor_id = ? and D.adate = ? and D.status in ('AC', 'AV', 'WL') and A.appnt_ID = D.appnt_id";
+	static final String STAFF_DAY_SQL = "select A.appnt_ID, A.time_slot, A.status from schedules S, Appointment A "
+		+ "where S.staff_id = ? and A.appnt_ID = S.appt_id and A.adate = ? and A.status in ('AC', 'AV', 'WL')";
+	static final String LINK_DOCTOR_SQL = "insert into has_appointment (appt_id, doctor_id) values (?, ?)";
+	static final String LINK_STAFF_SQL = "insert into schedules (appt_id, staff_id) values (?, ?)";
+	//every appointment that takes time, by owner and day
+	static final String AUDIT_SQL = "select 'doctor', H.doctor_id, A.adate, A.appnt_ID, A.time_slot from has_appointment H, Appointment A "
+		+ "where A.appnt_ID = H.appt_id and A.status in ('AC', 'AV', 'WL') "
+		+ "union all select 'staff', S.staff_id, A.adate, A.appnt_ID, A.time_slot from schedules S, Appointment A "
+		+ "where A.appnt_ID = S.appt_id and A.status in ('AC', 'AV', 'WL') order by 1, 2, 3";
+	//SQLSTATE exclusion_violation, class 23 like the other integrity violations
+	static final String OVERLAP_STATE = "23P01";
+
+	/**
+	 * The slots of one owner and day sorted by start, with the running
+	 * maximum of their ends, so whether a slot overlaps any of them takes
+	 * one binary search.
+	 */
+	static final class Intervals {
+		private final TimeSlot[] _slots;
+		private final int[] _ids;
+		//_maxEnd[i] is the largest end of _slots[0..i], reached by _slots[_maxAt[i]]
+		private final int[] _maxEnd;
+		private final int[] _maxAt;
+
+		Intervals(List<TimeSlot> slots, List<Integer> ids) {
+			Integer[] order = new Integer[slots.size()];
+			for (int i = 0; i < order.length; ++i)
+				order[i] = i;
+			Arrays.sort(order, (a, b) -> slots.get(a).compareTo(slots.get(b)));
+			this._slots = new TimeSlot[order.length];
+			this._ids = new int[order.length];
+			this._maxEnd = new int[order.length];
+			this._maxAt = new int[order.length];
+			for (int i = 0; i < order.length; ++i) {
+				this._slots[i] = slots.get(order[i]);
+				this._ids[i] = ids.get(order[i]);
+				boolean longer = i == 0 || this._slots[i].end > this._maxEnd[i - 1];
+				this._maxEnd[i] = longer ? this._slots[i].end : this._maxEnd[i - 1];
+				this._maxAt[i] = longer ? i : this._maxAt[i - 1];
+			}
+		}
+
+		/**
+		 * @return the index of a slot overlapping slot, -1 when there is none
+		 */
+		int find(TimeSlot slot) {
+			//the slots starting before slot ends are _slots[0..count-1]
+			int low = 0, high = this._slots.length;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (this._slots[mid].start < slot.end) low = mid + 1;
+				else high = mid;
+			}
+			if (low == 0) return -1;
+			return this._maxEnd[low - 1] > slot.start ? this._maxAt[low - 1] : -1;
+		}
+
+		int id(int i) {
+			return this._ids[i];
+		}
+
+		TimeSlot slot(int i) {
+			return this._slots[i];
+		}
+	}
+
+	/**
+	 * An existing appointment a slot overlaps.
+	 */
+	public static final class Conflict {
+		public final String owner;
+		public final int ownerId;
+		public final Date adate;
+		public final int appointmentId;
+		public final TimeSlot slot;
+
+		Conflict(String owner, int ownerId, Date adate, int appointmentId, TimeSlot slot) {
+			this.owner = owner;
+			this.ownerId = ownerId;
+			this.adate = adate;
+			this.appointmentId = appointmentId;
+			this.slot = slot;
+		}
+
+		public String toString() {
+			return "The " + this.owner + " " + this.ownerId + " already has appointment " + this.appointmentId + " at " + this.slot + " on " + this.adate;
+		}
+	}
+
+	/**
+	 * Locks the day of the doctor until the end of the transaction and
+	 * looks for an appointment of that day overlapping the slot.
+	 *
+	 * @param conn a connection with autocommit off
+	 * @param bookedOnly only count AC and WL appointments
+	 * @param exclude an appointment to leave out, the one being booked
+	 * @return the appointment the slot overlaps, null when there is none
+	 */
+	static Conflict checkDoctor(ConnectionPool.PooledConnection conn, int doctorId, Date adate, TimeSlot slot, boolean bookedOnly, int exclude) throws SQLException {
+		lockDay(conn, doctorId, adate, 0);
+		return find(conn, DOCTOR_DAY_SQL, "doctor", doctorId, adate, slot, bookedOnly, exclude);
+	}
+
+	/**
+	 * As checkDoctor, for the appointments a staff member is scheduled on.
+	 */
+	static Conflict checkStaff(ConnectionPool.PooledConnection conn, int staffId, Date adate, TimeSlot slot, boolean bookedOnly, int exclude) throws SQLException {
+		lockDay(conn, staffId, adate, 1);
+		return find(conn, STAFF_DAY_SQL, "staff member", staffId, adate, slot, bookedOnly, exclude);
+	}
+
+	/**
+	 * Adds an appointment and links it to its doctor and staff member, in
+	 * one transaction that first checks neither has an appointment
+	 * overlapping it that day.  PA appointments and appointments without a
+	 * status are not checked.
+	 *
+	 * @param doctorId the doctor of the appointment, null for none
+	 * @param staffId the staff member scheduled on it, null for none
+	 * @return the number of appointments inserted
+	 * @throws java.sql.SQLException with SQLSTATE 23P01 when the slot overlaps an appointment of the doctor or the staff member
+	 */
+	public static int addAppointment(ConnectionPool pool, int id, Date adate, TimeSlot slot, String status, Integer doctorId, Integer staffId) throws SQLException {
+		boolean takesTime = "AC".equals(status) || "AV".equals(status) || "WL".equals(status);
+		long start = System.nanoTime();
+		boolean failed = true;
+		try (ConnectionPool.PooledConnection conn = pool.acquire()) {
+			Connection c = conn.connection();
+			c.setAutoCommit(false);
+			Conflict conflict = null;
+			if (takesTime && doctorId != null) conflict = checkDoctor(conn, doctorId, adate, slot, false, id);
+			if (takesTime && staffId != null && conflict == null) conflict = checkStaff(conn, staffId, adate, slot, false, id);
+			if (conflict != null) throw new SQLException(conflict.toString(), OVERLAP_STATE);
+
+			PreparedStatement insert = conn.prepare(DBproject.ADD_APPOINTMENT_SQL);
+			DBproject.bind(insert, new Object[] { id, adate, slot.toString(), status });
+			int rows = insert.executeUpdate();
+			if (doctorId != null) link(conn, LINK_DOCTOR_SQL, id, doctorId);
+			if (staffId != null) link(conn, LINK_STAFF_SQL, id, staffId);
+			c.commit();
+			failed = false;
+			return rows;
+		}finally{
+			Metrics.record(DBproject.ADD_APPOINTMENT_SQL, new Object[] { id, adate, slot, status, doctorId, staffId }, System.nanoTime() - start, 1, 0, failed);
+		}
+	}
+
+	/**
+	 * Finds every pair of overlapping appointments of the same doctor, or
+	 * staff member, on the same day.  The appointments come sorted by owner
+	 * and day; each day is sorted by start and swept once, keeping the slots
+	 * not yet ended, so the cost is the sort plus one row per overlap.
+	 * Appointments whose time_slot cannot be read are listed without an
+	 * other appointment.
+	 *
+	 * @return the number of rows written to out
+	 */
+	public static int audit(DBproject esql, final ResultRenderer out) throws SQLException {
+		out.begin(new String[] { "owner", "owner_id", "adate", "appnt_id", "time_slot", "other_appnt_id", "other_time_slot" },
+			new boolean[] { false, true, false, true, false, true, false });
+		final String[] row = new String[7];
+		final List<TimeSlot> slots = new ArrayList<TimeSlot>();
+		final List<Integer> ids = new ArrayList<Integer>();
+		final int[] rows = { 0 };
+		esql.executeQueryStreaming(AUDIT_SQL, rs -> {
+			String owner = rs.getString(1);
+			String ownerId = rs.getString(2);
+			String adate = rs.getString(3);
+			if (!owner.equals(row[0]) || !ownerId.equals(row[1]) || !adate.equals(row[2])) {
+				rows[0] += sweep(slots, ids, row, out);
+				row[0] = owner;
+				row[1] = ownerId;
+				row[2] = adate;
+			}
+			int id = rs.getInt(4);
+			String text = rs.getString(5);
+			TimeSlot slot = TimeSlot.tryParse(text);
+			if (slot != null) {
+				slots.add(slot);
+				ids.add(id);
+				return;
+			}
+			row[3] = Integer.toString(id);
+			row[4] = text;
+			row[5] = null;
+			row[6] = null;
+			out.row(row);
+			++rows[0];
+		});
+		rows[0] += sweep(slots, ids, row, out);
+		return rows[0];
+	}
+
+	//writes the overlapping pairs of one day and clears it
+	private static int sweep(List<TimeSlot> slots, List<Integer> ids, String[] row, ResultRenderer out) {
+		if (slots.size() < 2) {
+			slots.clear();
+			ids.clear();
+			return 0;
+		}
+		Intervals day = new Intervals(slots, ids);
+		int rows = 0;
+		//indexes of the slots that started before the current one and have not ended
+		List<Integer> open = new ArrayList<Integer>();
+		for (int i = 0; i < slots.size(); ++i) {
+			TimeSlot slot = day.slot(i);
+			open.removeIf(j -> day.slot(j).end <= slot.start);
+			for (int j : open) {
+				row[3] = Integer.toString(day.id(j));
+				row[4] = day.slot(j).toString();
+				row[5] = Integer.toString(day.id(i));
+				row[6] = slot.toString();
+				out.row(row);
+				++rows;
+			}
+			open.add(i);
+		}
+		slots.clear();
+		ids.clear();
+		return rows;
+	}
+
+	//the lock key is (owner, 2 * day) for doctors and (owner, 2 * day + 1) for staff members
+	private static void lockDay(ConnectionPool.PooledConnection conn, int ownerId, Date adate, int kind) throws SQLException {
+		PreparedStatement lock = conn.prepare(LOCK_DAY_SQL);
+		lock.setInt(1, ownerId);
+		lock.setInt(2, (int) adate.toLocalDate().toEpochDay() * 2 + kind);
+		lock.executeQuery().close();
+	}
+
+	private static Conflict find(ConnectionPool.PooledConnection conn, String sql, String owner, int ownerId, Date adate, TimeSlot slot,
+			boolean bookedOnly, int exclude) throws SQLException {
+		List<TimeSlot> slots = new ArrayList<TimeSlot>();
+		List<Integer> ids = new ArrayList<Integer>();
+		PreparedStatement stmt = conn.prepare(sql);
+		stmt.setInt(1, ownerId);
+		stmt.setDate(2, adate);
+		try (ResultSet rs = stmt.executeQuery()) {
+			while (rs.next()) {
+				int id = rs.getInt(1);
+				//a slot that cannot be read is left to the audit
+				TimeSlot other = TimeSlot.tryParse(rs.getString(2));
+				if (id == exclude || other == null || (bookedOnly && "AV".equals(rs.getString(3)))) continue;
+				slots.add(other);
+				ids.add(id);
+			}
+		}
+		Intervals day = new Intervals(slots, ids);
+		int i = day.find(slot);
+		return i < 0 ? null : new Conflict(owner, ownerId, adate, day.id(i), day.slot(i));
+	}
+
+	private static void link(ConnectionPool.PooledConnection conn, String sql, int appointmentId, int ownerId) throws SQLException {
+		PreparedStatement stmt = conn.prepare(sql);
+		stmt.setInt(1, appointmentId);
+		stmt.setInt(2, ownerId);
+		stmt.executeUpdate();
+	}
+}
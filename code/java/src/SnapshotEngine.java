@@ -0,0 +1,696 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * This class defines an in process engine answering reports 5 to 8 from a
+ * snapshot of the csv files in the code/data format, without Postgres.  It
+ * loads Appointment, Doctor, has_appointment and request_maintenance into
+ * primitive arrays (IDs and epoch days as int[], statuses as one byte
+ * codes), builds hash indexes on the appointment and doctor IDs, groups
+ * has_appointment by doctor and request_maintenance by department, and
+ * answers the reports from those.
+ *
+ * The files are cut into chunks parsed in parallel, and the index probes
+ * and the aggregations of reports 7 and 8 are split over row ranges, all
+ * on one fork/join pool of -threads workers (every core by default), so a
+ * snapshot is analysed at the speed of the machine rather than of one
+ * database session.
+ *
+ * The rows are the ones the SQL of DBproject returns.  Where the SQL leaves
+ * the order open the engine sorts: report 6 by ID, report 7 by name and
+ * status within equal counts, report 8 by name.
+ *
+ * Usage: java SnapshotEngine <dir> <report> [args] [--threads N]
+ *   appointments-of-doctor <doctor id> <from> <to (excluded)>
+ *   available-of-department <department name> <date>
+ *   status-per-doctor
+ *   patients-with-status <PA|AC|AV|WL>
+ * Dates are month/day/year or yyyy-mm-dd.
+ *
+ */
+
+public class SnapshotEngine {
+	//column kinds of the csv files
+	static final int SKIP = 0, INT = 1, DATE = 2, TEXT = 3, STATUS = 4;
+	//status codes, 0 is NULL
+	static final String[] STATUSES = { null, "PA", "AC", "AV", "WL" };
+	static final byte AC = 2, AV = 3;
+
+	/**
+	 * A hash index from int keys to row numbers, open addressing.  Built
+	 * once, then read by any number of threads.
+	 */
+	static final class IntIndex {
+		private final int[] _keys;
+		private final int[] _rows;
+		private final int _mask;
+
+		IntIndex(int[] keys) {
+			int capacity = Integer.highestOneBit(Math.max(2, keys.length * 2 - 1)) << 1;
+			this._keys = new int[capacity];
+			this._rows = new int[capacity];
+			this._mask = capacity - 1;
+			Arrays.fill(this._rows, -1);
+			for (int row = 0; row < keys.length; ++row) {
+				int slot = slot(keys[row]);
+				while (this._rows[slot] >= 0 && this._keys[slot] != keys[row])
+					slot = (slot + 1) & this._mask;
+				//the first row of a duplicated key wins, as a primary key would not allow it
+				if (this._rows[slot] < 0) {
+					this._keys[slot] = keys[row];
+					this._rows[slot] = row;
+				}
+			}
+		}
+
+		/**
+		 * @return the row of the key, -1 when it is not there
+		 */
+		int get(int key) {
+			int slot = slot(key);
+			while (this._rows[slot] >= 0) {
+				if (this._keys[slot] == key) return this._rows[slot];
+				slot = (slot + 1) & this._mask;
+			}
+			return -1;
+		}
+
+		private int slot(int key) {
+			int h = key * 0x9E3779B9;
+			return (h ^ (h >>> 16)) & this._mask;
+		}
+	}
+
+	/**
+	 * The columns of one chunk of a csv file.
+	 */
+	static final class Chunk {
+		final int[] kinds;
+		final int[][] ints;
+		final String[][] texts;
+		final byte[][] codes;
+		int rows = 0;
+
+		Chunk(int[] kinds, int capacity) {
+			this.kinds = kinds;
+			this.ints = new int[kinds.length][];
+			this.texts = new String[kinds.length][];
+			this.codes = new byte[kinds.length][];
+			for (int i = 0; i < kinds.length; ++i) {
+				if (kinds[i] == INT || kinds[i] == DATE) this.ints[i] = new int[capacity];
+				else if (kinds[i] == TEXT) this.texts[i] = new String[capacity];
+				else if (kinds[i] == STATUS) this.codes[i] = new byte[capacity];
+			}
+		}
+
+		void grow() {
+			int capacity = Math.max(16, this.rows * 2);
+			for (int i = 0; i < this.kinds.length; ++i) {
+				if (this.ints[i] != null) this.ints[i] = Arrays.copyOf(this.ints[i], capacity);
+				if (this.texts[i] != null) this.texts[i] = Arrays.copyOf(this.texts[i], capacity);
+				if (this.codes[i] != null) this.codes[i] = Arrays.copyOf(this.codes[i], capacity);
+			}
+		}
+	}
+
+	/**
+	 * One range of rows, run by the fork/join helpers.
+	 */
+	interface RangeBody {
+		void run(int from, int to);
+	}
+
+	/**
+	 * One range of rows reduced to a value, with the merge of two values.
+	 */
+	interface RangeReduce<T> {
+		T run(int from, int to);
+
+		T merge(T left, T right);
+	}
+
+	static final class ForRange extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final RangeBody _body;
+		private final int _from, _to, _grain;
+
+		ForRange(RangeBody body, int from, int to, int grain) {
+			this._body = body;
+			this._from = from;
+			this._to = to;
+			this._grain = grain;
+		}
+
+		protected void compute() {
+			if (this._to - this._from <= this._grain) {
+				this._body.run(this._from, this._to);
+				return;
+			}
+			int mid = (this._from + this._to) >>> 1;
+			invokeAll(new ForRange(this._body, this._from, mid, this._grain), new ForRange(this._body, mid, this._to, this._grain));
+		}
+	}
+
+	static final class ReduceRange<T> extends RecursiveTask<T> {
+		private static final long serialVersionUID = 1L;
+		private final RangeReduce<T> _body;
+		private final int _from, _to, _grain;
+
+		ReduceRange(RangeReduce<T> body, int from, int to, int grain) {
+			this._body = body;
+			this._from = from;
+			this._to = to;
+			this._grain = grain;
+		}
+
+		protected T compute() {
+			if (this._to - this._from <= this._grain) return this._body.run(this._from, this._to);
+			int mid = (this._from + this._to) >>> 1;
+			ReduceRange<T> left = new ReduceRange<T>(this._body, this._from, mid, this._grain);
+			left.fork();
+			T right = new ReduceRange<T>(this._body, mid, this._to, this._grain).compute();
+			return this._body.merge(left.join(), right);
+		}
+	}
+
+	private final ForkJoinPool _pool;
+
+	//Appointment
+	private int[] _apptId;
+	private int[] _apptDate;
+	private byte[] _apptStatus;
+	//Doctor
+	private int[] _doctorId;
+	private String[] _doctorName;
+	//has_appointment, with the appointment rows of every doctor row from _byDoctorStart[d] to _byDoctorStart[d + 1]
+	private int _links;
+	private int[] _byDoctorStart;
+	private int[] _byDoctorAppt;
+	//request_maintenance: department name -> distinct doctor rows
+	private Map<String, int[]> _doctorsOfDept;
+	private IntIndex _doctorRow;
+
+	/**
+	 * @param threads the workers of the fork/join pool
+	 */
+	public SnapshotEngine(int threads) {
+		this._pool = new ForkJoinPool(threads);
+	}
+
+	/**
+	 * Loads the four tables the reports read and builds the indexes.
+	 *
+	 * @param dir the directory holding the csv files
+	 * @throws java.io.IOException when a file cannot be read or parsed
+	 */
+	public void load(File dir) throws IOException {
+		Chunk appointments = parse(new File(dir, "appointment.csv"), new int[] { INT, DATE, SKIP, STATUS });
+		this._apptId = appointments.ints[0];
+		this._apptDate = appointments.ints[1];
+		this._apptStatus = appointments.codes[3];
+
+		Chunk doctors = parse(new File(dir, "doctor.csv"), new int[] { INT, TEXT, SKIP, SKIP });
+		this._doctorId = doctors.ints[0];
+		this._doctorName = doctors.texts[1];
+
+		Chunk links = parse(new File(dir, "has_appointment.csv"), new int[] { INT, INT });
+		Chunk maintenance = parse(new File(dir, "request_maintenance.csv"), new int[] { SKIP, TEXT, SKIP, INT, SKIP });
+
+		final IntIndex apptRow = new IntIndex(this._apptId);
+		this._doctorRow = new IntIndex(this._doctorId);
+		groupByDoctor(links.ints[0], links.ints[1], links.rows, apptRow);
+		groupByDepartment(maintenance.texts[1], maintenance.ints[3], maintenance.rows);
+	}
+
+	/**
+	 * @return the number of appointments, doctors and has_appointment links loaded
+	 */
+	public String summary() {
+		return String.format("%d appointment(s), %d doctor(s), %d link(s), %d department name(s), %d thread(s)",
+			this._apptId.length, this._doctorId.length, this._links, this._doctorsOfDept.size(), this._pool.getParallelism());
+	}
+
+	/**
+	 * Report 5: the active and available appointments of the doctor from
+	 * from (included) to to (excluded), in date then ID order.
+	 *
+	 * @return the number of rows written to out
+	 */
+	public int appointmentsOfDoctor(int doctorId, LocalDate from, LocalDate to, ResultRenderer out) {
+		out.begin(new String[] { "adate", "appnt_id" }, new boolean[] { false, true });
+		int d = this._doctorRow.get(doctorId);
+		if (d < 0) return 0;
+		int first = (int) from.toEpochDay();
+		int last = (int) to.toEpochDay();
+		List<long[]> rows = new ArrayList<long[]>();
+		for (int i = this._byDoctorStart[d]; i < this._byDoctorStart[d + 1]; ++i) {
+			int a = this._byDoctorAppt[i];
+			byte status = this._apptStatus[a];
+			int day = this._apptDate[a];
+			if ((status == AC || status == AV) && day >= first && day < last) rows.add(new long[] { day, this._apptId[a] });
+		}
+		rows.sort((x, y) -> x[0] != y[0] ? Long.compare(x[0], y[0]) : Long.compare(x[1], y[1]));
+		String[] row = new String[2];
+		for (long[] r : rows) {
+			row[0] = LocalDate.ofEpochDay(r[0]).toString();
+			row[1] = Long.toString(r[1]);
+			out.row(row);
+		}
+		return rows.size();
+	}
+
+	/**
+	 * Report 6: the available appointments on the date of the doctors the
+	 * department name has a request_maintenance row for, by ID.
+	 *
+	 * @return the number of rows written to out
+	 */
+	public int availableOfDepartment(String dept, LocalDate date, ResultRenderer out) {
+		out.begin(new String[] { "appnt_id" }, new boolean[] { true });
+		final int[] doctors = this._doctorsOfDept.get(dept);
+		if (doctors == null) return 0;
+		final int day = (int) date.toEpochDay();
+		int[] ids = this._pool.invoke(new ReduceRange<int[]>(new RangeReduce<int[]>() {
+			public int[] run(int from, int to) {
+				int[] found = new int[16];
+				int n = 0;
+				for (int k = from; k < to; ++k) {
+					int d = doctors[k];
+					for (int i = SnapshotEngine.this._byDoctorStart[d]; i < SnapshotEngine.this._byDoctorStart[d + 1]; ++i) {
+						int a = SnapshotEngine.this._byDoctorAppt[i];
+						if (SnapshotEngine.this._apptStatus[a] != AV || SnapshotEngine.this._apptDate[a] != day) continue;
+						if (n == found.length) found = Arrays.copyOf(found, n * 2);
+						found[n++] = SnapshotEngine.this._apptId[a];
+					}
+				}
+				return Arrays.copyOf(found, n);
+			}
+
+			public int[] merge(int[] left, int[] right) {
+				int[] all = Arrays.copyOf(left, left.length + right.length);
+				System.arraycopy(right, 0, all, left.length, right.length);
+				return all;
+			}
+		}, 0, doctors.length, grain(doctors.length, 64)));
+		//group by A.appnt_ID: an appointment shared by two doctors of the department is listed once
+		Arrays.sort(ids);
+		String[] row = new String[1];
+		int rowCount = 0;
+		for (int i = 0; i < ids.length; ++i) {
+			if (i > 0 && ids[i] == ids[i - 1]) continue;
+			row[0] = Integer.toString(ids[i]);
+			out.row(row);
+			++rowCount;
+		}
+		return rowCount;
+	}
+
+	/**
+	 * Report 7: the number of appointments per doctor name and status,
+	 * largest first.
+	 *
+	 * @return the number of rows written to out
+	 */
+	public int statusPerDoctor(ResultRenderer out) {
+		Map<String, long[]> counts = countsByName();
+		List<Object[]> rows = new ArrayList<Object[]>();
+		for (Map.Entry<String, long[]> e : counts.entrySet()) {
+			long[] c = e.getValue();
+			for (int s = 0; s < STATUSES.length; ++s)
+				if (c[s] > 0) rows.add(new Object[] { e.getKey(), STATUSES[s], c[s] });
+		}
+		rows.sort((x, y) -> {
+			int byCount = Long.compare((Long) y[2], (Long) x[2]);
+			if (byCount != 0) return byCount;
+			int byName = compareNullsLast((String) x[0], (String) y[0]);
+			return byName != 0 ? byName : compareNullsLast((String) x[1], (String) y[1]);
+		});
+		out.begin(new String[] { "name", "status", "count" }, new boolean[] { false, false, true });
+		String[] row = new String[3];
+		for (Object[] r : rows) {
+			row[0] = (String) r[0];
+			row[1] = (String) r[1];
+			row[2] = r[2].toString();
+			out.row(row);
+		}
+		return rows.size();
+	}
+
+	/**
+	 * Report 8: the number of appointments with the status per doctor name,
+	 * by name.
+	 *
+	 * @param status PA, AC, AV or WL
+	 * @return the number of rows written to out
+	 */
+	public int patientsWithStatus(String status, ResultRenderer out) {
+		int s = statusCode(status);
+		Map<String, long[]> counts = countsByName();
+		List<String> names = new ArrayList<String>();
+		for (Map.Entry<String, long[]> e : counts.entrySet())
+			if (e.getValue()[s] > 0) names.add(e.getKey());
+		names.sort(SnapshotEngine::compareNullsLast);
+		out.begin(new String[] { "name", "count" }, new boolean[] { false, true });
+		String[] row = new String[2];
+		for (String name : names) {
+			row[0] = name;
+			row[1] = Long.toString(counts.get(name)[s]);
+			out.row(row);
+		}
+		return names.size();
+	}
+
+	/**
+	 * Stops the workers.
+	 */
+	public void close() {
+		this._pool.shutdown();
+	}
+
+	/**
+	 * The counts of doctor_status_count summed per doctor name, the way
+	 * reports 7 and 8 group them.
+	 */
+	private Map<String, long[]> countsByName() {
+		return this._pool.invoke(new ReduceRange<Map<String, long[]>>(new RangeReduce<Map<String, long[]>>() {
+			public Map<String, long[]> run(int from, int to) {
+				Map<String, long[]> counts = new HashMap<String, long[]>();
+				for (int d = from; d < to; ++d) {
+					int start = SnapshotEngine.this._byDoctorStart[d];
+					int end = SnapshotEngine.this._byDoctorStart[d + 1];
+					if (start == end) continue;
+					long[] c = counts.get(SnapshotEngine.this._doctorName[d]);
+					if (c == null) {
+						c = new long[STATUSES.length];
+						counts.put(SnapshotEngine.this._doctorName[d], c);
+					}
+					for (int i = start; i < end; ++i)
+						++c[SnapshotEngine.this._apptStatus[SnapshotEngine.this._byDoctorAppt[i]]];
+				}
+				return counts;
+			}
+
+			public Map<String, long[]> merge(Map<String, long[]> left, Map<String, long[]> right) {
+				if (left.size() < right.size()) {
+					Map<String, long[]> t = left;
+					left = right;
+					right = t;
+				}
+				for (Map.Entry<String, long[]> e : right.entrySet()) {
+					long[] c = left.get(e.getKey());
+					if (c == null) {
+						left.put(e.getKey(), e.getValue());
+						continue;
+					}
+					for (int s = 0; s < c.length; ++s)
+						c[s] += e.getValue()[s];
+				}
+				return left;
+			}
+		}, 0, this._doctorId.length, grain(this._doctorId.length, 1024)));
+	}
+
+	/**
+	 * Resolves the has_appointment IDs to rows in parallel, then sorts the
+	 * links by doctor row (a counting sort) into _byDoctorStart and
+	 * _byDoctorAppt.  Links to a missing appointment or doctor are dropped,
+	 * as the inner joins of the SQL would.
+	 */
+	private void groupByDoctor(final int[] apptIds, final int[] doctorIds, int count, final IntIndex apptRow) {
+		final int[] apptRows = new int[count];
+		final int[] doctorRows = new int[count];
+		parallelFor(count, (from, to) -> {
+			for (int i = from; i < to; ++i) {
+				apptRows[i] = apptRow.get(apptIds[i]);
+				doctorRows[i] = this._doctorRow.get(doctorIds[i]);
+			}
+		});
+		int doctors = this._doctorId.length;
+		int[] start = new int[doctors + 1];
+		for (int i = 0; i < count; ++i)
+			if (apptRows[i] >= 0 && doctorRows[i] >= 0) ++start[doctorRows[i] + 1];
+		for (int d = 0; d < doctors; ++d)
+			start[d + 1] += start[d];
+		int[] next = Arrays.copyOf(start, doctors);
+		int[] appts = new int[start[doctors]];
+		for (int i = 0; i < count; ++i)
+			if (apptRows[i] >= 0 && doctorRows[i] >= 0) appts[next[doctorRows[i]]++] = apptRows[i];
+		this._links = appts.length;
+		this._byDoctorStart = start;
+		this._byDoctorAppt = appts;
+	}
+
+	private void groupByDepartment(String[] depts, int[] doctorIds, int count) {
+		Map<String, List<Integer>> grouped = new HashMap<String, List<Integer>>();
+		for (int i = 0; i < count; ++i) {
+			int d = this._doctorRow.get(doctorIds[i]);
+			if (d < 0) continue;
+			List<Integer> rows = grouped.get(depts[i]);
+			if (rows == null) {
+				rows = new ArrayList<Integer>();
+				grouped.put(depts[i], rows);
+			}
+			rows.add(d);
+		}
+		this._doctorsOfDept = new HashMap<String, int[]>();
+		for (Map.Entry<String, List<Integer>> e : grouped.entrySet()) {
+			//a doctor with several staff members in the department counts once
+			int[] rows = e.getValue().stream().mapToInt(Integer::intValue).sorted().distinct().toArray();
+			this._doctorsOfDept.put(e.getKey(), rows);
+		}
+	}
+
+	/**
+	 * Parses a csv file in the COPY text format of BulkLoader, in chunks cut
+	 * at line ends and parsed in parallel.
+	 *
+	 * @param kinds the kind of every field, SKIP for the fields not kept
+	 * @return all the rows
+	 */
+	Chunk parse(final File file, final int[] kinds) throws IOException {
+		final byte[] bytes = Files.readAllBytes(file.toPath());
+		int pieces = Math.max(1, Math.min(bytes.length / (1 << 20) + 1, this._pool.getParallelism() * 4));
+		final int[] bounds = new int[pieces + 1];
+		for (int p = 1; p < pieces; ++p) {
+			int b = Math.max(bounds[p - 1], (int) ((long) bytes.length * p / pieces));
+			while (b < bytes.length && bytes[b - 1] != '\n')
+				++b;
+			bounds[p] = b;
+		}
+		bounds[pieces] = bytes.length;
+
+		final Chunk[] chunks = new Chunk[pieces];
+		final IllegalArgumentException[] failure = { null };
+		this._pool.invoke(new ForRange((from, to) -> {
+			for (int p = from; p < to; ++p) {
+				try {
+					chunks[p] = parseChunk(bytes, bounds[p], bounds[p + 1], kinds);
+				}catch (IllegalArgumentException e) {
+					failure[0] = e;
+				}
+			}
+		}, 0, pieces, 1));
+		if (failure[0] != null) throw new IOException(file + ": " + failure[0].getMessage());
+
+		int rows = 0;
+		for (Chunk c : chunks)
+			rows += c.rows;
+		Chunk all = new Chunk(kinds, rows);
+		for (Chunk c : chunks) {
+			for (int i = 0; i < kinds.length; ++i) {
+				if (c.ints[i] != null) System.arraycopy(c.ints[i], 0, all.ints[i], all.rows, c.rows);
+				if (c.texts[i] != null) System.arraycopy(c.texts[i], 0, all.texts[i], all.rows, c.rows);
+				if (c.codes[i] != null) System.arraycopy(c.codes[i], 0, all.codes[i], all.rows, c.rows);
+			}
+			all.rows += c.rows;
+		}
+		return all;
+	}
+
+	private static Chunk parseChunk(byte[] b, int start, int end, int[] kinds) {
+		Chunk c = new Chunk(kinds, Math.max(16, (end - start) / 16));
+		int pos = start;
+		while (pos < end) {
+			int lineEnd = pos;
+			while (lineEnd < end && b[lineEnd] != '\n')
+				++lineEnd;
+			int stop = lineEnd > pos && b[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+			if (stop > pos) {
+				if (needsGrow(c)) c.grow();
+				int field = 0;
+				int fieldStart = pos;
+				for (int i = pos; i <= stop; ++i) {
+					if (i < stop && b[i] == '\\') {
+						++i;
+					}else if (i == stop || b[i] == ',') {
+						if (field < kinds.length) store(c, field, b, fieldStart, i);
+						++field;
+						fieldStart = i + 1;
+					}
+				}
+				if (field != kinds.length)
+					throw new IllegalArgumentException("expected " + kinds.length + " fields, got " + field + " in: " + new String(b, pos, stop - pos, StandardCharsets.UTF_8));
+				++c.rows;
+			}
+			pos = lineEnd + 1;
+		}
+		return c;
+	}
+
+	private static boolean needsGrow(Chunk c) {
+		for (int i = 0; i < c.kinds.length; ++i) {
+			if (c.ints[i] != null) return c.rows == c.ints[i].length;
+			if (c.texts[i] != null) return c.rows == c.texts[i].length;
+			if (c.codes[i] != null) return c.rows == c.codes[i].length;
+		}
+		return false;
+	}
+
+	private static void store(Chunk c, int field, byte[] b, int from, int to) {
+		switch (c.kinds[field]) {
+			case INT: c.ints[field][c.rows] = parseInt(b, from, to); break;
+			case DATE: c.ints[field][c.rows] = parseDate(b, from, to); break;
+			case TEXT: c.texts[field][c.rows] = text(b, from, to); break;
+			case STATUS: c.codes[field][c.rows] = (byte) statusCode(text(b, from, to)); break;
+			default: break;
+		}
+	}
+
+	private static int parseInt(byte[] b, int from, int to) {
+		while (from < to && b[from] == ' ')
+			++from;
+		while (to > from && b[to - 1] == ' ')
+			--to;
+		boolean negative = from < to && b[from] == '-';
+		if (negative) ++from;
+		if (from == to) throw new IllegalArgumentException("empty integer");
+		int v = 0;
+		for (int i = from; i < to; ++i) {
+			int digit = b[i] - '0';
+			if (digit < 0 || digit > 9) throw new IllegalArgumentException("not an integer: " + new String(b, from, to - from, StandardCharsets.UTF_8));
+			v = v * 10 + digit;
+		}
+		return negative ? -v : v;
+	}
+
+	/**
+	 * @return the epoch day of a month/day/year or year-month-day date
+	 */
+	private static int parseDate(byte[] b, int from, int to) {
+		String s = new String(b, from, to - from, StandardCharsets.US_ASCII).trim();
+		LocalDate date = s.indexOf('-') > 0 ? LocalDate.parse(s) : DBproject.parseLocalDate(s);
+		return (int) date.toEpochDay();
+	}
+
+	/**
+	 * @return the field with the COPY text escapes undone, null for \N
+	 */
+	private static String text(byte[] b, int from, int to) {
+		if (to - from == 2 && b[from] == '\\' && b[from + 1] == 'N') return null;
+		String s = new String(b, from, to - from, StandardCharsets.UTF_8);
+		if (s.indexOf('\\') < 0) return s;
+		StringBuilder sb = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); ++i) {
+			char ch = s.charAt(i);
+			if (ch != '\\' || i + 1 == s.length()) {
+				sb.append(ch);
+				continue;
+			}
+			ch = s.charAt(++i);
+			switch (ch) {
+				case 'n': sb.append('\n'); break;
+				case 'r': sb.append('\r'); break;
+				case 't': sb.append('\t'); break;
+				default: sb.append(ch); break;
+			}
+		}
+		return sb.toString();
+	}
+
+	static int statusCode(String status) {
+		if (status == null) return 0;
+		for (int s = 1; s < STATUSES.length; ++s)
+			if (STATUSES[s].equals(status)) return s;
+		throw new IllegalArgumentException("Invalid status: " + status);
+	}
+
+	private static int compareNullsLast(String a, String b) {
+		if (a == null) return b == null ? 0 : 1;
+		if (b == null) return -1;
+		return a.compareTo(b);
+	}
+
+	private void parallelFor(int n, RangeBody body) {
+		this._pool.invoke(new ForRange(body, 0, n, grain(n, 4096)));
+	}
+
+	private int grain(int n, int min) {
+		return Math.max(min, n / (this._pool.getParallelism() * 8) + 1);
+	}
+
+	private static LocalDate date(String s) {
+		return s.contains("-") ? LocalDate.parse(s.trim()) : DBproject.parseLocalDate(s);
+	}
+
+	public static void main(String[] args) {
+		//positional arguments, without --threads N
+		List<String> positional = new ArrayList<String>();
+		for (int i = 0; i < args.length; ++i) {
+			if (args[i].equals("--threads")) ++i;
+			else positional.add(args[i]);
+		}
+		if (positional.size() < 2) {
+			System.err.println("Usage: java [-classpath <classpath>] " + SnapshotEngine.class.getName() + " <dir> <report> [args] [--threads N]\n"
+				+ "  appointments-of-doctor <doctor id> <from> <to>\n"
+				+ "  available-of-department <department name> <date>\n"
+				+ "  status-per-doctor\n"
+				+ "  patients-with-status <PA|AC|AV|WL>");
+			return;
+		}
+		SnapshotEngine engine = new SnapshotEngine(Integer.parseInt(DBproject.option(args, "--threads", Integer.toString(Runtime.getRuntime().availableProcessors()))));
+		try {
+			long start = System.nanoTime();
+			engine.load(new File(positional.get(0)));
+			System.out.printf("loaded %s in %.1f ms%n", engine.summary(), (System.nanoTime() - start) / 1e6);
+
+			ResultRenderer renderer = DBproject.stdoutRenderer();
+			String report = positional.get(1);
+			List<String> p = positional.subList(2, positional.size());
+			switch (report) {
+				case "appointments-of-doctor":
+					engine.appointmentsOfDoctor(Integer.parseInt(p.get(0).trim()), date(p.get(1)), date(p.get(2)), renderer);
+					break;
+				case "available-of-department":
+					engine.availableOfDepartment(p.get(0), date(p.get(1)), renderer);
+					break;
+				case "status-per-doctor":
+					engine.statusPerDoctor(renderer);
+					break;
+				case "patients-with-status":
+					engine.patientsWithStatus(p.get(0).trim(), renderer);
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown report: " + report);
+			}
+			int rowCount = renderer.finish();
+			System.out.println(renderer.stats());
+			System.out.println("total row(s): " + rowCount);
+		}catch (Exception e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}finally{
+			engine.close();
+		}
+	}
+}
@@ -0,0 +1,66 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * This class defines the maintenance of doctor_status_count, the number of
+ * appointments per doctor and status that reports 7 and 8 read.  The
+ * triggers of create.sql keep it current; reconcile() recounts it from
+ * has_appointment and Appointment, reports any row that drifted and
+ * replaces the table contents, all in one transaction that holds off
+ * writers of the two source tables for its duration.
+ *
+ */
+
+public class StatusCounters {
+	static final String RECOUNT_SQL = "create temporary table fresh_status_count on commit drop as "
+		+ "select H.doctor_id, coalesce(A.status, '') as status, count(*)::int as cnt "
+		+ "from has_appointment H, Appointment A where A.appnt_ID = H.appt_id group by 1, 2";
+	static final String DRIFT_SQL = "select coalesce(F.doctor_id, C.doctor_id), coalesce(F.status, C.status), coalesce(C.cnt, 0), coalesce(F.cnt, 0) "
+		+ "from fresh_status_count F full outer join doctor_status_count C on C.doctor_id = F.doctor_id and C.status = F.status "
+		+ "where coalesce(C.cnt, 0) <> coalesce(F.cnt, 0) order by 1, 2";
+
+	/**
+	 * Rebuilds doctor_status_count from scratch.
+	 *
+	 * @param pool the pool the connection is borrowed from
+	 * @param print print every drifted counter and a summary
+	 * @return the number of counters that differed from the recount, -1 when the table does not exist
+	 * @throws java.sql.SQLException when the rebuild fails
+	 */
+	public static int reconcile(ConnectionPool pool, boolean print) throws SQLException {
+		long start = System.nanoTime();
+		try (ConnectionPool.PooledConnection pooled = pool.acquire()) {
+			Connection conn = pooled.connection();
+			try (Statement stmt = conn.createStatement()) {
+				try (ResultSet rs = stmt.executeQuery("select to_regclass('doctor_status_count') is not null")) {
+					if (!rs.next() || !rs.getBoolean(1)) return -1;
+				}
+
+				conn.setAutoCommit(false);
+				//readers keep going, writers wait until the counters are replaced
+				stmt.execute("lock table has_appointment, Appointment in share mode");
+				stmt.execute("lock table doctor_status_count in exclusive mode");
+				stmt.execute(RECOUNT_SQL);
+
+				int drift = 0;
+				try (ResultSet rs = stmt.executeQuery(DRIFT_SQL)) {
+					while (rs.next()) {
+						++drift;
+						if (print)
+							System.out.printf("doctor %d status '%s': counted %d, actual %d%n", rs.getInt(1), rs.getString(2), rs.getInt(3), rs.getInt(4));
+					}
+				}
+				if (drift > 0) {
+					stmt.executeUpdate("delete from doctor_status_count");
+					stmt.executeUpdate("insert into doctor_status_count (doctor_id, status, cnt) select doctor_id, status, cnt from fresh_status_count");
+				}
+				conn.commit();
+				if (print)
+					System.out.printf("reconciled doctor_status_count in %.1f ms, %d counter(s) drifted%n", (System.nanoTime() - start) / 1e6, drift);
+				return drift;
+			}
+		}
+	}
+}
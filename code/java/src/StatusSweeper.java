@@ -0,0 +1,366 @@
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * This class defines the background sweep of appointment statuses.  Every
+ * -Ddbproject.sweeper.period.ms (60000 ms) a pass
+ *
+ *   1. moves the AC, AV and WL appointments whose date has passed to PA,
+ *   2. promotes the waitlisted appointments to come: when the doctor has an
+ *      AV appointment on the same date the slot has opened.  If more than
+ *      one patient is linked to the waitlisted appointment, the one with the
+ *      highest ID (searches keeps no booking order) is moved to the opened
+ *      slot and both become AC.  With no one waiting besides the holder,
+ *      both keep their status.  As for a booking, the opened slot is not
+ *      taken when it overlaps another booked appointment of the doctor that
+ *      day, see SlotConflicts, or when the CapacityPlanner has no room left
+ *      for the two in a department of the doctor.
+ *
+ * Both steps walk Appointment in appnt_ID order, a batch of at most
+ * -Ddbproject.sweeper.batch (500) rows at a time, resuming after the last
+ * ID of the previous batch.  Each batch is its own short transaction that
+ * skips the rows bookings hold locked, and the sweeper pauses
+ * -Ddbproject.sweeper.pause.ms (100 ms) between batches so it never keeps
+ * locks for long or crowds out the menu.  Skipped rows are picked up by the
+ * next pass.  The triggers of create.sql keep the counters and the
+ * doctor_appointment index in step with the new statuses.
+ *
+ */
+
+public class StatusSweeper implements AutoCloseable {
+	static final String EXPIRED_BACKLOG_SQL = "select count(*) from Appointment where status in ('AC', 'AV', 'WL') and adate < current_date";
+	static final String WAITLIST_BACKLOG_SQL = "select count(*) from Appointment where status = 'WL' and adate >= current_date";
+	static final String EXPIRE_SQL = "with batch as (select appnt_ID from Appointment where status in ('AC', 'AV', 'WL') and adate < current_date "
+		+ "and appnt_ID > ? order by appnt_ID limit ? for update skip locked) "
+		+ "update Appointment A set status = 'PA' from batch B where A.appnt_ID = B.appnt_ID returning A.appnt_ID";
+	//the waitlisted appointments to come with the first free slot of their doctor on the same date
+	static final String OPENED_SLOTS_SQL = "select W.appnt_ID, S.appnt_ID, HW.doctor_id, W.adate, W.time_slot, S.time_slot "
+		+ "from Appointment W join has_appointment HW on HW.appt_id = W.appnt_ID "
+		+ "cross join lateral (select A.appnt_ID, A.time_slot from has_appointment H, Appointment A where H.doctor_id = HW.doctor_id and A.appnt_ID = H.appt_id "
+		+ "and A.status = 'AV' and A.adate = W.adate order by A.appnt_ID limit 1 for update of A skip locked) S "
+		+ "where W.status = 'WL' and W.adate >= current_date and W.appnt_ID > ? order by W.appnt_ID limit ? for update of W skip locked";
+	//moves the waiting patient with the highest ID to the opened slot, when someone besides the holder is linked
+	static final String MOVE_WAITING_SQL = "update searches S set aid = ? from (select hid, pid from searches where aid = ? order by pid desc limit 1) M "
+		+ "where S.aid = ? and S.hid = M.hid and S.pid = M.pid and (select count(*) from searches where aid = ?) > 1 "
+		+ "and not exists (select 1 from searches X where X.hid = M.hid and X.pid = M.pid and X.aid = ?)";
+	static final String ACTIVATE_SQL = "update Appointment set status = 'AC' where appnt_ID = any(?)";
+
+	/**
+	 * A waitlisted appointment and the opened slot of its doctor, with the
+	 * capacity reserved for the two.
+	 */
+	static final class Pair {
+		final int waitlisted;
+		final int slot;
+		final int doctorId;
+		final Date adate;
+		final String waitlistedTime;
+		final String slotTime;
+		CapacityPlanner.Counted waitlistedReservation = null;
+		CapacityPlanner.Counted slotReservation = null;
+
+		Pair(int waitlisted, int slot, int doctorId, Date adate, String waitlistedTime, String slotTime) {
+			this.waitlisted = waitlisted;
+			this.slot = slot;
+			this.doctorId = doctorId;
+			this.adate = adate;
+			this.waitlistedTime = waitlistedTime;
+			this.slotTime = slotTime;
+		}
+	}
+
+	private final ConnectionPool _pool;
+	private final ResultCache _cache;
+	private final CapacityPlanner _capacity;
+	private final int _batchSize;
+	private final long _pauseMillis;
+	private final long _periodMillis;
+	private volatile boolean _closed = false;
+	private Thread _thread = null;
+
+	//totals since start, and the figures of the last pass
+	private volatile long _passes = 0;
+	private volatile long _expired = 0;
+	private volatile long _promoted = 0;
+	private volatile long _expiredBacklog = -1;
+	private volatile long _waitlistBacklog = -1;
+	private volatile long _lastRows = 0;
+	private volatile long _lastNanos = 0;
+	private volatile long _lastBatches = 0;
+	private volatile String _problem = null;
+
+	/**
+	 * @param pool the pool the batches borrow their connection from
+	 * @param cache the result cache told about the rows changed, may be null
+	 * @param capacity the planner the promotions reserve capacity from, may be null
+	 * @param batchSize the most appointments changed per transaction
+	 * @param pauseMillis the pause between two batches
+	 * @param periodMillis the time between the start of two passes
+	 */
+	public StatusSweeper(ConnectionPool pool, ResultCache cache, CapacityPlanner capacity, int batchSize, long pauseMillis, long periodMillis) {
+		if (batchSize < 1) throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+		this._pool = pool;
+		this._cache = cache;
+		this._capacity = capacity;
+		this._batchSize = batchSize;
+		this._pauseMillis = pauseMillis;
+		this._periodMillis = periodMillis;
+	}
+
+	/**
+	 * Starts the periodic passes on a daemon thread.
+	 */
+	public synchronized void start() {
+		if (this._thread != null) return;
+		this._thread = new Thread(() -> {
+			while (!this._closed) {
+				long start = System.currentTimeMillis();
+				try {
+					sweep();
+				}catch (SQLException e) {
+					this._problem = e.getMessage();
+				}catch (InterruptedException e) {
+					return;
+				}
+				try {
+					Thread.sleep(Math.max(this._pauseMillis, this._periodMillis - (System.currentTimeMillis() - start)));
+				}catch (InterruptedException e) {
+					return;
+				}
+			}
+		}, "status-sweeper");
+		this._thread.setDaemon(true);
+		this._thread.start();
+	}
+
+	/**
+	 * Runs one pass: expires the past appointments, then promotes the
+	 * waitlisted ones whose slot has opened.
+	 *
+	 * @return the number of appointments expired plus the number promoted
+	 * @throws java.sql.SQLException when a batch fails, the batches before it stay committed
+	 * @throws java.lang.InterruptedException when the sweeper is closed during a pause
+	 */
+	public long sweep() throws SQLException, InterruptedException {
+		long start = System.nanoTime();
+		long[] batches = { 0 };
+		this._expiredBacklog = count(EXPIRED_BACKLOG_SQL);
+		this._waitlistBacklog = count(WAITLIST_BACKLOG_SQL);
+		long[] changed = { 0, 0 };
+		try {
+			expire(batches, changed);
+			promote(batches, changed);
+			this._problem = null;
+		}finally{
+			this._expired += changed[0];
+			this._promoted += changed[1];
+			this._lastRows = changed[0] + changed[1];
+			this._lastNanos = System.nanoTime() - start;
+			this._lastBatches = batches[0];
+			++this._passes;
+		}
+		//what is left once the pass is over
+		this._expiredBacklog = count(EXPIRED_BACKLOG_SQL);
+		this._waitlistBacklog = count(WAITLIST_BACKLOG_SQL);
+		return changed[0] + changed[1];
+	}
+
+	/**
+	 * @return the totals, the figures of the last pass and the backlog left
+	 */
+	public String status() {
+		StringBuilder sb = new StringBuilder();
+		double seconds = this._lastNanos / 1e9;
+		sb.append(String.format("status sweeper: %d pass(es), %d expired, %d promoted%n", this._passes, this._expired, this._promoted));
+		sb.append(String.format("last pass: %d row(s) in %d batch(es), %.1f ms, %.0f rows/s%n", this._lastRows, this._lastBatches,
+			this._lastNanos / 1e6, seconds > 0 ? this._lastRows / seconds : 0.0));
+		sb.append(String.format("backlog: %s past appointment(s) not PA, %s waitlisted appointment(s) to come%n",
+			this._expiredBacklog < 0 ? "-" : Long.toString(this._expiredBacklog), this._waitlistBacklog < 0 ? "-" : Long.toString(this._waitlistBacklog)));
+		if (this._problem != null) sb.append("last error: ").append(this._problem).append(System.lineSeparator());
+		return sb.toString();
+	}
+
+	/**
+	 * Stops the passes; a batch in progress is finished first.
+	 */
+	public void close() {
+		this._closed = true;
+		Thread thread;
+		synchronized (this) {
+			thread = this._thread;
+		}
+		if (thread == null) return;
+		thread.interrupt();
+		try {
+			thread.join(5000);
+		}catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void expire(long[] batches, long[] changed) throws SQLException, InterruptedException {
+		int after = Integer.MIN_VALUE;
+		while (!this._closed) {
+			long start = System.nanoTime();
+			int rows = 0;
+			boolean failed = true;
+			try (ConnectionPool.PooledConnection conn = this._pool.acquire()) {
+				//one statement in autocommit, so one short transaction per batch
+				PreparedStatement stmt = conn.prepare(EXPIRE_SQL);
+				stmt.setInt(1, after);
+				stmt.setInt(2, this._batchSize);
+				try (ResultSet rs = stmt.executeQuery()) {
+					while (rs.next()) {
+						after = Math.max(after, rs.getInt(1));
+						++rows;
+					}
+				}
+				failed = false;
+			}finally{
+				Metrics.record(EXPIRE_SQL, new Object[] { after, this._batchSize }, System.nanoTime() - start, rows, 0, failed);
+			}
+			++batches[0];
+			changed[0] += rows;
+			if (rows > 0 && this._cache != null) this._cache.invalidate("Appointment");
+			//a short batch means the rest of the table has nothing left, or only rows locked right now
+			if (rows < this._batchSize) break;
+			pause();
+		}
+	}
+
+	private void promote(long[] batches, long[] changed) throws SQLException, InterruptedException {
+		int after = Integer.MIN_VALUE;
+		while (!this._closed) {
+			long start = System.nanoTime();
+			int candidates = 0;
+			int rows = 0;
+			boolean failed = true;
+			List<Pair> pairs = new ArrayList<Pair>();
+			try (ConnectionPool.PooledConnection pooled = this._pool.acquire()) {
+				Connection conn = pooled.connection();
+				conn.setAutoCommit(false);
+				PreparedStatement find = pooled.prepare(OPENED_SLOTS_SQL);
+				find.setInt(1, after);
+				find.setInt(2, this._batchSize);
+				//an appointment of two doctors, or a slot two waitlisted appointments found, is promoted once
+				Set<Integer> seen = new HashSet<Integer>();
+				List<Integer> ids = new ArrayList<Integer>();
+				try (ResultSet rs = find.executeQuery()) {
+					while (rs.next()) {
+						++candidates;
+						int waitlisted = rs.getInt(1);
+						int slot = rs.getInt(2);
+						after = Math.max(after, waitlisted);
+						if (seen.contains(waitlisted) || seen.contains(slot)) continue;
+						seen.add(waitlisted);
+						seen.add(slot);
+						pairs.add(new Pair(waitlisted, slot, rs.getInt(3), rs.getDate(4), rs.getString(5), rs.getString(6)));
+					}
+				}
+				//the days are locked in date order, as bookNextAvailable does, so the two never wait on each other
+				pairs.sort((a, b) -> a.adate.compareTo(b.adate));
+				Iterator<Pair> it = pairs.iterator();
+				while (it.hasNext()) {
+					Pair pair = it.next();
+					//as a booking, capacity first then overlaps
+					if (!reserve(pair)) {
+						it.remove();
+					}else if (conflict(pooled, pair) != null) {
+						release(pair);
+						it.remove();
+					}
+				}
+				if (!pairs.isEmpty()) {
+					PreparedStatement move = pooled.prepare(MOVE_WAITING_SQL);
+					for (Pair pair : pairs) {
+						DBproject.bind(move, new Object[] { pair.slot, pair.waitlisted, pair.waitlisted, pair.waitlisted, pair.slot });
+						move.addBatch();
+					}
+					int[] counts = move.executeBatch();
+
+					//only the pairs whose slot got a patient are activated
+					for (int i = 0; i < pairs.size(); ++i) {
+						if (counts[i] <= 0) {
+							release(pairs.get(i));
+							continue;
+						}
+						ids.add(pairs.get(i).waitlisted);
+						ids.add(pairs.get(i).slot);
+					}
+					if (!ids.isEmpty()) {
+						Array array = conn.createArrayOf("integer", ids.toArray());
+						PreparedStatement activate = pooled.prepare(ACTIVATE_SQL);
+						activate.setArray(1, array);
+						activate.executeUpdate();
+						array.free();
+					}
+				}
+				conn.commit();
+				rows = ids.size() / 2;
+				failed = false;
+			}finally{
+				if (failed) {
+					for (Pair pair : pairs)
+						release(pair);
+				}
+				Metrics.record(OPENED_SLOTS_SQL, new Object[] { after, this._batchSize }, System.nanoTime() - start, rows, 0, failed);
+			}
+			++batches[0];
+			changed[1] += rows;
+			if (rows > 0 && this._cache != null) this._cache.invalidate("Appointment", "searches");
+			if (candidates < this._batchSize) break;
+			pause();
+		}
+	}
+
+	/**
+	 * Counts the two appointments of the pair against the departments of
+	 * the doctor, as bookings of them would.
+	 *
+	 * @return false, with nothing reserved, when a department is full
+	 */
+	private boolean reserve(Pair pair) {
+		if (this._capacity == null) return true;
+		LocalDate day = pair.adate.toLocalDate();
+		pair.waitlistedReservation = this._capacity.reserve(pair.waitlisted, pair.doctorId, day, pair.waitlistedTime);
+		if (pair.waitlistedReservation == null) return false;
+		pair.slotReservation = this._capacity.reserve(pair.slot, pair.doctorId, day, pair.slotTime);
+		if (pair.slotReservation != null) return true;
+		release(pair);
+		return false;
+	}
+
+	private void release(Pair pair) {
+		if (pair.waitlistedReservation != null) this._capacity.release(pair.waitlisted, pair.waitlistedReservation);
+		if (pair.slotReservation != null) this._capacity.release(pair.slot, pair.slotReservation);
+		pair.waitlistedReservation = null;
+		pair.slotReservation = null;
+	}
+
+	//the opened slot against the booked appointments of the doctor that day; a slot that cannot be read is not checked, the audit reports it
+	private static SlotConflicts.Conflict conflict(ConnectionPool.PooledConnection conn, Pair pair) throws SQLException {
+		TimeSlot parsed = TimeSlot.tryParse(pair.slotTime);
+		return parsed == null ? null : SlotConflicts.checkDoctor(conn, pair.doctorId, pair.adate, parsed, true, pair.slot);
+	}
+
+	private long count(String sql) throws SQLException {
+		try (ConnectionPool.PooledConnection conn = this._pool.acquire();
+			 ResultSet rs = conn.prepare(sql).executeQuery()) {
+			return rs.next() ? rs.getLong(1) : 0;
+		}
+	}
+
+	private void pause() throws InterruptedException {
+		if (this._pauseMillis > 0) Thread.sleep(this._pauseMillis);
+	}
+}
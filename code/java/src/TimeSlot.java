@@ -0,0 +1,86 @@
+/**
+ * This class defines the time slot of an appointment, Appointment.time_slot
+ * (8:00-10:00, 14:30-16:00, ...) read as minutes since midnight.  A slot
+ * covers its start up to, but not including, its end, so 8:00-10:00 and
+ * 10:00-12:00 do not overlap.
+ *
+ */
+
+public final class TimeSlot implements Comparable<TimeSlot> {
+	//minutes since midnight
+	public final int start;
+	public final int end;
+
+	public TimeSlot(int start, int end) {
+		if (start < 0 || end > 24 * 60 || start >= end)
+			throw new IllegalArgumentException("Invalid time slot: " + format(start) + "-" + format(end));
+		this.start = start;
+		this.end = end;
+	}
+
+	/**
+	 * @param text the slot as start-end, each hour:minutes (8:00 or 14:30)
+	 * @return the slot
+	 * @throws java.lang.IllegalArgumentException when text is not a slot or ends before it starts
+	 */
+	public static TimeSlot parse(String text) {
+		TimeSlot slot = tryParse(text);
+		if (slot == null) throw new IllegalArgumentException("Invalid time slot, expected start-end as in 8:00-10:00: " + text);
+		return slot;
+	}
+
+	/**
+	 * @return the slot, null when text is not a valid one
+	 */
+	public static TimeSlot tryParse(String text) {
+		if (text == null) return null;
+		int dash = text.indexOf('-');
+		if (dash < 0) return null;
+		int start = minutes(text.substring(0, dash));
+		int end = minutes(text.substring(dash + 1));
+		if (start < 0 || end < 0 || end > 24 * 60 || start >= end) return null;
+		return new TimeSlot(start, end);
+	}
+
+	public boolean overlaps(TimeSlot other) {
+		return this.start < other.end && other.start < this.end;
+	}
+
+	public int compareTo(TimeSlot other) {
+		return this.start != other.start ? Integer.compare(this.start, other.start) : Integer.compare(this.end, other.end);
+	}
+
+	public boolean equals(Object o) {
+		if (!(o instanceof TimeSlot)) return false;
+		TimeSlot s = (TimeSlot) o;
+		return this.start == s.start && this.end == s.end;
+	}
+
+	public int hashCode() {
+		return this.start * 1441 + this.end;
+	}
+
+	/**
+	 * @return the slot as stored in Appointment.time_slot, 8:00-10:00
+	 */
+	public String toString() {
+		return format(this.start) + "-" + format(this.end);
+	}
+
+	//hour:minutes to minutes since midnight, -1 when it is not a time
+	private static int minutes(String time) {
+		time = time.trim();
+		int colon = time.indexOf(':');
+		if (colon < 1 || colon > 2 || time.length() != colon + 3) return -1;
+		for (int i = 0; i < time.length(); ++i)
+			if (i != colon && (time.charAt(i) < '0' || time.charAt(i) > '9')) return -1;
+		int hours = Integer.parseInt(time.substring(0, colon));
+		int minutes = Integer.parseInt(time.substring(colon + 1));
+		if (minutes > 59 || hours > 24 || (hours == 24 && minutes > 0)) return -1;
+		return hours * 60 + minutes;
+	}
+
+	private static String format(int minutes) {
+		return String.format("%d:%02d", minutes / 60, minutes % 60);
+	}
+}
@@ -8,6 +8,12 @@ DROP TABLE IF EXISTS has_appointment CASCADE;--OK
 DROP TABLE IF EXISTS request_maintenance CASCADE;--OK
 DROP TABLE IF EXISTS searches CASCADE;--OK
 DROP TABLE IF EXISTS schedules CASCADE;--OK
+DROP TABLE IF EXISTS doctor_status_count CASCADE;--OK
+DROP TABLE IF EXISTS doctor_appointment CASCADE;--OK
+DROP TABLE IF EXISTS patient_lookup CASCADE;--OK
+
+-- trigram indexes of the patient search
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
 
 
 -------------
@@ -124,6 +130,44 @@ CREATE TABLE has_appointment
 	FOREIGN KEY (doctor_id) REFERENCES Doctor(doctor_ID)
 );
 
+---------------
+---SUMMARIES---
+---------------
+
+-- Appointments per doctor and status, kept up to date by the triggers
+-- below so reports 7 and 8 do not scan Appointment.  status is '' for
+-- appointments without one.  DBproject --reconcile rebuilds it.
+CREATE TABLE doctor_status_count
+(
+	doctor_id INTEGER NOT NULL,
+	status VARCHAR(2) NOT NULL,
+	cnt INTEGER NOT NULL,
+	PRIMARY KEY (doctor_id, status),
+	FOREIGN KEY (doctor_id) REFERENCES Doctor(doctor_ID) ON DELETE CASCADE
+);
+
+-- A copy of has_appointment with the date and status of each appointment,
+-- kept up to date by the triggers below so report 5 pages through a
+-- doctor's appointments in date order with one index range scan instead
+-- of joining every appointment the doctor ever had.
+CREATE TABLE doctor_appointment
+(
+	doctor_id INTEGER NOT NULL,
+	appnt_id INTEGER NOT NULL,
+	adate DATE NOT NULL,
+	status VARCHAR(2),
+	PRIMARY KEY (appnt_id, doctor_id)
+);
+
+-- The patient searches of the front desk, written in batches by
+-- PatientSearch.  Nothing references it; it is a log.
+CREATE TABLE patient_lookup
+(
+	looked_up_at TIMESTAMP NOT NULL,
+	query VARCHAR(256) NOT NULL,
+	matches INTEGER NOT NULL
+);
+
 ----------------------------
 -- INSERT DATA STATEMENTS --
 ----------------------------
@@ -221,3 +265,175 @@ COPY has_appointment (
 FROM 'has_appointment.csv'
 WITH DELIMITER ',';
 
+
+INSERT INTO doctor_status_count (doctor_id, status, cnt)
+SELECT H.doctor_id, coalesce(A.status, ''), count(*)
+FROM has_appointment H, Appointment A
+WHERE A.appnt_ID = H.appt_id
+GROUP BY H.doctor_id, coalesce(A.status, '');
+
+INSERT INTO doctor_appointment (doctor_id, appnt_id, adate, status)
+SELECT H.doctor_id, A.appnt_ID, A.adate, A.status
+FROM has_appointment H, Appointment A
+WHERE A.appnt_ID = H.appt_id;
+
+-------------
+---INDEXES---
+-------------
+
+-- Built after the data is in.  PlanCheck (DBproject --plan-check) verifies
+-- the menu queries keep using them.
+
+-- a doctor's appointments (reports 5, 7, 8 and booking)
+CREATE INDEX has_appointment_doctor_idx ON has_appointment (doctor_id, appt_id);
+
+-- the active and available appointments of a doctor in date order (report 5)
+CREATE INDEX doctor_appointment_open_idx ON doctor_appointment (doctor_id, adate, appnt_id) WHERE status IN ('AC', 'AV');
+
+-- the appointments of a doctor on a day (time slot overlap checks)
+CREATE INDEX doctor_appointment_day_idx ON doctor_appointment (doctor_id, adate);
+
+-- the appointments a staff member is scheduled on (time slot overlap checks)
+CREATE INDEX schedules_staff_idx ON schedules (staff_id, appt_id);
+
+-- status filtered scans (report 8)
+CREATE INDEX appointment_status_adate_idx ON Appointment (status, adate, appnt_ID);
+
+-- available appointments of a date (report 6)
+CREATE INDEX appointment_available_adate_idx ON Appointment (adate, appnt_ID) WHERE status = 'AV';
+
+-- the doctors of a department by name (report 6)
+CREATE INDEX request_maintenance_dept_idx ON request_maintenance (dept_name, did);
+
+-- patients by part of their name or address, or a close spelling (patient search)
+CREATE INDEX patient_name_trgm_idx ON Patient USING gin (lower(name) gin_trgm_ops);
+CREATE INDEX patient_address_trgm_idx ON Patient USING gin (lower(address) gin_trgm_ops);
+
+-- the doctors of a department by ID
+CREATE INDEX doctor_did_idx ON Doctor (did);
+
+--------------
+---TRIGGERS---
+--------------
+
+-- Tells listeners (the availability index and capacity planner of DBproject)
+-- which appointments changed, 'reload' when the department of the doctors may have changed.
+-- The bulk loader sets dbproject.bulk_load and sends one 'reload' instead.
+CREATE OR REPLACE FUNCTION notify_appointment_change() RETURNS trigger AS $$
+BEGIN
+	IF current_setting('dbproject.bulk_load', true) = 'on' THEN
+		RETURN NULL;
+	END IF;
+	IF TG_TABLE_NAME = 'request_maintenance' THEN
+		PERFORM pg_notify('appointment_change', 'reload');
+	ELSIF TG_TABLE_NAME = 'appointment' THEN
+		IF TG_OP <> 'INSERT' THEN PERFORM pg_notify('appointment_change', OLD.appnt_ID::text); END IF;
+		IF TG_OP <> 'DELETE' THEN PERFORM pg_notify('appointment_change', NEW.appnt_ID::text); END IF;
+	ELSE
+		IF TG_OP <> 'INSERT' THEN PERFORM pg_notify('appointment_change', OLD.appt_id::text); END IF;
+		IF TG_OP <> 'DELETE' THEN PERFORM pg_notify('appointment_change', NEW.appt_id::text); END IF;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER appointment_notify_change
+AFTER INSERT OR DELETE OR UPDATE OF appnt_ID, adate, time_slot, status ON Appointment
+FOR EACH ROW EXECUTE PROCEDURE notify_appointment_change();
+
+CREATE TRIGGER has_appointment_notify_change
+AFTER INSERT OR DELETE OR UPDATE ON has_appointment
+FOR EACH ROW EXECUTE PROCEDURE notify_appointment_change();
+
+CREATE TRIGGER request_maintenance_notify_change
+AFTER INSERT OR DELETE OR UPDATE OR TRUNCATE ON request_maintenance
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_appointment_change();
+
+-- Moves one appointment of a doctor between status counters.
+CREATE OR REPLACE FUNCTION count_doctor_status(doctor INTEGER, st VARCHAR, delta INTEGER) RETURNS void AS $$
+	INSERT INTO doctor_status_count (doctor_id, status, cnt) VALUES (doctor, coalesce(st, ''), delta)
+	ON CONFLICT (doctor_id, status) DO UPDATE SET cnt = doctor_status_count.cnt + delta;
+$$ LANGUAGE sql;
+
+CREATE OR REPLACE FUNCTION count_appointment_status() RETURNS trigger AS $$
+BEGIN
+	IF current_setting('dbproject.bulk_load', true) = 'on' THEN
+		RETURN NULL;
+	END IF;
+	IF TG_OP <> 'INSERT' THEN
+		PERFORM count_doctor_status(H.doctor_id, OLD.status, -1) FROM has_appointment H WHERE H.appt_id = OLD.appnt_ID;
+	END IF;
+	IF TG_OP <> 'DELETE' THEN
+		PERFORM count_doctor_status(H.doctor_id, NEW.status, 1) FROM has_appointment H WHERE H.appt_id = NEW.appnt_ID;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- The appointment row is read FOR SHARE so a concurrent status change is
+-- either waited for or sees this link, and no count is lost.
+CREATE OR REPLACE FUNCTION count_has_appointment() RETURNS trigger AS $$
+DECLARE
+	st VARCHAR(2);
+BEGIN
+	IF current_setting('dbproject.bulk_load', true) = 'on' THEN
+		RETURN NULL;
+	END IF;
+	IF TG_OP <> 'INSERT' THEN
+		SELECT status INTO st FROM Appointment WHERE appnt_ID = OLD.appt_id FOR SHARE;
+		IF FOUND THEN PERFORM count_doctor_status(OLD.doctor_id, st, -1); END IF;
+	END IF;
+	IF TG_OP <> 'DELETE' THEN
+		SELECT status INTO st FROM Appointment WHERE appnt_ID = NEW.appt_id FOR SHARE;
+		IF FOUND THEN PERFORM count_doctor_status(NEW.doctor_id, st, 1); END IF;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER appointment_count_status
+AFTER INSERT OR DELETE OR UPDATE OF appnt_ID, status ON Appointment
+FOR EACH ROW EXECUTE PROCEDURE count_appointment_status();
+
+CREATE TRIGGER has_appointment_count_status
+AFTER INSERT OR DELETE OR UPDATE ON has_appointment
+FOR EACH ROW EXECUTE PROCEDURE count_has_appointment();
+
+-- Keeps doctor_appointment in step with Appointment and has_appointment.
+-- Appointments are only deleted once unlinked, so updates are enough here.
+CREATE OR REPLACE FUNCTION track_appointment_date() RETURNS trigger AS $$
+BEGIN
+	IF current_setting('dbproject.bulk_load', true) = 'on' THEN
+		RETURN NULL;
+	END IF;
+	UPDATE doctor_appointment SET appnt_id = NEW.appnt_ID, adate = NEW.adate, status = NEW.status
+	WHERE appnt_id = OLD.appnt_ID;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- As for the counters, the appointment is read FOR SHARE so a concurrent
+-- change of its date or status is not lost.
+CREATE OR REPLACE FUNCTION track_has_appointment() RETURNS trigger AS $$
+BEGIN
+	IF current_setting('dbproject.bulk_load', true) = 'on' THEN
+		RETURN NULL;
+	END IF;
+	IF TG_OP <> 'INSERT' THEN
+		DELETE FROM doctor_appointment WHERE appnt_id = OLD.appt_id AND doctor_id = OLD.doctor_id;
+	END IF;
+	IF TG_OP <> 'DELETE' THEN
+		INSERT INTO doctor_appointment (doctor_id, appnt_id, adate, status)
+		SELECT NEW.doctor_id, A.appnt_ID, A.adate, A.status FROM Appointment A WHERE A.appnt_ID = NEW.appt_id FOR SHARE;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER appointment_track_date
+AFTER UPDATE OF appnt_ID, adate, status ON Appointment
+FOR EACH ROW EXECUTE PROCEDURE track_appointment_date();
+
+CREATE TRIGGER has_appointment_track_date
+AFTER INSERT OR DELETE OR UPDATE ON has_appointment
+FOR EACH ROW EXECUTE PROCEDURE track_has_appointment();